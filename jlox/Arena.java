@@ -0,0 +1,637 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A program's AST packed into a handful of flat arrays instead of a record
+// per node. Every node is a run of ints in nodes, its kind followed by its
+// fields. Child nodes are offsets into nodes, tokens are indexes into the
+// token arrays and values are indexes into the constant pool. Lists are a
+// count followed by that many children, and NONE marks a missing child.
+//
+// This is the compact form for keeping programs resident or on disk, it only
+// takes a few objects however large the program is. Where the resolver found
+// each variable is kept with it, so decode builds the records back up ready
+// to run without resolving them again. ArenaResolver and ArenaInterpreter
+// walk the arrays themselves instead, see --arena.
+//
+// Nodes only have fields whose size the parser knows. What else the resolver
+// works out about a function is in frames, at the offset the function has in
+// its frame field: how many cells there are, whether the receiver and each
+// parameter is one, how many captures there are and the captures.
+class Arena {
+  enum Kind {
+    LITERAL,
+    GROUPING,
+    LOGICAL,
+    BINARY,
+    UNARY,
+    VAR,
+    ASSIGN,
+    CALL,
+    INSTANCE_GET,
+    INSTANCE_SET,
+    THIS,
+    SUPER,
+
+    EXPR_STMT,
+    VAR_STMT,
+    BLOCK,
+    IF,
+    WHILE,
+    FOR,
+    FUNCTION,
+    RETURN,
+    BREAK,
+    CONTINUE,
+    CLASS,
+  }
+
+  static final int NONE = -1;
+
+  // Tags for the constants when written
+  private static final byte NUMBER = 0;
+  private static final byte BOOLEAN = 1;
+  private static final byte STRING = 2;
+
+  private static final Kind[] kinds = Kind.values();
+  private static final TokenType[] tokenTypes = TokenType.values();
+  private static final Local.Kind[] localKinds = Local.Kind.values();
+
+  final int[] nodes;
+  final int[] stmts;
+
+  // Replaced by ArenaResolver once it knows every function's frame
+  int[] frames;
+
+  // Tokens, lexemes and literals are indexes into constants
+  final byte[] tokenType;
+  final int[] tokenLexeme;
+  final int[] tokenLiteral;
+  final int[] tokenLine;
+  final int[] tokenColumn;
+
+  final Object[] constants;
+
+  Arena(int[] nodes, int[] stmts, int[] frames, byte[] tokenType, int[] tokenLexeme, int[] tokenLiteral, int[] tokenLine, int[] tokenColumn, Object[] constants) {
+    this.nodes = nodes;
+    this.stmts = stmts;
+    this.frames = frames;
+    this.tokenType = tokenType;
+    this.tokenLexeme = tokenLexeme;
+    this.tokenLiteral = tokenLiteral;
+    this.tokenLine = tokenLine;
+    this.tokenColumn = tokenColumn;
+    this.constants = constants;
+  }
+
+  // Bodies have to be parsed, encode the program of a strict parse. Encoding
+  // before resolving leaves every variable global.
+  static Arena encode(List<Stmt> stmts) {
+    var encoder = new Encoder();
+
+    var offsets = new int[stmts.size()];
+    for (var i = 0; i < stmts.size(); i++) {
+      offsets[i] = encoder.stmt(stmts.get(i));
+    }
+
+    return encoder.finish(offsets);
+  }
+
+  List<Stmt> decode() {
+    var decoded = new ArrayList<Stmt>(stmts.length);
+    var tokens = new Token[tokenType.length];
+
+    for (var stmt : stmts) {
+      decoded.add(decodeStmt(stmt, tokens));
+    }
+
+    return decoded;
+  }
+
+  // Written as the length of each array followed by its contents, constants
+  // are a tag followed by the value. The buffer is ready to be read from.
+  ByteBuffer write() {
+    var strings = new byte[constants.length][];
+    var size = Integer.BYTES * 9 + nodes.length * 4 + stmts.length * 4 + frames.length * 4 + tokenType.length * 17;
+
+    for (var i = 0; i < constants.length; i++) {
+      size += switch (constants[i]) {
+        case Double number -> 1 + Double.BYTES;
+        case Boolean bool -> 2;
+        case String string -> {
+          strings[i] = string.getBytes(StandardCharsets.UTF_8);
+          yield 1 + Integer.BYTES + strings[i].length;
+        }
+        default -> throw new IllegalArgumentException(String.format("Can't write constant '%s'.", constants[i]));
+      };
+    }
+
+    var out = ByteBuffer.allocate(size);
+    writeInts(out, nodes);
+    writeInts(out, stmts);
+    writeInts(out, frames);
+
+    out.putInt(tokenType.length);
+    out.put(tokenType);
+    writeInts(out, tokenLexeme);
+    writeInts(out, tokenLiteral);
+    writeInts(out, tokenLine);
+    writeInts(out, tokenColumn);
+
+    out.putInt(constants.length);
+    for (var i = 0; i < constants.length; i++) {
+      switch (constants[i]) {
+        case Double number -> out.put(NUMBER).putDouble(number);
+        case Boolean bool -> out.put(BOOLEAN).put((byte)(bool ? 1 : 0));
+        default -> out.put(STRING).putInt(strings[i].length).put(strings[i]);
+      }
+    }
+
+    return out.flip();
+  }
+
+  // Reads an arena written by write from the buffer's position, throws an
+  // IllegalArgumentException if it isn't one.
+  static Arena read(ByteBuffer in) {
+    try {
+      var nodes = readInts(in);
+      var stmts = readInts(in);
+      var frames = readInts(in);
+
+      var tokenType = new byte[in.getInt()];
+      in.get(tokenType);
+      var tokenLexeme = readInts(in);
+      var tokenLiteral = readInts(in);
+      var tokenLine = readInts(in);
+      var tokenColumn = readInts(in);
+
+      var constants = new Object[in.getInt()];
+      for (var i = 0; i < constants.length; i++) {
+        constants[i] = switch (in.get()) {
+          case NUMBER -> in.getDouble();
+          case BOOLEAN -> in.get() != 0;
+          case STRING -> {
+            var bytes = new byte[in.getInt()];
+            in.get(bytes);
+            yield new String(bytes, StandardCharsets.UTF_8);
+          }
+          default -> throw new IllegalArgumentException("Unknown constant tag.");
+        };
+      }
+
+      return new Arena(nodes, stmts, frames, tokenType, tokenLexeme, tokenLiteral, tokenLine, tokenColumn, constants);
+    } catch (BufferUnderflowException | NegativeArraySizeException error) {
+      throw new IllegalArgumentException("Truncated arena.", error);
+    }
+  }
+
+  private static void writeInts(ByteBuffer out, int[] ints) {
+    out.putInt(ints.length);
+    out.asIntBuffer().put(ints);
+    out.position(out.position() + ints.length * Integer.BYTES);
+  }
+
+  private static int[] readInts(ByteBuffer in) {
+    var ints = new int[in.getInt()];
+    in.asIntBuffer().get(ints);
+    in.position(in.position() + ints.length * Integer.BYTES);
+
+    return ints;
+  }
+
+  Kind kind(int node) {
+    return kinds[nodes[node]];
+  }
+
+  int field(int node, int index) {
+    return nodes[node + 1 + index];
+  }
+
+  Object constant(int index) {
+    if (index == NONE) {
+      return null;
+    }
+
+    return constants[index];
+  }
+
+  TokenType tokenType(int token) {
+    return tokenTypes[tokenType[token]];
+  }
+
+  String lexeme(int token) {
+    return (String)constant(tokenLexeme[token]);
+  }
+
+  Token token(int index) {
+    return new Token(tokenType(index), lexeme(index), constant(tokenLiteral[index]), tokenLine[index], tokenColumn[index]);
+  }
+
+  // The layout of a function's frame, from its entry in frames
+  Frame frame(int function) {
+    var offset = field(function, 4);
+
+    var frame = new Frame();
+    frame.size = field(function, 3);
+    frame.cells = new boolean[frames[offset]];
+    for (var i = 0; i < frame.cells.length; i++) {
+      frame.cells[i] = frames[offset + 1 + i] == 1;
+    }
+
+    var captures = offset + 1 + frame.cells.length;
+    frame.captures = Arrays.copyOfRange(frames, captures + 1, captures + 1 + frames[captures]);
+
+    return frame;
+  }
+
+  // Offset of the count of a function's statements
+  int body(int function) {
+    return function + 7 + field(function, 5);
+  }
+
+  private Stmt decodeStmt(int node, Token[] tokens) {
+    if (node == NONE) {
+      return null;
+    }
+
+    return switch (kind(node)) {
+      case Kind.EXPR_STMT -> new Stmt.ExprStmt(decodeExpr(field(node, 0), tokens));
+      case Kind.VAR_STMT -> new Stmt.Var(
+        token(field(node, 0), tokens),
+        decodeExpr(field(node, 1), tokens),
+        local(field(node, 2), field(node, 3))
+      );
+      case Kind.BLOCK -> new Stmt.Block(decodeStmts(node + 2, tokens), scope(field(node, 0)));
+      case Kind.IF -> new Stmt.If(
+        decodeExpr(field(node, 0), tokens),
+        decodeStmt(field(node, 1), tokens),
+        decodeStmt(field(node, 2), tokens)
+      );
+      case Kind.WHILE -> new Stmt.While(decodeExpr(field(node, 0), tokens), decodeStmt(field(node, 1), tokens));
+      case Kind.FOR -> new Stmt.For(
+        decodeStmt(field(node, 0), tokens),
+        decodeExpr(field(node, 1), tokens),
+        decodeExpr(field(node, 2), tokens),
+        decodeStmt(field(node, 3), tokens),
+        scope(field(node, 4))
+      );
+      case Kind.FUNCTION -> decodeFunction(node, tokens);
+      case Kind.RETURN -> new Stmt.Return(token(field(node, 0), tokens), decodeExpr(field(node, 1), tokens));
+      case Kind.BREAK -> new Stmt.Break(token(field(node, 0), tokens));
+      case Kind.CONTINUE -> new Stmt.Continue(token(field(node, 0), tokens));
+      case Kind.CLASS -> {
+        var superclass = (Expr.Var)decodeExpr(field(node, 1), tokens);
+
+        var count = field(node, 4);
+        var methods = new ArrayList<Stmt.Function>(count);
+        for (var i = 0; i < count; i++) {
+          methods.add(decodeFunction(field(node, 5 + i), tokens));
+        }
+
+        yield new Stmt.Class(token(field(node, 0), tokens), superclass, methods, local(field(node, 2), field(node, 3)));
+      }
+      default -> null;
+    };
+  }
+
+  private Stmt.Function decodeFunction(int node, Token[] tokens) {
+    var count = field(node, 5);
+    var params = new ArrayList<Token>(count);
+    for (var i = 0; i < count; i++) {
+      params.add(token(field(node, 6 + i), tokens));
+    }
+
+    return new Stmt.Function(
+      token(field(node, 0), tokens),
+      params,
+      new FunctionBody(decodeStmts(body(node), tokens)),
+      local(field(node, 1), field(node, 2)),
+      frame(node)
+    );
+  }
+
+  // list is the offset of the count, the offsets of the statements follow it
+  private List<Stmt> decodeStmts(int list, Token[] tokens) {
+    var count = nodes[list];
+
+    var stmts = new ArrayList<Stmt>(count);
+    for (var i = 0; i < count; i++) {
+      stmts.add(decodeStmt(nodes[list + 1 + i], tokens));
+    }
+
+    return stmts;
+  }
+
+  // Decoded expressions take their offset as their id
+  private Expr decodeExpr(int node, Token[] tokens) {
+    if (node == NONE) {
+      return null;
+    }
+
+    return switch (kind(node)) {
+      case Kind.LITERAL -> new Expr.Literal(node, constant(field(node, 0)));
+      case Kind.GROUPING -> new Expr.Grouping(node, decodeExpr(field(node, 0), tokens));
+      case Kind.LOGICAL -> new Expr.Logical(
+        node,
+        decodeExpr(field(node, 0), tokens),
+        token(field(node, 1), tokens),
+        decodeExpr(field(node, 2), tokens)
+      );
+      case Kind.BINARY -> new Expr.Binary(
+        node,
+        decodeExpr(field(node, 0), tokens),
+        token(field(node, 1), tokens),
+        decodeExpr(field(node, 2), tokens)
+      );
+      case Kind.UNARY -> new Expr.Unary(node, token(field(node, 0), tokens), decodeExpr(field(node, 1), tokens));
+      case Kind.VAR -> new Expr.Var(node, token(field(node, 0), tokens), local(field(node, 1), field(node, 2)));
+      case Kind.ASSIGN -> new Expr.Assign(
+        node,
+        token(field(node, 0), tokens),
+        decodeExpr(field(node, 1), tokens),
+        local(field(node, 2), field(node, 3))
+      );
+      case Kind.CALL -> {
+        var count = field(node, 2);
+        var args = new ArrayList<Expr>(count);
+        for (var i = 0; i < count; i++) {
+          args.add(decodeExpr(field(node, 3 + i), tokens));
+        }
+
+        yield new Expr.Call(node, decodeExpr(field(node, 0), tokens), token(field(node, 1), tokens), args);
+      }
+      case Kind.INSTANCE_GET -> new Expr.InstanceGet(node, decodeExpr(field(node, 0), tokens), token(field(node, 1), tokens));
+      case Kind.INSTANCE_SET -> new Expr.InstanceSet(
+        node,
+        decodeExpr(field(node, 0), tokens),
+        token(field(node, 1), tokens),
+        decodeExpr(field(node, 2), tokens)
+      );
+      case Kind.THIS -> new Expr.This(node, token(field(node, 0), tokens), local(field(node, 1), field(node, 2)));
+      case Kind.SUPER -> new Expr.Super(
+        node,
+        token(field(node, 0), tokens),
+        token(field(node, 1), tokens),
+        local(field(node, 2), field(node, 3)),
+        local(field(node, 4), field(node, 5))
+      );
+      default -> null;
+    };
+  }
+
+  private static Local local(int kind, int index) {
+    var local = new Local();
+    local.kind = localKinds[kind];
+    local.index = index;
+
+    return local;
+  }
+
+  private static Scope scope(int size) {
+    var scope = new Scope();
+    scope.size = size;
+
+    return scope;
+  }
+
+  // Tokens that were shared between nodes are shared again once decoded
+  private Token token(int index, Token[] tokens) {
+    if (tokens[index] == null) {
+      tokens[index] = token(index);
+    }
+
+    return tokens[index];
+  }
+
+  private static class Encoder {
+    private int[] nodes = new int[1024];
+    private int size = 0;
+
+    private int[] frames = new int[256];
+    private int framesSize = 0;
+
+    private final Map<Token, Integer> tokens = new IdentityHashMap<>();
+    private final List<Token> tokenList = new ArrayList<>();
+
+    private final Map<Object, Integer> constants = new HashMap<>();
+    private final List<Object> constantList = new ArrayList<>();
+
+    Arena finish(int[] stmts) {
+      var count = tokenList.size();
+      var tokenType = new byte[count];
+      var tokenLexeme = new int[count];
+      var tokenLiteral = new int[count];
+      var tokenLine = new int[count];
+      var tokenColumn = new int[count];
+
+      for (var i = 0; i < count; i++) {
+        var token = tokenList.get(i);
+        tokenType[i] = (byte)token.type().ordinal();
+        tokenLexeme[i] = constant(token.lexeme());
+        tokenLiteral[i] = constant(token.literal());
+        tokenLine[i] = token.line();
+        tokenColumn[i] = token.column();
+      }
+
+      return new Arena(Arrays.copyOf(nodes, size), stmts, Arrays.copyOf(frames, framesSize), tokenType, tokenLexeme, tokenLiteral, tokenLine, tokenColumn, constantList.toArray());
+    }
+
+    int stmt(Stmt stmt) {
+      if (stmt == null) {
+        return NONE;
+      }
+
+      return switch (stmt) {
+        case Stmt.ExprStmt exprStmt -> node(Kind.EXPR_STMT, expr(exprStmt.expr()));
+        case Stmt.Var var -> node(Kind.VAR_STMT, token(var.identifier()), expr(var.value()), var.local().kind.ordinal(), var.local().index);
+        case Stmt.Block block -> node(Kind.BLOCK, concat(new int[]{ block.scope().size }, stmts(block.stmts())));
+        case Stmt.If ifStmt -> node(Kind.IF, expr(ifStmt.condition()), stmt(ifStmt.ifStmt()), stmt(ifStmt.elseStmt()));
+        case Stmt.While whileStmt -> node(Kind.WHILE, expr(whileStmt.condition()), stmt(whileStmt.stmt()));
+        case Stmt.For forStmt -> node(
+          Kind.FOR,
+          stmt(forStmt.initializer()),
+          expr(forStmt.condition()),
+          expr(forStmt.increment()),
+          stmt(forStmt.stmt()),
+          forStmt.scope().size
+        );
+        case Stmt.Function function -> function(function);
+        case Stmt.Return returnStmt -> node(Kind.RETURN, token(returnStmt.keyword()), expr(returnStmt.expr()));
+        case Stmt.Break breakStmt -> node(Kind.BREAK, token(breakStmt.keyword()));
+        case Stmt.Continue continueStmt -> node(Kind.CONTINUE, token(continueStmt.keyword()));
+        case Stmt.Class classStmt -> {
+          var methods = new int[classStmt.methods().size() + 1];
+          methods[0] = classStmt.methods().size();
+          for (var i = 0; i < classStmt.methods().size(); i++) {
+            methods[i + 1] = function(classStmt.methods().get(i));
+          }
+
+          var header = new int[]{
+            token(classStmt.identifier()),
+            expr(classStmt.superclass()),
+            classStmt.local().kind.ordinal(),
+            classStmt.local().index,
+          };
+
+          yield node(Kind.CLASS, concat(header, methods));
+        }
+        default -> NONE;
+      };
+    }
+
+    private int function(Stmt.Function function) {
+      if (!function.body().isParsed()) {
+        throw new IllegalArgumentException("Only fully parsed programs can be encoded.");
+      }
+
+      var params = new int[function.params().size() + 1];
+      params[0] = function.params().size();
+      for (var i = 0; i < function.params().size(); i++) {
+        params[i + 1] = token(function.params().get(i));
+      }
+
+      // The frame goes after those of the functions in the body, the same as
+      // ArenaResolver puts them
+      var stmts = stmts(function.body().stmts());
+      var header = concat(new int[]{
+        token(function.identifier()),
+        function.local().kind.ordinal(),
+        function.local().index,
+        function.frame().size,
+        frame(function.frame()),
+      }, params);
+      return node(Kind.FUNCTION, concat(header, stmts));
+    }
+
+    // Offset of the frame's entry in frames
+    private int frame(Frame frame) {
+      var cells = new int[frame.cells.length];
+      for (var i = 0; i < cells.length; i++) {
+        cells[i] = frame.cells[i] ? 1 : 0;
+      }
+
+      var entry = concat(concat(new int[]{ cells.length }, cells), concat(new int[]{ frame.captures.length }, frame.captures));
+      while (framesSize + entry.length > frames.length) {
+        frames = Arrays.copyOf(frames, frames.length * 2);
+      }
+
+      var offset = framesSize;
+      System.arraycopy(entry, 0, frames, framesSize, entry.length);
+      framesSize += entry.length;
+
+      return offset;
+    }
+
+    private int[] stmts(List<Stmt> stmts) {
+      var list = new int[stmts.size() + 1];
+      list[0] = stmts.size();
+
+      for (var i = 0; i < stmts.size(); i++) {
+        list[i + 1] = stmt(stmts.get(i));
+      }
+
+      return list;
+    }
+
+    private int expr(Expr expr) {
+      if (expr == null) {
+        return NONE;
+      }
+
+      return switch (expr) {
+        case Expr.Literal literal -> node(Kind.LITERAL, constant(literal.value()));
+        case Expr.Grouping grouping -> node(Kind.GROUPING, expr(grouping.expr()));
+        case Expr.Logical logical -> node(Kind.LOGICAL, expr(logical.left()), token(logical.operator()), expr(logical.right()));
+        case Expr.Binary binary -> node(Kind.BINARY, expr(binary.left()), token(binary.operator()), expr(binary.right()));
+        case Expr.Unary unary -> node(Kind.UNARY, token(unary.operator()), expr(unary.expr()));
+        case Expr.Var var -> node(Kind.VAR, token(var.identifier()), var.local().kind.ordinal(), var.local().index);
+        case Expr.Assign assign -> node(
+          Kind.ASSIGN,
+          token(assign.identifier()),
+          expr(assign.value()),
+          assign.local().kind.ordinal(),
+          assign.local().index
+        );
+        case Expr.Call call -> {
+          var args = new int[call.args().size() + 3];
+          args[0] = expr(call.callee());
+          args[1] = token(call.paren());
+          args[2] = call.args().size();
+          for (var i = 0; i < call.args().size(); i++) {
+            args[i + 3] = expr(call.args().get(i));
+          }
+
+          yield node(Kind.CALL, args);
+        }
+        case Expr.InstanceGet get -> node(Kind.INSTANCE_GET, expr(get.instance()), token(get.identifier()));
+        case Expr.InstanceSet set -> node(Kind.INSTANCE_SET, expr(set.instance()), token(set.identifier()), expr(set.value()));
+        case Expr.This thisExpr -> node(Kind.THIS, token(thisExpr.keyword()), thisExpr.local().kind.ordinal(), thisExpr.local().index);
+        case Expr.Super superExpr -> node(
+          Kind.SUPER,
+          token(superExpr.keyword()),
+          token(superExpr.method()),
+          superExpr.local().kind.ordinal(),
+          superExpr.local().index,
+          superExpr.receiver().kind.ordinal(),
+          superExpr.receiver().index
+        );
+        default -> NONE;
+      };
+    }
+
+    // Children are encoded before their parent, so a node's offset is always
+    // greater than the offsets of everything under it.
+    private int node(Kind kind, int... fields) {
+      while (size + fields.length + 1 > nodes.length) {
+        nodes = Arrays.copyOf(nodes, nodes.length * 2);
+      }
+
+      var offset = size;
+      nodes[size++] = kind.ordinal();
+      for (var field : fields) {
+        nodes[size++] = field;
+      }
+
+      return offset;
+    }
+
+    private int token(Token token) {
+      var index = tokens.get(token);
+      if (index == null) {
+        index = tokenList.size();
+        tokens.put(token, index);
+        tokenList.add(token);
+      }
+
+      return index;
+    }
+
+    private int constant(Object value) {
+      if (value == null) {
+        return NONE;
+      }
+
+      var index = constants.get(value);
+      if (index == null) {
+        index = constantList.size();
+        constants.put(value, index);
+        constantList.add(value);
+      }
+
+      return index;
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+      var joined = Arrays.copyOf(a, a.length + b.length);
+      System.arraycopy(b, 0, joined, a.length, b.length);
+
+      return joined;
+    }
+  }
+}
@@ -0,0 +1,452 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Walks a resolved Arena the same way the tree walker walks the records, so a
+// program runs without ever being decoded. Values, cells and globals are the
+// interpreter's, with the same errors. Frames are laid out the same way, but
+// the walker keeps track of the current one itself.
+//
+// Tokens are built the first time something needs them, such as a global or
+// an error, and shared after that. Each function node is given a declaration
+// the first time it runs, whose body is bound to code that runs the node's
+// statements, so calls, closures and classes work the same as with records.
+class ArenaInterpreter {
+  private static final Local.Kind[] localKinds = Local.Kind.values();
+
+  private final Interpreter interpreter;
+  private final Arena arena;
+  private final int[] nodes;
+  private final Token[] tokens;
+  private final Map<Integer, Stmt.Function> declarations = new HashMap<>();
+
+  // Frame of the function being called and the upvalues of its closure, the
+  // same as the interpreter's own
+  private Object[] frame = new Object[0];
+  private Cell[] upvalues = new Cell[0];
+
+  // Value of the return statement that completed with RETURN
+  private Object returned;
+
+  ArenaInterpreter(Interpreter interpreter, Arena arena) {
+    this.interpreter = interpreter;
+    this.arena = arena;
+    this.nodes = arena.nodes;
+    this.tokens = new Token[arena.tokenType.length];
+  }
+
+  void execute() {
+    for (var stmt : arena.stmts) {
+      execute(stmt);
+    }
+  }
+
+  // list is the offset of the count, the offsets of the statements follow it.
+  // Stops at the first statement that doesn't complete normally.
+  private Completion executeAll(int list) {
+    for (var i = 0; i < nodes[list]; i++) {
+      var completion = execute(nodes[list + 1 + i]);
+      if (completion != Completion.NORMAL) {
+        return completion;
+      }
+    }
+
+    return Completion.NORMAL;
+  }
+
+  private Completion execute(int node) {
+    return switch (arena.kind(node)) {
+      case Arena.Kind.EXPR_STMT -> {
+        evaluate(arena.field(node, 0));
+        yield Completion.NORMAL;
+      }
+      case Arena.Kind.VAR_STMT -> {
+        define(node, 2, evaluateOptional(arena.field(node, 1)));
+        yield Completion.NORMAL;
+      }
+      case Arena.Kind.BLOCK -> {
+        reserve(arena.field(node, 0));
+        yield executeAll(node + 2);
+      }
+      case Arena.Kind.IF -> execIf(node);
+      case Arena.Kind.WHILE -> execWhile(node);
+      case Arena.Kind.FOR -> execFor(node);
+      case Arena.Kind.FUNCTION -> {
+        // Defined before the closure is created so it can capture itself
+        define(node, 1, null);
+        assign(node, 1, new LoxFunction(declaration(node), capture(node, null), null, false));
+        yield Completion.NORMAL;
+      }
+      case Arena.Kind.RETURN -> {
+        returned = evaluateOptional(arena.field(node, 1));
+        yield Completion.RETURN;
+      }
+      case Arena.Kind.BREAK -> Completion.BREAK;
+      case Arena.Kind.CONTINUE -> Completion.CONTINUE;
+      case Arena.Kind.CLASS -> execClass(node);
+      default -> Completion.NORMAL;
+    };
+  }
+
+  private Completion execIf(int node) {
+    if (interpreter.isTruthy(evaluate(arena.field(node, 0)))) {
+      return execute(arena.field(node, 1));
+    } else if (arena.field(node, 2) != Arena.NONE) {
+      return execute(arena.field(node, 2));
+    }
+
+    return Completion.NORMAL;
+  }
+
+  private Completion execWhile(int node) {
+    var condition = arena.field(node, 0);
+    var body = arena.field(node, 1);
+
+    while (interpreter.isTruthy(evaluate(condition))) {
+      var completion = execute(body);
+      if (completion == Completion.BREAK) {
+        break;
+      }
+
+      if (completion == Completion.RETURN) {
+        return completion;
+      }
+    }
+
+    return Completion.NORMAL;
+  }
+
+  private Completion execFor(int node) {
+    reserve(arena.field(node, 4));
+
+    if (arena.field(node, 0) != Arena.NONE) {
+      execute(arena.field(node, 0));
+    }
+
+    var condition = arena.field(node, 1);
+    var increment = arena.field(node, 2);
+    var body = arena.field(node, 3);
+
+    while (interpreter.isTruthy(evaluate(condition))) {
+      var completion = execute(body);
+      if (completion == Completion.BREAK) {
+        break;
+      }
+
+      if (completion == Completion.RETURN) {
+        return completion;
+      }
+
+      // Continuing still runs the increment
+      if (increment != Arena.NONE) {
+        evaluate(increment);
+      }
+    }
+
+    return Completion.NORMAL;
+  }
+
+  // Functions get a frame big enough for all of their blocks, only the top
+  // level one has to grow.
+  private void reserve(int size) {
+    if (frame.length < size) {
+      frame = Arrays.copyOf(frame, size);
+    }
+  }
+
+  private Completion execClass(int node) {
+    LoxClass superclass = null;
+    var superclassNode = arena.field(node, 1);
+    if (superclassNode != Arena.NONE) {
+      var expr = evaluate(superclassNode);
+      if (!(expr instanceof LoxClass)) {
+        throw new RuntimeError(token(arena.field(superclassNode, 0)), "Superclass must be a class.");
+      }
+
+      superclass = (LoxClass)expr;
+    }
+
+    // Defining it first will allow referencing the class within the classes methods.
+    define(node, 2, null);
+
+    // Every method of a subclass shares the superclass as its first upvalue
+    Cell superCell = null;
+    if (superclass != null) {
+      superCell = new Cell(superclass);
+    }
+
+    var methods = new HashMap<String, LoxFunction>();
+    for (var i = 0; i < arena.field(node, 4); i++) {
+      var method = arena.field(node, 5 + i);
+      var identifier = lexeme(method, 0);
+      var function = new LoxFunction(declaration(method), capture(method, superCell), null, identifier.equals("init"));
+
+      methods.put(identifier, function);
+    }
+
+    assign(node, 2, new LoxClass(lexeme(node, 0), superclass, methods));
+
+    return Completion.NORMAL;
+  }
+
+  // The declaration for a function node, the same one every time it runs
+  private Stmt.Function declaration(int node) {
+    var declaration = declarations.get(node);
+    if (declaration != null) {
+      return declaration;
+    }
+
+    var count = arena.field(node, 5);
+    var params = new ArrayList<Token>(count);
+    for (var i = 0; i < count; i++) {
+      params.add(token(arena.field(node, 6 + i)));
+    }
+
+    var stmts = arena.body(node);
+    var body = new FunctionBody(List.of());
+    body.bind((interpreter, frame, upvalues) -> call(stmts, frame, upvalues));
+
+    declaration = new Stmt.Function(token(arena.field(node, 0)), params, body, new Local(), arena.frame(node));
+    declarations.put(node, declaration);
+
+    return declaration;
+  }
+
+  // Runs a function's statements in its frame, see Interpreter.executeCall
+  private Object call(int stmts, Object[] frame, Cell[] upvalues) {
+    var enclosingFrame = this.frame;
+    var enclosingUpvalues = this.upvalues;
+
+    try {
+      this.frame = frame;
+      this.upvalues = upvalues;
+
+      if (executeAll(stmts) == Completion.RETURN) {
+        var value = returned;
+        returned = null;
+        return value;
+      }
+
+      return null;
+    } finally {
+      this.frame = enclosingFrame;
+      this.upvalues = enclosingUpvalues;
+    }
+  }
+
+  // Upvalues of a new closure of the function, see Interpreter.capture
+  private Cell[] capture(int node, Cell superCell) {
+    var captures = declaration(node).frame().captures;
+    var cells = new Cell[captures.length];
+    for (var i = 0; i < captures.length; i++) {
+      var capture = captures[i];
+      if (capture == Frame.SUPER) {
+        cells[i] = superCell;
+      } else if (Frame.isLocal(capture)) {
+        cells[i] = (Cell)frame[Frame.index(capture)];
+      } else {
+        cells[i] = upvalues[Frame.index(capture)];
+      }
+    }
+
+    return cells;
+  }
+
+  private Object evaluateOptional(int node) {
+    return node == Arena.NONE ? null : evaluate(node);
+  }
+
+  private Object evaluate(int node) {
+    return switch (arena.kind(node)) {
+      case Arena.Kind.LITERAL -> interpreter.literal(arena.constant(arena.field(node, 0)));
+      case Arena.Kind.GROUPING -> evaluate(arena.field(node, 0));
+      case Arena.Kind.LOGICAL -> {
+        var left = evaluate(arena.field(node, 0));
+        if ((arena.tokenType(arena.field(node, 1)) == TokenType.OR) == interpreter.isTruthy(left)) {
+          yield left;
+        }
+
+        yield evaluate(arena.field(node, 2));
+      }
+      case Arena.Kind.BINARY -> evalBinary(node);
+      case Arena.Kind.UNARY -> {
+        var operator = arena.field(node, 0);
+        var value = evaluate(arena.field(node, 1));
+        if (arena.tokenType(operator) == TokenType.BANG) {
+          yield !interpreter.isTruthy(value);
+        }
+
+        yield interpreter.negate(token(operator), value);
+      }
+      case Arena.Kind.VAR, Arena.Kind.THIS -> lookup(node, 1);
+      case Arena.Kind.ASSIGN -> {
+        var value = evaluate(arena.field(node, 1));
+        assign(node, 2, value);
+        yield value;
+      }
+      case Arena.Kind.CALL -> evalCall(node);
+      case Arena.Kind.INSTANCE_GET -> instance(arena.field(node, 0), arena.field(node, 1)).get(token(arena.field(node, 1)));
+      case Arena.Kind.INSTANCE_SET -> {
+        var instance = instance(arena.field(node, 0), arena.field(node, 1));
+        var value = evaluate(arena.field(node, 2));
+        instance.set(token(arena.field(node, 1)), value);
+        yield value;
+      }
+      case Arena.Kind.SUPER -> evalSuper(node);
+      default -> null;
+    };
+  }
+
+  // Both operands are evaluated before either is checked, the same as the
+  // tree walker does for operands that aren't numeric expressions.
+  private Object evalBinary(int node) {
+    var left = evaluate(arena.field(node, 0));
+    var right = evaluate(arena.field(node, 2));
+
+    var operator = arena.field(node, 1);
+    return switch (arena.tokenType(operator)) {
+      case TokenType.EQUAL_EQUAL -> interpreter.isEqual(left, right);
+      case TokenType.BANG_EQUAL -> !interpreter.isEqual(left, right);
+      default -> interpreter.binary(token(operator), left, right);
+    };
+  }
+
+  private LoxInstance instance(int node, int identifier) {
+    var instance = evaluate(node);
+    if (!(instance instanceof LoxInstance)) {
+      throw new RuntimeError(token(identifier), "Only instances of classes have properties.");
+    }
+
+    return (LoxInstance)instance;
+  }
+
+  private Object evalCall(int node) {
+    // Methods are called on their instance directly instead of being bound to
+    // it first.
+    var callee = arena.field(node, 0);
+    if (arena.kind(callee) == Arena.Kind.INSTANCE_GET) {
+      var identifier = arena.field(callee, 1);
+      var receiver = instance(arena.field(callee, 0), identifier);
+      var method = receiver.method(arena.lexeme(identifier));
+      if (method != null) {
+        return invoke(node, method, receiver);
+      }
+
+      return call(node, receiver.get(token(identifier)));
+    }
+
+    return call(node, evaluate(callee));
+  }
+
+  private Object call(int node, Object callee) {
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(token(arena.field(node, 1)), "Calls can only be made on functions and classes.");
+    }
+
+    var func = (LoxCallable)callee;
+    checkArity(node, func.arity());
+
+    return switch (arena.field(node, 2)) {
+      case 0 -> func.call0(interpreter);
+      case 1 -> func.call1(interpreter, argument(node, 0));
+      case 2 -> func.call2(interpreter, argument(node, 0), argument(node, 1));
+      case 3 -> func.call3(interpreter, argument(node, 0), argument(node, 1), argument(node, 2));
+      case 4 -> func.call4(interpreter, argument(node, 0), argument(node, 1), argument(node, 2), argument(node, 3));
+      default -> func.call(interpreter, arguments(node));
+    };
+  }
+
+  private Object invoke(int node, LoxFunction method, LoxInstance receiver) {
+    checkArity(node, method.arity());
+
+    return switch (arena.field(node, 2)) {
+      case 0 -> method.invoke0(interpreter, receiver);
+      case 1 -> method.invoke1(interpreter, receiver, argument(node, 0));
+      case 2 -> method.invoke2(interpreter, receiver, argument(node, 0), argument(node, 1));
+      case 3 -> method.invoke3(interpreter, receiver, argument(node, 0), argument(node, 1), argument(node, 2));
+      case 4 -> method.invoke4(interpreter, receiver, argument(node, 0), argument(node, 1), argument(node, 2), argument(node, 3));
+      default -> method.invoke(interpreter, receiver, arguments(node));
+    };
+  }
+
+  private void checkArity(int node, int arity) {
+    var count = arena.field(node, 2);
+    if (count != arity) {
+      throw new RuntimeError(token(arena.field(node, 1)), String.format("Expected %d arguments but got %d", arity, count));
+    }
+  }
+
+  private Object argument(int node, int index) {
+    return evaluate(arena.field(node, 3 + index));
+  }
+
+  private Object[] arguments(int node) {
+    var values = new Object[arena.field(node, 2)];
+    for (var i = 0; i < values.length; i++) {
+      values[i] = argument(node, i);
+    }
+
+    return values;
+  }
+
+  private Object evalSuper(int node) {
+    var superclass = (LoxClass)lookup(node, 2);
+    var instance = (LoxInstance)lookup(node, 4);
+
+    var method = arena.field(node, 1);
+    var identifier = arena.lexeme(method);
+    var function = superclass.getMethod(identifier);
+    if (function == null) {
+      throw new RuntimeError(token(method), String.format("Undefined instance property '%s'.", identifier));
+    }
+
+    return function.bind(instance);
+  }
+
+  // Locals are a kind and an index in two of the node's fields, local is the
+  // first of them. The variable's token is always the node's first field.
+  private Object lookup(int node, int local) {
+    var index = arena.field(node, local + 1);
+    return switch (localKinds[arena.field(node, local)]) {
+      case GLOBAL -> interpreter.global.get(token(arena.field(node, 0)));
+      case FRAME -> frame[index];
+      case CELL -> ((Cell)frame[index]).value;
+      case UPVALUE -> upvalues[index].value;
+    };
+  }
+
+  private void define(int node, int local, Object value) {
+    var index = arena.field(node, local + 1);
+    switch (localKinds[arena.field(node, local)]) {
+      case GLOBAL -> interpreter.global.define(lexeme(node, 0), value);
+      case FRAME -> frame[index] = value;
+      case CELL -> frame[index] = new Cell(value);
+      case UPVALUE -> throw new IllegalStateException("Can't declare an upvalue.");
+    }
+  }
+
+  private void assign(int node, int local, Object value) {
+    var index = arena.field(node, local + 1);
+    switch (localKinds[arena.field(node, local)]) {
+      case GLOBAL -> interpreter.global.assign(token(arena.field(node, 0)), value);
+      case FRAME -> frame[index] = value;
+      case CELL -> ((Cell)frame[index]).value = value;
+      case UPVALUE -> upvalues[index].value = value;
+    }
+  }
+
+  // Lexeme of the token in one of the node's fields
+  private String lexeme(int node, int index) {
+    return arena.lexeme(arena.field(node, index));
+  }
+
+  private Token token(int index) {
+    if (tokens[index] == null) {
+      tokens[index] = arena.token(index);
+    }
+
+    return tokens[index];
+  }
+}
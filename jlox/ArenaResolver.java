@@ -0,0 +1,469 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+// The Resolver for a program that was encoded in an Arena before it was
+// resolved. It walks the nodes in the same order and reports the same errors,
+// but where it finds each variable is written into the node's fields, each
+// scope's size into its block or for loop, and each function's frame into
+// the arena's frames. Tokens are only built to report an error.
+class ArenaResolver {
+  private static class Variable {
+    final int slot;
+    boolean defined = false;
+    boolean captured = false;
+
+    // Offset in nodes of the kind of every reference to it from the function
+    // it was declared in, which have to go through its cell if it ends up
+    // captured.
+    final List<Integer> locals = new ArrayList<>();
+
+    Variable(int slot) {
+      this.slot = slot;
+    }
+  }
+
+  // A function being resolved, or the top level outside of any function
+  private static class FunctionScope {
+    final FunctionScope enclosing;
+    final Stack<Map<String, Variable>> scopes = new Stack<>();
+    final List<Integer> captures = new ArrayList<>();
+    int slots = 0;
+    int size = 0;
+
+    FunctionScope(FunctionScope enclosing) {
+      this.enclosing = enclosing;
+    }
+
+    Variable find(String identifier) {
+      // Inner most scope to outer most
+      for (var i = scopes.size() - 1; i >= 0; i--) {
+        var variable = scopes.get(i).get(identifier);
+        if (variable != null) {
+          return variable;
+        }
+      }
+
+      return null;
+    }
+  }
+
+  private final Arena arena;
+  private final int[] nodes;
+
+  private int[] frames = new int[256];
+  private int framesSize = 0;
+
+  private FunctionScope function = new FunctionScope(null);
+  private LoopType currentLoop = LoopType.NONE;
+  private FunctionType currentFunction = FunctionType.NONE;
+  private ClassType currentClass = ClassType.NONE;
+
+  private ArenaResolver(Arena arena) {
+    this.arena = arena;
+    this.nodes = arena.nodes;
+  }
+
+  // Errors are reported as usual, the arena is only fit to run without any
+  static void resolve(Arena arena) {
+    var resolver = new ArenaResolver(arena);
+    for (var stmt : arena.stmts) {
+      resolver.resolveStmt(stmt);
+    }
+
+    arena.frames = Arrays.copyOf(resolver.frames, resolver.framesSize);
+  }
+
+  private void resolveStmt(int node) {
+    switch (arena.kind(node)) {
+      case Arena.Kind.EXPR_STMT -> resolveExpr(arena.field(node, 0));
+      case Arena.Kind.VAR_STMT -> resolveVarStmt(node);
+      case Arena.Kind.BLOCK -> resolveBlock(node);
+      case Arena.Kind.IF -> resolveIf(node);
+      case Arena.Kind.WHILE -> resolveWhile(node);
+      case Arena.Kind.FOR -> resolveFor(node);
+      case Arena.Kind.FUNCTION -> resolveFunction(node);
+      case Arena.Kind.RETURN -> resolveReturn(node);
+      case Arena.Kind.BREAK -> resolveJump(node, "Can't break outside of a loop body.");
+      case Arena.Kind.CONTINUE -> resolveJump(node, "Can't continue outside of a loop body.");
+      case Arena.Kind.CLASS -> resolveClass(node);
+      default -> {}
+    }
+  }
+
+  // list is the offset of the count, the offsets of the statements follow it
+  private void resolveStmts(int list) {
+    for (var i = 0; i < nodes[list]; i++) {
+      resolveStmt(nodes[list + 1 + i]);
+    }
+  }
+
+  private void resolveExpr(int node) {
+    switch (arena.kind(node)) {
+      case Arena.Kind.GROUPING -> resolveExpr(arena.field(node, 0));
+      case Arena.Kind.LOGICAL, Arena.Kind.BINARY -> {
+        resolveExpr(arena.field(node, 0));
+        resolveExpr(arena.field(node, 2));
+      }
+      case Arena.Kind.UNARY -> resolveExpr(arena.field(node, 1));
+      case Arena.Kind.VAR -> resolveVar(node);
+      case Arena.Kind.ASSIGN -> {
+        resolveExpr(arena.field(node, 1));
+        resolveLocal(offset(node, 2), lexeme(node, 0));
+      }
+      case Arena.Kind.CALL -> {
+        resolveExpr(arena.field(node, 0));
+        for (var i = 0; i < arena.field(node, 2); i++) {
+          resolveExpr(arena.field(node, 3 + i));
+        }
+      }
+      case Arena.Kind.INSTANCE_GET -> resolveExpr(arena.field(node, 0));
+      case Arena.Kind.INSTANCE_SET -> {
+        resolveExpr(arena.field(node, 2));
+        resolveExpr(arena.field(node, 0));
+      }
+      case Arena.Kind.THIS -> resolveThis(node);
+      case Arena.Kind.SUPER -> resolveSuper(node);
+      default -> {}
+    }
+  }
+
+  private void resolveVarStmt(int node) {
+    declare(arena.field(node, 0), offset(node, 2));
+
+    var value = arena.field(node, 1);
+    if (value != Arena.NONE) {
+      resolveExpr(value);
+    }
+
+    define(lexeme(node, 0));
+  }
+
+  private void resolveBlock(int node) {
+    beginScope();
+    resolveStmts(node + 2);
+    endScope();
+
+    nodes[offset(node, 0)] = function.size;
+  }
+
+  private void resolveIf(int node) {
+    resolveExpr(arena.field(node, 0));
+    resolveStmt(arena.field(node, 1));
+
+    if (arena.field(node, 2) != Arena.NONE) {
+      resolveStmt(arena.field(node, 2));
+    }
+  }
+
+  private void resolveWhile(int node) {
+    var enclosingLoop = currentLoop;
+    currentLoop = LoopType.WHILE;
+
+    resolveExpr(arena.field(node, 0));
+    resolveStmt(arena.field(node, 1));
+
+    currentLoop = enclosingLoop;
+  }
+
+  private void resolveFor(int node) {
+    var enclosingLoop = currentLoop;
+    currentLoop = LoopType.FOR;
+    beginScope();
+
+    if (arena.field(node, 0) != Arena.NONE) {
+      resolveStmt(arena.field(node, 0));
+    }
+
+    resolveExpr(arena.field(node, 1));
+
+    if (arena.field(node, 2) != Arena.NONE) {
+      resolveExpr(arena.field(node, 2));
+    }
+
+    resolveStmt(arena.field(node, 3));
+
+    endScope();
+    nodes[offset(node, 4)] = function.size;
+    currentLoop = enclosingLoop;
+  }
+
+  private void resolveFunction(int node) {
+    // Define immediately after declaring to allow recursive references to the function
+    declare(arena.field(node, 0), offset(node, 1));
+    define(lexeme(node, 0));
+
+    resolveFunctionLiteral(node, FunctionType.FUNCTION);
+  }
+
+  private void resolveReturn(int node) {
+    var keyword = arena.field(node, 0);
+    if (currentFunction == FunctionType.NONE) {
+      Lox.error(arena.token(keyword), "Can't return outside of a function body.");
+    }
+
+    if (arena.field(node, 1) != Arena.NONE) {
+      if (currentFunction == FunctionType.INITIALIZER) {
+        Lox.error(arena.token(keyword), "Can't return with a value from an initializer.");
+      }
+
+      resolveExpr(arena.field(node, 1));
+    }
+  }
+
+  private void resolveJump(int node, String message) {
+    if (currentLoop == LoopType.NONE) {
+      Lox.error(arena.token(arena.field(node, 0)), message);
+    }
+  }
+
+  private void resolveClass(int node) {
+    // Define immediately after declaring to allow recursive references to the class
+    declare(arena.field(node, 0), offset(node, 2));
+    define(lexeme(node, 0));
+
+    var enclosingClass = currentClass;
+    currentClass = ClassType.CLASS;
+
+    var superclass = arena.field(node, 1);
+    if (superclass != Arena.NONE) {
+      if (lexeme(node, 0).equals(lexeme(superclass, 0))) {
+        Lox.error(arena.token(arena.field(superclass, 0)), "A class can't inherit itself.");
+      }
+
+      currentClass = ClassType.SUBCLASS;
+
+      resolveExpr(superclass);
+    }
+
+    for (var i = 0; i < arena.field(node, 4); i++) {
+      var method = arena.field(node, 5 + i);
+
+      var type = FunctionType.METHOD;
+      if (lexeme(method, 0).equals("init")) {
+        type = FunctionType.INITIALIZER;
+      }
+
+      resolveFunctionLiteral(method, type);
+    }
+
+    currentClass = enclosingClass;
+  }
+
+  private void resolveVar(int node) {
+    var identifier = lexeme(node, 0);
+    var variable = function.scopes.isEmpty() ? null : function.scopes.peek().get(identifier);
+    if (variable != null && !variable.defined) {
+      Lox.error(arena.token(arena.field(node, 0)), "Cannot refer to variable in its own initializer.");
+    }
+
+    resolveLocal(offset(node, 1), identifier);
+  }
+
+  private void resolveThis(int node) {
+    if (currentClass == ClassType.NONE) {
+      Lox.error(arena.token(arena.field(node, 0)), "Can't use 'this' outside of a class.");
+    }
+
+    resolveLocal(offset(node, 1), "this");
+  }
+
+  private void resolveSuper(int node) {
+    if (currentClass == ClassType.NONE) {
+      Lox.error(arena.token(arena.field(node, 0)), "Can't use 'super' outside of a class.");
+    } else if (currentClass == ClassType.CLASS) {
+      Lox.error(arena.token(arena.field(node, 0)), "Can't use 'super' in a class with no super class.");
+    }
+
+    resolveLocal(offset(node, 2), "super");
+    resolveLocal(offset(node, 4), "this");
+  }
+
+  private void resolveFunctionLiteral(int node, FunctionType type) {
+    var enclosingFunction = currentFunction;
+    currentFunction = type;
+    function = new FunctionScope(function);
+    beginScope();
+
+    // Methods have their receiver in the first slot
+    var params = new ArrayList<Variable>();
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+      if (currentClass == ClassType.SUBCLASS) {
+        function.captures.add(Frame.SUPER);
+      }
+
+      params.add(declare("this"));
+      define("this");
+    }
+
+    for (var i = 0; i < arena.field(node, 5); i++) {
+      var param = arena.field(node, 6 + i);
+      params.add(declare(param));
+      define(arena.lexeme(param));
+    }
+
+    resolveStmts(arena.body(node));
+    endScope();
+
+    nodes[offset(node, 3)] = function.size;
+    nodes[offset(node, 4)] = frame(params, function.captures);
+
+    function = function.enclosing;
+    currentFunction = enclosingFunction;
+  }
+
+  // Adds the function's entry to frames, returning its offset
+  private int frame(List<Variable> params, List<Integer> captures) {
+    while (framesSize + params.size() + captures.size() + 2 > frames.length) {
+      frames = Arrays.copyOf(frames, frames.length * 2);
+    }
+
+    var offset = framesSize;
+    frames[framesSize++] = params.size();
+    for (var param : params) {
+      frames[framesSize++] = param.captured ? 1 : 0;
+    }
+
+    frames[framesSize++] = captures.size();
+    for (var capture : captures) {
+      frames[framesSize++] = capture;
+    }
+
+    return offset;
+  }
+
+  // local is the offset of the kind, the index follows it
+  private void resolveLocal(int local, String identifier) {
+    var variable = function.find(identifier);
+    if (variable != null) {
+      setLocal(local, Local.Kind.FRAME, variable.slot);
+      variable.locals.add(local);
+      return;
+    }
+
+    var upvalue = resolveUpvalue(function, identifier);
+    if (upvalue != -1) {
+      setLocal(local, Local.Kind.UPVALUE, upvalue);
+      return;
+    }
+
+    setLocal(local, Local.Kind.GLOBAL, 0);
+  }
+
+  // Index of the function's upvalue for a local of an enclosing function,
+  // adding it and the upvalues it's captured through along the way. Returns -1
+  // if there's no such local and so the variable is global.
+  private int resolveUpvalue(FunctionScope function, String identifier) {
+    if (identifier.equals("super") && function.captures.indexOf(Frame.SUPER) == 0) {
+      return 0;
+    }
+
+    if (function.enclosing == null) {
+      return -1;
+    }
+
+    var variable = function.enclosing.find(identifier);
+    if (variable != null) {
+      variable.captured = true;
+      return capture(function, Frame.local(variable.slot));
+    }
+
+    var upvalue = resolveUpvalue(function.enclosing, identifier);
+    if (upvalue != -1) {
+      return capture(function, Frame.upvalue(upvalue));
+    }
+
+    return -1;
+  }
+
+  private int capture(FunctionScope function, int capture) {
+    var index = function.captures.indexOf(capture);
+    if (index == -1) {
+      index = function.captures.size();
+      function.captures.add(capture);
+    }
+
+    return index;
+  }
+
+  private void beginScope() {
+    function.scopes.push(new HashMap<String, Variable>());
+  }
+
+  // The scope's slots are free again, and references to its variables that
+  // were captured are now known to have to go through their cells.
+  private void endScope() {
+    var scope = function.scopes.pop();
+    function.slots -= scope.size();
+
+    for (var variable : scope.values()) {
+      if (variable.captured) {
+        for (var local : variable.locals) {
+          nodes[local] = Local.Kind.CELL.ordinal();
+        }
+      }
+    }
+  }
+
+  // Variables declared outside of any scope are global and stay that way
+  private void declare(int identifier, int local) {
+    var variable = declare(identifier);
+    if (variable == null) {
+      return;
+    }
+
+    setLocal(local, Local.Kind.FRAME, variable.slot);
+    variable.locals.add(local);
+  }
+
+  private Variable declare(int identifier) {
+    var lexeme = arena.lexeme(identifier);
+    if (!function.scopes.isEmpty() && function.scopes.peek().containsKey(lexeme)) {
+      Lox.error(arena.token(identifier), "A variable with this name already exists in this scope.");
+    }
+
+    return declare(lexeme);
+  }
+
+  private Variable declare(String identifier) {
+    if (function.scopes.isEmpty()) {
+      return null;
+    }
+
+    var scope = function.scopes.peek();
+    var variable = scope.get(identifier);
+    if (variable == null) {
+      variable = new Variable(function.slots++);
+      function.size = Math.max(function.size, function.slots);
+      scope.put(identifier, variable);
+    }
+
+    return variable;
+  }
+
+  private void define(String identifier) {
+    if (function.scopes.isEmpty()) {
+      return;
+    }
+
+    function.scopes.peek().get(identifier).defined = true;
+  }
+
+  private void setLocal(int local, Local.Kind kind, int index) {
+    nodes[local] = kind.ordinal();
+    nodes[local + 1] = index;
+  }
+
+  // Offset in nodes of one of the node's fields
+  private static int offset(int node, int index) {
+    return node + 1 + index;
+  }
+
+  // Lexeme of the token in one of the node's fields
+  private String lexeme(int node, int index) {
+    return arena.lexeme(arena.field(node, index));
+  }
+}
@@ -0,0 +1,173 @@
+import java.util.List;
+
+// Prints statements as s-expressions for --dump-ast, one top level statement
+// after another with the statements nested in them indented. Variables are
+// printed by name, not by where the resolver found them.
+//
+//   (fun fib (n)
+//     (if (< n 2)
+//       (return n))
+//     (return (+ (call fib (- n 1)) (call fib (- n 2)))))
+class AstPrinter {
+  private final StringBuilder out = new StringBuilder();
+  private int depth = 0;
+
+  static String print(List<Stmt> stmts) {
+    var printer = new AstPrinter();
+    for (var stmt : stmts) {
+      printer.print(stmt);
+      printer.out.append('\n');
+    }
+
+    return printer.out.toString();
+  }
+
+  private void print(Stmt stmt) {
+    switch (stmt) {
+      case Stmt.ExprStmt exprStmt -> open("expr", exprStmt.expr());
+      case Stmt.Var var -> {
+        out.append("(var ").append(var.identifier().lexeme());
+        if (var.value() != null) {
+          out.append(' ').append(print(var.value()));
+        }
+      }
+      case Stmt.Block block -> {
+        out.append("(block");
+        nested(block.stmts());
+      }
+      case Stmt.If ifStmt -> {
+        open("if", ifStmt.condition());
+        nested(ifStmt.ifStmt());
+        if (ifStmt.elseStmt() != null) {
+          nested(ifStmt.elseStmt());
+        }
+      }
+      case Stmt.While whileStmt -> {
+        open("while", whileStmt.condition());
+        nested(whileStmt.stmt());
+      }
+      case Stmt.For forStmt -> {
+        out.append("(for ");
+        if (forStmt.initializer() != null) {
+          print(forStmt.initializer());
+        } else {
+          out.append("()");
+        }
+
+        out.append(' ').append(print(forStmt.condition()));
+        out.append(' ').append(forStmt.increment() == null ? "()" : print(forStmt.increment()));
+        nested(forStmt.stmt());
+      }
+      case Stmt.Function function -> printFunction("fun", function);
+      case Stmt.Class classStmt -> {
+        out.append("(class ").append(classStmt.identifier().lexeme());
+        if (classStmt.superclass() != null) {
+          out.append(" < ").append(classStmt.superclass().identifier().lexeme());
+        }
+
+        depth++;
+        for (var method : classStmt.methods()) {
+          newLine();
+          printFunction("method", method);
+          out.append(')');
+        }
+        depth--;
+      }
+      case Stmt.Return returnStmt -> {
+        out.append("(return");
+        if (returnStmt.expr() != null) {
+          out.append(' ').append(print(returnStmt.expr()));
+        }
+      }
+      case Stmt.Break breakStmt -> out.append("(break");
+      case Stmt.Continue continueStmt -> out.append("(continue");
+      default -> throw new IllegalStateException("Unknown statement.");
+    }
+
+    out.append(')');
+  }
+
+  // Bodies that are only pre-parsed are printed as '...'
+  private void printFunction(String keyword, Stmt.Function function) {
+    out.append('(').append(keyword).append(' ').append(function.identifier().lexeme()).append(" (");
+    for (var i = 0; i < function.params().size(); i++) {
+      out.append(i == 0 ? "" : " ").append(function.params().get(i).lexeme());
+    }
+    out.append(')');
+
+    if (!function.body().isParsed()) {
+      out.append(" ...");
+      return;
+    }
+
+    nested(function.body().stmts());
+  }
+
+  private void open(String keyword, Expr expr) {
+    out.append('(').append(keyword).append(' ').append(print(expr));
+  }
+
+  private void nested(Stmt stmt) {
+    nested(List.of(stmt));
+  }
+
+  private void nested(List<Stmt> stmts) {
+    depth++;
+    for (var stmt : stmts) {
+      newLine();
+      print(stmt);
+    }
+    depth--;
+  }
+
+  private void newLine() {
+    out.append('\n').append("  ".repeat(depth));
+  }
+
+  private static String print(Expr expr) {
+    return switch (expr) {
+      case Expr.Literal literal -> literal(literal.value());
+      case Expr.Grouping grouping -> parenthesize("group", grouping.expr());
+      case Expr.Logical logical -> parenthesize(logical.operator().lexeme(), logical.left(), logical.right());
+      case Expr.Binary binary -> parenthesize(binary.operator().lexeme(), binary.left(), binary.right());
+      case Expr.Unary unary -> parenthesize(unary.operator().lexeme(), unary.expr());
+      case Expr.Var var -> var.identifier().lexeme();
+      case Expr.Assign assign -> String.format("(= %s %s)", assign.identifier().lexeme(), print(assign.value()));
+      case Expr.Call call -> {
+        var args = new StringBuilder();
+        for (var arg : call.args()) {
+          args.append(' ').append(print(arg));
+        }
+
+        yield String.format("(call %s%s)", print(call.callee()), args);
+      }
+      case Expr.InstanceGet get -> String.format("(. %s %s)", print(get.instance()), get.identifier().lexeme());
+      case Expr.InstanceSet set -> String.format("(= (. %s %s) %s)", print(set.instance()), set.identifier().lexeme(), print(set.value()));
+      case Expr.This thisExpr -> "this";
+      case Expr.Super superExpr -> String.format("(super %s)", superExpr.method().lexeme());
+      default -> throw new IllegalStateException("Unknown expression.");
+    };
+  }
+
+  private static String parenthesize(String operator, Expr... exprs) {
+    var out = new StringBuilder("(").append(operator);
+    for (var expr : exprs) {
+      out.append(' ').append(print(expr));
+    }
+
+    return out.append(')').toString();
+  }
+
+  // Numbers the same way print shows them, strings quoted
+  private static String literal(Object value) {
+    return switch (value) {
+      case null -> "nil";
+      case String string -> String.format("\"%s\"", string);
+      case Double number -> {
+        var string = number.toString();
+        yield string.endsWith(".0") ? string.substring(0, string.length() - 2) : string;
+      }
+      default -> value.toString();
+    };
+  }
+}
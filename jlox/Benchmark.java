@@ -0,0 +1,543 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+// Compares the performance of alternative implementations within jlox, run
+// with ./bench.sh <benchmark> [args].
+class Benchmark {
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int ITERATIONS = 10;
+
+  private interface Run {
+    void run();
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      usage();
+    }
+
+    switch (args[0]) {
+      case "scanner" -> scanner(args);
+      case "frontend" -> frontend(args);
+      case "arena" -> arena(args);
+      case "deep" -> deep(args);
+      case "cache" -> cache(args);
+      case "repl" -> repl(args);
+      case "interpret" -> interpret(args);
+      default -> usage();
+    }
+  }
+
+  private static void usage() {
+    System.out.println("Usage: bench.sh scanner [path]");
+    System.out.println("       bench.sh frontend <path>");
+    System.out.println("       bench.sh arena <path>");
+    System.out.println("       bench.sh deep [depth]");
+    System.out.println("       bench.sh cache <path>");
+    System.out.println("       bench.sh repl [lines]");
+    System.out.println("       bench.sh interpret [path]");
+    System.exit(64);
+  }
+
+  // Scanner throughput in MB/s with and without skipping a word at a time. The
+  // source is either the given file or the examples repeated to about 64MB.
+  private static void scanner(String[] args) throws IOException {
+    ByteBuffer source;
+    if (args.length > 1) {
+      source = map(args[1]);
+    } else {
+      source = ByteBuffer.wrap(examples(64 * 1024 * 1024));
+    }
+
+    var scalar = new Scanner(source, false).scanTokens();
+    var words = new Scanner(source, true).scanTokens();
+    if (!sameTokens(scalar, words)) {
+      System.err.println("Scanners produced different tokens.");
+      System.exit(70);
+    }
+
+    var megabytes = source.limit() / (1024.0 * 1024.0);
+    System.out.println(String.format("%.1fMB, %d tokens", megabytes, scalar.size()));
+
+    for (var wordAtATime : new boolean[]{ false, true }) {
+      var seconds = time(() -> new Scanner(source, wordAtATime).scanTokens());
+      System.out.println(String.format("%-8s %8.1f MB/s", wordAtATime ? "word" : "scalar", megabytes / seconds));
+    }
+  }
+
+  // Time to scan, parse and resolve a file serially and then with the parallel
+  // front end on pools of 1, 2, 4... up to the number of processors.
+  private static void frontend(String[] args) throws IOException, InterruptedException, ExecutionException {
+    if (args.length < 2) {
+      usage();
+    }
+
+    var source = map(args[1]);
+    if (ParallelFrontEnd.compile(source, false) == null) {
+      System.err.println("Parallel front end fell back to serial, check the file for errors.");
+      System.exit(65);
+    }
+
+    var serial = time(() -> {
+      var scanner = new Scanner(source);
+      scanner.scanTokens();
+      new Resolver().resolve(new Parser(scanner, false).parse());
+    });
+    System.out.println(String.format("%-12s %8.1f ms", "serial", serial * 1000));
+
+    var processors = Runtime.getRuntime().availableProcessors();
+    for (var parallelism = 1; ; parallelism = Math.min(parallelism * 2, processors)) {
+      var pool = new ForkJoinPool(parallelism);
+      var seconds = pool.submit(() -> time(() -> ParallelFrontEnd.compile(source, false))).get();
+      pool.shutdown();
+
+      var name = String.format("parallel %d", parallelism);
+      System.out.println(String.format("%-12s %8.1f ms %6.2fx", name, seconds * 1000, serial / seconds));
+
+      if (parallelism == processors) {
+        break;
+      }
+    }
+  }
+
+  // Heap retained by a fully parsed program as records and as an arena, along
+  // with the time to encode it, to decode it back to records and to resolve it
+  // either way. Resolving the arena has to come out the same as encoding the
+  // resolved records.
+  private static void arena(String[] args) throws IOException {
+    if (args.length < 2) {
+      usage();
+    }
+
+    var source = map(args[1]);
+    var before = usedHeap();
+    var stmts = parse(source);
+    var records = usedHeap() - before;
+    if (Lox.hadError()) {
+      System.exit(65);
+    }
+
+    before = usedHeap();
+    var arena = Arena.encode(stmts);
+    var encoded = usedHeap() - before;
+
+    if (!Arrays.equals(Arena.encode(arena.decode()).nodes, arena.nodes)) {
+      System.err.println("Decoded program differs from the original.");
+      System.exit(70);
+    }
+
+    new Resolver().resolve(stmts);
+    ArenaResolver.resolve(arena);
+    var resolved = Arena.encode(stmts);
+    if (!Arrays.equals(resolved.nodes, arena.nodes) || !Arrays.equals(resolved.frames, arena.frames)) {
+      System.err.println("Resolved arena differs from the resolved program.");
+      System.exit(70);
+    }
+
+    System.out.println(String.format("%d statements, %d ints, %d tokens, %d constants", stmts.size(), arena.nodes.length, arena.tokenType.length, arena.constants.length));
+    System.out.println(String.format("%-14s %8.1f MB", "records", records / (1024.0 * 1024.0)));
+    System.out.println(String.format("%-14s %8.1f MB", "arena", encoded / (1024.0 * 1024.0)));
+
+    var encode = time(() -> Arena.encode(stmts));
+    System.out.println(String.format("%-14s %8.1f ms", "encode", encode * 1000));
+
+    var decode = time(() -> arena.decode());
+    System.out.println(String.format("%-14s %8.1f ms", "decode", decode * 1000));
+
+    var parsed = time(() -> parse(source));
+    System.out.println(String.format("%-14s %8.1f ms", "parse", parsed * 1000));
+
+    // Both resolve in place, doing it again comes out the same
+    var resolve = time(() -> new Resolver().resolve(stmts));
+    System.out.println(String.format("%-14s %8.1f ms", "resolve", resolve * 1000));
+
+    var resolveArena = time(() -> ArenaResolver.resolve(arena));
+    System.out.println(String.format("%-14s %8.1f ms", "resolve arena", resolveArena * 1000));
+  }
+
+  // Runs a loop over assignments to a local nested depth deep, so each
+  // iteration looks up and assigns the variable depth times. Reports the time
+  // per assignment, which should stay flat as the depth grows.
+  private static void deep(String[] args) {
+    var depth = 64;
+    if (args.length > 1) {
+      depth = Integer.parseInt(args[1]);
+    }
+
+    var expr = "x";
+    for (var i = 0; i < depth; i++) {
+      expr = String.format("(x = %s - x)", expr);
+    }
+
+    var iterations = 10000;
+    var source = String.format("""
+      fun run() {
+        var x = 1
+        var i = 0
+        while (i < %d) {
+          x = %s
+          i = i + 1
+        }
+      }
+      run()
+      """, iterations, expr);
+
+    var scanner = new Scanner(source);
+    scanner.scanTokens();
+    var stmts = new Parser(scanner, false).parse();
+    new Resolver().resolve(stmts);
+    var interpreter = new Interpreter();
+
+    var seconds = time(() -> interpreter.interpret(stmts));
+    System.out.println(String.format("depth %d: %8.1f ms, %6.1f ns per assignment", depth, seconds * 1000, seconds * 1e9 / iterations / depth));
+  }
+
+  // Time to get a file ready to run, cold by compiling it in full and writing
+  // the cache, then warm by loading the cache instead.
+  private static void cache(String[] args) throws IOException {
+    if (args.length < 2) {
+      usage();
+    }
+
+    var source = map(args[1]);
+    var cache = Files.createTempFile("benchmark", ".loxc");
+
+    try {
+      var cold = time(() -> {
+        var stmts = parse(source);
+        new Resolver().resolve(stmts);
+        ProgramCache.store(cache, source, Arena.encode(stmts));
+      });
+      System.out.println(String.format("%-8s %8.1f ms", "cold", cold * 1000));
+
+      if (ProgramCache.load(cache, source) == null) {
+        System.err.println("Cache wasn't written, check the file for errors.");
+        System.exit(65);
+      }
+
+      var warm = time(() -> {
+        try {
+          ProgramCache.load(cache, source).decode();
+        } catch (IOException error) {
+          throw new UncheckedIOException(error);
+        }
+      });
+      System.out.println(String.format("%-8s %8.1f ms %6.2fx", "warm", warm * 1000, cold / warm));
+    } finally {
+      Files.deleteIfExists(cache);
+    }
+  }
+
+  // Soak test of a REPL session, runs lines that keep redefining the same
+  // functions, classes and variables and reports the heap retained as it goes.
+  // It should stay flat however many lines are run.
+  private static void repl(String[] args) {
+    var lines = 1_000_000;
+    if (args.length > 1) {
+      lines = Integer.parseInt(args[1]);
+    }
+
+    var snippets = new String[]{
+      "fun f%1$d(x) { var y = x + %2$d; return y; }",
+      "var v%1$d = f%1$d(%2$d)",
+      "class C%1$d { init(a) { this.a = a; } get() { return this.a; } }",
+      "var o%1$d = C%1$d(v%1$d).get()",
+      "fun g%1$d() { var n = 0; fun inc() { n = n + 1; return n; } return inc; }",
+      "var c%1$d = g%1$d(); c%1$d(); c%1$d()",
+    };
+
+    var start = System.nanoTime();
+    for (var i = 0; i < lines; i++) {
+      var snippet = snippets[i % snippets.length];
+      Lox.runLine(String.format(snippet, (i / snippets.length) % 64, i));
+
+      if ((i + 1) % (lines / 10) == 0) {
+        var seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%9d lines %8.1f MB %8.1f us per line", i + 1, usedHeap() / (1024.0 * 1024.0), seconds * 1e6 / (i + 1)));
+      }
+    }
+  }
+
+  // Time to run each of the workloads below, or the given file, once it has
+  // been compiled, along with how much it allocates per run. Each one runs
+  // on every backend, with and without dual numbers.
+  private static void interpret(String[] args) throws IOException {
+    var workloads = new LinkedHashMap<String, String>();
+    if (args.length > 1) {
+      workloads.put(args[1], Files.readString(Paths.get(args[1])));
+    } else {
+      workloads.put("fib", FIB);
+      workloads.put("loop", LOOP);
+      workloads.put("closures", CLOSURES);
+      workloads.put("control", CONTROL);
+      workloads.put("methods", METHODS);
+      workloads.put("numeric", NUMERIC);
+      workloads.put("integers", INTEGERS);
+    }
+
+    for (var workload : workloads.entrySet()) {
+      var stmts = parse(ByteBuffer.wrap(workload.getValue().getBytes(StandardCharsets.UTF_8)));
+      new Resolver().resolve(stmts);
+
+      for (var backend : Interpreter.Backend.values()) {
+        for (var dualNumbers : new boolean[]{ false, true }) {
+          var seconds = time(() -> new Interpreter(dualNumbers, backend).interpret(stmts));
+          var bytes = allocated(() -> new Interpreter(dualNumbers, backend).interpret(stmts));
+          System.out.println(String.format("%-8s %-6s %-6s %8.1f ms %8.1f MB", workload.getKey(), backend.toString().toLowerCase(), dualNumbers ? "dual" : "double", seconds * 1000, bytes / (1024.0 * 1024.0)));
+        }
+      }
+    }
+  }
+
+  private static final String FIB = """
+    fun fib(n) {
+      if (n < 2) {
+        return n
+      }
+
+      return fib(n - 1) + fib(n - 2)
+    }
+
+    fib(25)
+    """;
+
+  private static final String LOOP = """
+    fun loop(n) {
+      var sum = 0
+      var i = 0
+      while (i < n) {
+        var j = i * 2
+        {
+          var k = j + 1
+          sum = sum + k
+        }
+        i = i + 1
+      }
+
+      return sum
+    }
+
+    loop(1000000)
+    """;
+
+  private static final String CLOSURES = """
+    fun adder(a, b) {
+      fun add(c, d) {
+        return a + b + c + d
+      }
+
+      return add
+    }
+
+    fun run(n) {
+      var total = 0
+      var i = 0
+      while (i < n) {
+        {
+          var add = adder(i, 1)
+          total = total + add(1, 1)
+        }
+        i = i + 1
+      }
+
+      return total
+    }
+
+    run(200000)
+    """;
+
+  // Returns out of loops, breaks and continues on every iteration
+  private static final String CONTROL = """
+    fun find(n, target) {
+      for (var i = 0; i < n; i = i + 1) {
+        if (i == target) {
+          return i
+        }
+      }
+
+      return -1
+    }
+
+    fun run(n) {
+      var total = 0
+      var skip = false
+      var i = 0
+      while (true) {
+        i = i + 1
+        if (i > n) {
+          break
+        }
+
+        skip = !skip
+        if (skip) {
+          continue
+        }
+
+        total = total + find(10, 5)
+      }
+
+      return total
+    }
+
+    run(200000)
+    """;
+
+  // Constructs an instance and calls methods on it, with a few arguments each
+  private static final String METHODS = """
+    class Point {
+      init(x, y) {
+        this.x = x
+        this.y = y
+      }
+
+      add(other) {
+        return Point(this.x + other.x, this.y + other.y)
+      }
+
+      dot(x, y) {
+        return this.x * x + this.y * y
+      }
+    }
+
+    fun run(n) {
+      var p = Point(0, 0)
+      var step = Point(1, 2)
+      var total = 0
+      var i = 0
+      while (i < n) {
+        p = p.add(step)
+        total = total + p.dot(1, 1)
+        i = i + 1
+      }
+
+      return total
+    }
+
+    run(200000)
+    """;
+
+  // Arithmetic with several intermediate results per iteration
+  private static final String NUMERIC = """
+    fun run(n) {
+      var sum = 0
+      var i = 0
+      while (i < n) {
+        sum = sum + (i * 2 + 1) / 3 - (i % 7) * (i - 1) + -i
+        i = i + 1
+      }
+
+      return sum
+    }
+
+    run(1000000)
+    """;
+
+  // Counting with remainders, everything stays integral
+  private static final String INTEGERS = """
+    fun run(n) {
+      var hits = 0
+      var i = 0
+      while (i < n) {
+        if (i % 3 == 0 or i % 5 == 0) {
+          hits = hits + 1
+        }
+        i = i + 1
+      }
+
+      return hits
+    }
+
+    run(1000000)
+    """;
+
+  private static List<Stmt> parse(ByteBuffer source) {
+    var scanner = new Scanner(source);
+    scanner.scanTokens();
+
+    return new Parser(scanner, false).parse();
+  }
+
+  private static long usedHeap() {
+    var runtime = Runtime.getRuntime();
+    for (var i = 0; i < 3; i++) {
+      System.gc();
+    }
+
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static ByteBuffer map(String path) throws IOException {
+    try (var channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  private static byte[] examples(int size) throws IOException {
+    var examples = new ArrayList<byte[]>();
+    try (var paths = Files.list(Paths.get("../examples"))) {
+      for (var path : paths.sorted().toList()) {
+        examples.add(Files.readAllBytes(path));
+      }
+    }
+
+    var source = ByteBuffer.allocate(size);
+    for (var i = 0; source.hasRemaining(); i++) {
+      var example = examples.get(i % examples.size());
+      source.put(example, 0, Math.min(example.length, source.remaining()));
+    }
+
+    return source.array();
+  }
+
+  private static boolean sameTokens(TokenBuffer a, TokenBuffer b) {
+    if (a.size() != b.size()) {
+      return false;
+    }
+
+    for (var i = 0; i < a.size(); i++) {
+      if (a.type(i) != b.type(i) || a.line(i) != b.line(i) || !a.lexeme(i).equals(b.lexeme(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // Bytes allocated by the current thread in a single run
+  private static long allocated(Run run) {
+    var threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    var id = Thread.currentThread().threadId();
+
+    var start = threads.getThreadAllocatedBytes(id);
+    run.run();
+
+    return threads.getThreadAllocatedBytes(id) - start;
+  }
+
+  // Average seconds per iteration after warming up
+  private static double time(Run run) {
+    for (var i = 0; i < WARMUP_ITERATIONS; i++) {
+      run.run();
+    }
+
+    var start = System.nanoTime();
+    for (var i = 0; i < ITERATIONS; i++) {
+      run.run();
+    }
+
+    return (System.nanoTime() - start) / 1e9 / ITERATIONS;
+  }
+}
@@ -1,5 +0,0 @@
-class Break extends RuntimeException {
-    Break() {
-      super(null, null, false, false);
-    }
-}
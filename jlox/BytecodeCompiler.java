@@ -0,0 +1,438 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// Compiles resolved statements to a Chunk for the bytecode backend. Variables
+// live where the resolver put them, in the frame, a cell or an upvalue, so
+// the stack only ever holds the values of the expression being evaluated.
+// Statements leave it empty, which lets break and continue simply jump.
+class BytecodeCompiler {
+  private int[] code = new int[64];
+  private int size = 0;
+
+  private final List<Object> constants = new ArrayList<>();
+  private final HashMap<Object, Integer> constantIndices = new HashMap<>();
+
+  private int depth = 0;
+  private int maxDepth = 0;
+  private boolean unboxed = false;
+
+  // Jumps out of the innermost loop, patched once its end is known. A while
+  // loop continues from its condition, a for loop from its increment, which
+  // comes after the body so those are patched too.
+  private static class Loop {
+    final List<Integer> breaks = new ArrayList<>();
+    final List<Integer> continues = new ArrayList<>();
+  }
+
+  private Loop loop;
+
+  private BytecodeCompiler() {}
+
+  static Chunk compile(List<Stmt> stmts) {
+    var compiler = new BytecodeCompiler();
+    for (var stmt : stmts) {
+      compiler.compile(stmt);
+    }
+
+    compiler.emit(Chunk.END);
+
+    return new Chunk(Arrays.copyOf(compiler.code, compiler.size), compiler.constants.toArray(), compiler.maxDepth, compiler.unboxed);
+  }
+
+  private void compile(Stmt stmt) {
+    switch (stmt) {
+      // Assigning a slot as a statement stores the value without leaving it
+      case Stmt.ExprStmt(Expr.Assign assign) when assign.local().kind == Local.Kind.FRAME -> {
+        compile(assign.value());
+        emit(Chunk.DEFINE_FRAME, assign.local().index);
+        pop(1);
+      }
+      case Stmt.ExprStmt expr -> {
+        compile(expr.expr());
+        emit(Chunk.POP);
+        pop(1);
+      }
+      case Stmt.Var var -> compileVar(var);
+      case Stmt.Block block -> {
+        emit(Chunk.RESERVE, constant(block.scope()));
+        for (var inner : block.stmts()) {
+          compile(inner);
+        }
+      }
+      case Stmt.If ifStmt -> compileIf(ifStmt);
+      case Stmt.While whileStmt -> compileWhile(whileStmt);
+      case Stmt.For forStmt -> compileFor(forStmt);
+      case Stmt.Function func -> emit(Chunk.FUNCTION, constant(func));
+      case Stmt.Class classStmt -> emit(Chunk.CLASS, constant(classStmt));
+      case Stmt.Return returnStmt -> {
+        if (returnStmt.expr() == null) {
+          emit(Chunk.NIL);
+          push(1);
+        } else {
+          compile(returnStmt.expr());
+        }
+
+        emit(Chunk.RETURN);
+        pop(1);
+      }
+      case Stmt.Break breakStmt -> loop.breaks.add(emitJump(Chunk.JUMP));
+      case Stmt.Continue continueStmt -> loop.continues.add(emitJump(Chunk.JUMP));
+      default -> throw new IllegalStateException("Unknown statement.");
+    }
+  }
+
+  private void compileVar(Stmt.Var stmt) {
+    if (stmt.value() == null) {
+      emit(Chunk.NIL);
+      push(1);
+    } else {
+      compile(stmt.value());
+    }
+
+    var local = stmt.local();
+    switch (local.kind) {
+      case GLOBAL -> emit(Chunk.DEFINE_GLOBAL, constant(stmt.identifier().lexeme()));
+      case FRAME -> emit(Chunk.DEFINE_FRAME, local.index);
+      case CELL -> emit(Chunk.DEFINE_CELL, local.index);
+      case UPVALUE -> throw new IllegalStateException("Can't declare an upvalue.");
+    }
+
+    pop(1);
+  }
+
+  private void compileIf(Stmt.If stmt) {
+    var skipIf = compileCondition(stmt.condition());
+
+    compile(stmt.ifStmt());
+
+    if (stmt.elseStmt() == null) {
+      patch(skipIf, size);
+      return;
+    }
+
+    var skipElse = emitJump(Chunk.JUMP);
+    patch(skipIf, size);
+    compile(stmt.elseStmt());
+    patch(skipElse, size);
+  }
+
+  private void compileWhile(Stmt.While stmt) {
+    var enclosing = loop;
+    loop = new Loop();
+
+    var start = size;
+    var exit = compileCondition(stmt.condition());
+
+    compile(stmt.stmt());
+    emit(Chunk.JUMP, start);
+
+    patch(exit, size);
+    patchAll(loop.breaks, size);
+    patchAll(loop.continues, start);
+
+    loop = enclosing;
+  }
+
+  private void compileFor(Stmt.For stmt) {
+    emit(Chunk.RESERVE, constant(stmt.scope()));
+    if (stmt.initializer() != null) {
+      compile(stmt.initializer());
+    }
+
+    var enclosing = loop;
+    loop = new Loop();
+
+    var start = size;
+    var exit = compileCondition(stmt.condition());
+
+    compile(stmt.stmt());
+
+    // Continuing still runs the increment
+    var increment = size;
+    if (stmt.increment() != null) {
+      compile(stmt.increment());
+      emit(Chunk.POP);
+      pop(1);
+    }
+
+    emit(Chunk.JUMP, start);
+
+    patch(exit, size);
+    patchAll(loop.breaks, size);
+    patchAll(loop.continues, increment);
+
+    loop = enclosing;
+  }
+
+  // Compiles the condition of a statement and a jump past it when it's false,
+  // returning where the address of the jump goes
+  private int compileCondition(Expr condition) {
+    if (condition instanceof Expr.Binary binary && !binary.numeric()) {
+      var opcode = switch (binary.operator().type()) {
+        case TokenType.GREATER -> Chunk.JUMP_IF_NOT_GREATER;
+        case TokenType.GREATER_EQUAL -> Chunk.JUMP_IF_NOT_GREATER_EQUAL;
+        case TokenType.LESS -> Chunk.JUMP_IF_NOT_LESS;
+        case TokenType.LESS_EQUAL -> Chunk.JUMP_IF_NOT_LESS_EQUAL;
+        default -> -1;
+      };
+
+      if (opcode != -1) {
+        var mask = compileOperands(binary);
+        emit(opcode, constant(binary.operator()), mask, -1);
+        pop(2);
+        return size - 1;
+      }
+    }
+
+    compile(condition);
+    var jump = emitJump(Chunk.JUMP_IF_FALSE);
+    pop(1);
+    return jump;
+  }
+
+  private void compile(Expr expr) {
+    switch (expr) {
+      case Expr.Literal literal -> compileLiteral(literal);
+      case Expr.Grouping grouping -> compile(grouping.expr());
+      case Expr.Logical logical -> compileLogical(logical);
+      case Expr.Binary binary -> compileBinary(binary);
+      case Expr.Unary unary -> compileUnary(unary);
+      case Expr.Var var -> compileRead(var.identifier(), var.local());
+      case Expr.Assign assign -> compileAssign(assign);
+      case Expr.Call call -> compileCall(call);
+      case Expr.InstanceGet get -> {
+        compile(get.instance());
+        emit(Chunk.GET_PROPERTY, constant(get.identifier()));
+      }
+      case Expr.InstanceSet set -> {
+        compile(set.instance());
+        emit(Chunk.INSTANCE, constant(set.identifier()));
+        compile(set.value());
+        emit(Chunk.SET_PROPERTY, constant(set.identifier()));
+        pop(1);
+      }
+      case Expr.This thisExpr -> compileRead(thisExpr.keyword(), thisExpr.local());
+      case Expr.Super superExpr -> {
+        emit(Chunk.SUPER, constant(superExpr));
+        push(1);
+      }
+      default -> throw new IllegalStateException("Unknown expression.");
+    }
+  }
+
+  private void compileLiteral(Expr.Literal expr) {
+    var value = expr.value();
+    if (value == null) {
+      emit(Chunk.NIL);
+    } else if (value instanceof Boolean bool) {
+      emit(bool ? Chunk.TRUE : Chunk.FALSE);
+    } else if (value instanceof Double) {
+      emit(Chunk.NUMBER, constant(value));
+    } else {
+      emit(Chunk.CONSTANT, constant(value));
+    }
+
+    push(1);
+  }
+
+  // The left operand decides, it's left on the stack if it does
+  private void compileLogical(Expr.Logical expr) {
+    compile(expr.left());
+    var end = emitJump(expr.operator().type() == TokenType.OR ? Chunk.JUMP_IF_TRUE_OR_POP : Chunk.JUMP_IF_FALSE_OR_POP);
+    pop(1);
+
+    compile(expr.right());
+    patch(end, size);
+  }
+
+  private void compileBinary(Expr.Binary expr) {
+    var operator = expr.operator();
+
+    if (expr.numeric()) {
+      compileNumber(expr);
+      emit(Chunk.BOX);
+      return;
+    }
+
+    switch (operator.type()) {
+      case TokenType.PLUS, TokenType.EQUAL_EQUAL, TokenType.BANG_EQUAL -> {
+        compile(expr.left());
+        compile(expr.right());
+
+        switch (operator.type()) {
+          case TokenType.PLUS -> emit(Chunk.ADD, constant(operator));
+          case TokenType.EQUAL_EQUAL -> emit(Chunk.EQUAL);
+          default -> emit(Chunk.NOT_EQUAL);
+        }
+      }
+      default -> {
+        var mask = compileOperands(expr);
+        emit(switch (operator.type()) {
+          case TokenType.GREATER -> Chunk.GREATER;
+          case TokenType.GREATER_EQUAL -> Chunk.GREATER_EQUAL;
+          case TokenType.LESS -> Chunk.LESS;
+          case TokenType.LESS_EQUAL -> Chunk.LESS_EQUAL;
+          default -> throw new IllegalStateException(String.format("'%s' isn't a binary operator.", operator.lexeme()));
+        }, constant(operator), mask);
+      }
+    }
+
+    pop(1);
+  }
+
+  private void compileUnary(Expr.Unary expr) {
+    if (expr.operator().type() == TokenType.MINUS) {
+      compileNumber(expr);
+      emit(Chunk.BOX);
+      return;
+    }
+
+    compile(expr.expr());
+    emit(Chunk.NOT);
+  }
+
+  // Leaves the value of a numeric expression unboxed, see Expr.isNumeric
+  private void compileNumber(Expr expr) {
+    unboxed = true;
+
+    switch (expr) {
+      case Expr.Literal literal -> {
+        emit(Chunk.UNBOXED, constant(literal.value()));
+        push(1);
+      }
+      case Expr.Grouping grouping -> compileNumber(grouping.expr());
+      case Expr.Unary unary -> emit(Chunk.NEGATE, constant(unary.operator()), compileOperand(unary.expr(), 1));
+      case Expr.Binary binary -> {
+        var operator = binary.operator();
+        var mask = compileOperands(binary);
+        emit(switch (operator.type()) {
+          case TokenType.PLUS -> Chunk.PLUS;
+          case TokenType.MINUS -> Chunk.SUBTRACT;
+          case TokenType.STAR -> Chunk.MULTIPLY;
+          case TokenType.SLASH -> Chunk.DIVIDE;
+          case TokenType.PERCENT -> Chunk.REMAINDER;
+          default -> throw new IllegalStateException(String.format("'%s' isn't numeric.", operator.lexeme()));
+        }, constant(operator), mask);
+        pop(1);
+      }
+      default -> throw new IllegalStateException("Expression isn't numeric.");
+    }
+  }
+
+  // Returns the mask of the operands left boxed
+  private int compileOperands(Expr.Binary expr) {
+    return compileOperand(expr.left(), 1) | compileOperand(expr.right(), 2);
+  }
+
+  private int compileOperand(Expr expr, int bit) {
+    if (Expr.isNumeric(expr)) {
+      compileNumber(expr);
+      return 0;
+    }
+
+    compile(expr);
+    return bit;
+  }
+
+  private void compileRead(Token identifier, Local local) {
+    switch (local.kind) {
+      case GLOBAL -> emit(Chunk.GET_GLOBAL, constant(identifier));
+      case FRAME -> emit(Chunk.GET_FRAME, local.index);
+      case CELL -> emit(Chunk.GET_CELL, local.index);
+      case UPVALUE -> emit(Chunk.GET_UPVALUE, local.index);
+    }
+
+    push(1);
+  }
+
+  private void compileAssign(Expr.Assign expr) {
+    compile(expr.value());
+
+    var local = expr.local();
+    switch (local.kind) {
+      case GLOBAL -> emit(Chunk.SET_GLOBAL, constant(expr.identifier()));
+      case FRAME -> emit(Chunk.SET_FRAME, local.index);
+      case CELL -> emit(Chunk.SET_CELL, local.index);
+      case UPVALUE -> emit(Chunk.SET_UPVALUE, local.index);
+    }
+  }
+
+  // Methods are called on their instance directly, the same as evalCall
+  private void compileCall(Expr.Call expr) {
+    var args = expr.args();
+
+    if (expr.callee() instanceof Expr.InstanceGet get) {
+      compile(get.instance());
+      emit(Chunk.METHOD, constant(get.identifier()), constant(expr.paren()), args.size());
+      push(1);
+    } else {
+      compile(expr.callee());
+      emit(Chunk.CALLABLE, constant(expr.paren()), args.size());
+    }
+
+    for (var arg : args) {
+      compile(arg);
+    }
+
+    if (expr.callee() instanceof Expr.InstanceGet) {
+      emit(Chunk.INVOKE, args.size());
+      pop(args.size() + 1);
+    } else {
+      emit(Chunk.CALL, args.size());
+      pop(args.size());
+    }
+  }
+
+  // Tokens, names and numbers are shared, anything else is added as is
+  private int constant(Object value) {
+    if (value instanceof Token || value instanceof String || value instanceof Double) {
+      var index = constantIndices.get(value);
+      if (index != null) {
+        return index;
+      }
+
+      constantIndices.put(value, constants.size());
+    }
+
+    constants.add(value);
+    return constants.size() - 1;
+  }
+
+  private void emit(int... words) {
+    if (size + words.length > code.length) {
+      code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+    }
+
+    for (var word : words) {
+      code[size++] = word;
+    }
+  }
+
+  // Returns where the address goes, to patch once it's known
+  private int emitJump(int opcode) {
+    emit(opcode, -1);
+
+    return size - 1;
+  }
+
+  private void patch(int jump, int address) {
+    code[jump] = address;
+  }
+
+  private void patchAll(List<Integer> jumps, int address) {
+    for (var jump : jumps) {
+      patch(jump, address);
+    }
+  }
+
+  private void push(int count) {
+    depth += count;
+    maxDepth = Math.max(maxDepth, depth);
+  }
+
+  private void pop(int count) {
+    depth -= count;
+  }
+}
@@ -0,0 +1,9 @@
+// A local variable captured by a closure. The frame it was declared in and
+// every closure that captured it share the cell instead of the value.
+class Cell {
+  Object value;
+
+  Cell(Object value) {
+    this.value = value;
+  }
+}
@@ -0,0 +1,90 @@
+// Bytecode of a function body, or of the top level, for the bytecode backend.
+// Each instruction is an opcode followed by its operands, one int each.
+// Operands that aren't slots, counts or addresses are indices into the
+// constants, tokens included so errors can say where they happened. The VM
+// needs at most maxStack values on its stack to run the code, and a stack of
+// doubles as well if any of it is unboxed.
+record Chunk(int[] code, Object[] constants, int maxStack, boolean unboxed) {
+  // Values
+  static final int NIL = 0;
+  static final int TRUE = 1;
+  static final int FALSE = 2;
+  static final int CONSTANT = 3;        // constant
+  static final int NUMBER = 4;          // constant, a Double to box for the interpreter
+  static final int POP = 5;
+
+  // Variables, assigning leaves the value on the stack and defining pops it
+  static final int GET_FRAME = 6;       // slot
+  static final int SET_FRAME = 7;       // slot
+  static final int DEFINE_FRAME = 8;    // slot
+  static final int GET_CELL = 9;        // slot
+  static final int SET_CELL = 10;       // slot
+  static final int DEFINE_CELL = 11;    // slot
+  static final int GET_UPVALUE = 12;    // upvalue
+  static final int SET_UPVALUE = 13;    // upvalue
+  static final int GET_GLOBAL = 14;     // identifier token
+  static final int SET_GLOBAL = 15;     // identifier token
+  static final int DEFINE_GLOBAL = 16;  // name
+
+  // Operators, the token is the operator for errors
+  static final int ADD = 17;            // token
+  static final int EQUAL = 18;
+  static final int NOT_EQUAL = 19;
+  static final int NOT = 20;
+
+  // Numeric expressions are computed unboxed, in a second stack of doubles
+  // that shares its slots with the first. Their operands that aren't numeric
+  // expressions are left boxed, with a bit set in the mask of the operator,
+  // 1 for the left operand and 2 for the right one. Those are unboxed, or
+  // fail, once both have been evaluated, the same as Interpreter.number.
+  static final int UNBOXED = 21;        // constant, a Double
+  static final int BOX = 22;
+  static final int SUBTRACT = 23;       // token, mask
+  static final int MULTIPLY = 24;       // token, mask
+  static final int DIVIDE = 25;         // token, mask
+  static final int REMAINDER = 26;      // token, mask
+  static final int NEGATE = 27;         // token, mask
+  static final int PLUS = 28;           // token, mask, a numeric addition
+
+  // Comparisons take their operands like numeric expressions do but leave a
+  // boxed Boolean
+  static final int GREATER = 29;        // token, mask
+  static final int GREATER_EQUAL = 30;  // token, mask
+  static final int LESS = 31;           // token, mask
+  static final int LESS_EQUAL = 32;     // token, mask
+
+  // Jumps go to an absolute address. The conditional ones pop the condition,
+  // except the ones for logical operators which keep it when they jump.
+  static final int JUMP = 33;                // address
+  static final int JUMP_IF_FALSE = 34;       // address
+  static final int JUMP_IF_FALSE_OR_POP = 35;  // address
+  static final int JUMP_IF_TRUE_OR_POP = 36;   // address
+
+  // Comparisons guarding a statement jump on their doubles, with no Boolean
+  static final int JUMP_IF_NOT_GREATER = 37;        // token, mask, address
+  static final int JUMP_IF_NOT_GREATER_EQUAL = 38;  // token, mask, address
+  static final int JUMP_IF_NOT_LESS = 39;           // token, mask, address
+  static final int JUMP_IF_NOT_LESS_EQUAL = 40;     // token, mask, address
+
+  // Callees are checked before their arguments are evaluated, the same as in
+  // the tree walker. A method call leaves the method and its receiver below
+  // the arguments, or the value of the field and nil.
+  static final int CALLABLE = 41;       // paren token, argument count
+  static final int CALL = 42;           // argument count
+  static final int METHOD = 43;         // identifier token, paren token, argument count
+  static final int INVOKE = 44;         // argument count
+
+  // Properties, setting one checks the instance before the value is evaluated
+  static final int GET_PROPERTY = 45;   // identifier token
+  static final int INSTANCE = 46;       // identifier token
+  static final int SET_PROPERTY = 47;   // identifier token
+  static final int SUPER = 48;          // Expr.Super
+
+  // Declarations and scopes go through the interpreter
+  static final int FUNCTION = 49;       // Stmt.Function
+  static final int CLASS = 50;          // Stmt.Class
+  static final int RESERVE = 51;        // Scope
+
+  static final int RETURN = 52;
+  static final int END = 53;
+}
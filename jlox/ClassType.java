@@ -0,0 +1,5 @@
+enum ClassType {
+  NONE,
+  CLASS,
+  SUBCLASS,
+}
@@ -0,0 +1,537 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of the class file format for the classes JvmCompiler writes.
+// They're version 49 class files, which the JVM still verifies by inferring
+// the types on its own, so no stack map frames have to be worked out for
+// them. The price is that they can't use invokedynamic.
+class ClassWriter {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  static final int ACONST_NULL = 1;
+  static final int ICONST_0 = 3;
+  static final int BIPUSH = 16;
+  static final int SIPUSH = 17;
+  static final int LDC = 18;
+  static final int LDC_W = 19;
+  static final int LDC2_W = 20;
+  static final int ILOAD = 21;
+  static final int DLOAD = 24;
+  static final int ALOAD = 25;
+  static final int DSTORE = 57;
+  static final int ASTORE = 58;
+  static final int AALOAD = 50;
+  static final int AASTORE = 83;
+  static final int POP = 87;
+  static final int POP2 = 88;
+  static final int DUP = 89;
+  static final int DUP_X1 = 90;
+  static final int DUP_X2 = 91;
+  static final int SWAP = 95;
+  static final int DADD = 99;
+  static final int DSUB = 103;
+  static final int DMUL = 107;
+  static final int DDIV = 111;
+  static final int DNEG = 119;
+  static final int IXOR = 130;
+  static final int DCMPL = 151;
+  static final int DCMPG = 152;
+  static final int IFEQ = 153;
+  static final int IFNE = 154;
+  static final int IFLT = 155;
+  static final int IFGE = 156;
+  static final int IFGT = 157;
+  static final int IFLE = 158;
+  static final int IF_ACMPNE = 166;
+  static final int GOTO = 167;
+  static final int TABLESWITCH = 170;
+  static final int ARETURN = 176;
+  static final int RETURN = 177;
+  static final int GETSTATIC = 178;
+  static final int PUTSTATIC = 179;
+  static final int GETFIELD = 180;
+  static final int PUTFIELD = 181;
+  static final int INVOKEVIRTUAL = 182;
+  static final int INVOKESPECIAL = 183;
+  static final int INVOKESTATIC = 184;
+  static final int INVOKEINTERFACE = 185;
+  static final int NEW = 187;
+  static final int ANEWARRAY = 189;
+  static final int CHECKCAST = 192;
+  static final int WIDE = 196;
+
+  private static final int VERSION = 49;
+
+  // Constant pool tags
+  private static final int UTF8 = 1;
+  private static final int INTEGER = 3;
+  private static final int DOUBLE = 6;
+  private static final int CLASS = 7;
+  private static final int STRING = 8;
+  private static final int FIELD = 9;
+  private static final int METHOD = 10;
+  private static final int INTERFACE_METHOD = 11;
+  private static final int NAME_AND_TYPE = 12;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> entries = new HashMap<>();
+  private int poolCount = 1;
+
+  private final int access;
+  private final int thisClass;
+  private final int superClass;
+  private final int[] interfaces;
+  private final List<byte[]> fields = new ArrayList<>();
+  private final List<byte[]> methods = new ArrayList<>();
+
+  ClassWriter(int access, String name, String superName, String... interfaceNames) {
+    this.access = access | ACC_SUPER;
+    this.thisClass = classRef(name);
+    this.superClass = classRef(superName);
+    this.interfaces = new int[interfaceNames.length];
+    for (var i = 0; i < interfaceNames.length; i++) {
+      interfaces[i] = classRef(interfaceNames[i]);
+    }
+  }
+
+  void field(int access, String name, String descriptor) {
+    var out = new ByteArrayOutputStream();
+    var data = new DataOutputStream(out);
+    write(() -> {
+      data.writeShort(access);
+      data.writeShort(utf8(name));
+      data.writeShort(utf8(descriptor));
+      data.writeShort(0);
+    });
+
+    fields.add(out.toByteArray());
+  }
+
+  Code method(int access, String name, String descriptor) {
+    return new Code(access, name, descriptor);
+  }
+
+  // Entries in the constant pool so far
+  int constantCount() {
+    return poolCount;
+  }
+
+  byte[] toByteArray() {
+    var out = new ByteArrayOutputStream();
+    var data = new DataOutputStream(out);
+    write(() -> {
+      data.writeInt(0xCAFEBABE);
+      data.writeShort(0);
+      data.writeShort(VERSION);
+      data.writeShort(poolCount);
+      pool.writeTo(data);
+      data.writeShort(access);
+      data.writeShort(thisClass);
+      data.writeShort(superClass);
+      data.writeShort(interfaces.length);
+      for (var index : interfaces) {
+        data.writeShort(index);
+      }
+
+      data.writeShort(fields.size());
+      for (var field : fields) {
+        data.write(field);
+      }
+
+      data.writeShort(methods.size());
+      for (var method : methods) {
+        data.write(method);
+      }
+
+      data.writeShort(0);
+    });
+
+    return out.toByteArray();
+  }
+
+  private interface Write {
+    void run() throws IOException;
+  }
+
+  // Only ever writes to memory
+  private static void write(Write write) {
+    try {
+      write.run();
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+  }
+
+  private int entry(String key, int slots, Write write) {
+    var index = entries.get(key);
+    if (index != null) {
+      return index;
+    }
+
+    write(write);
+    if (poolCount + slots > 0xFFFF) {
+      throw new IllegalStateException("Too many constants in one class.");
+    }
+
+    entries.put(key, poolCount);
+    poolCount += slots;
+    return poolCount - slots;
+  }
+
+  private int utf8(String value) {
+    return entry("U" + value, 1, () -> {
+      poolOut.writeByte(UTF8);
+      poolOut.writeUTF(value);
+    });
+  }
+
+  private int classRef(String name) {
+    var index = utf8(name);
+    return entry("C" + name, 1, () -> {
+      poolOut.writeByte(CLASS);
+      poolOut.writeShort(index);
+    });
+  }
+
+  private int string(String value) {
+    var index = utf8(value);
+    return entry("S" + value, 1, () -> {
+      poolOut.writeByte(STRING);
+      poolOut.writeShort(index);
+    });
+  }
+
+  private int integer(int value) {
+    return entry("I" + value, 1, () -> {
+      poolOut.writeByte(INTEGER);
+      poolOut.writeInt(value);
+    });
+  }
+
+  private int doubleConstant(double value) {
+    return entry("D" + Double.doubleToRawLongBits(value), 2, () -> {
+      poolOut.writeByte(DOUBLE);
+      poolOut.writeDouble(value);
+    });
+  }
+
+  private int member(int tag, String owner, String name, String descriptor) {
+    var ownerIndex = classRef(owner);
+    var nameIndex = utf8(name);
+    var descriptorIndex = utf8(descriptor);
+    var nameAndType = entry("N" + name + " " + descriptor, 1, () -> {
+      poolOut.writeByte(NAME_AND_TYPE);
+      poolOut.writeShort(nameIndex);
+      poolOut.writeShort(descriptorIndex);
+    });
+
+    return entry(tag + owner + "." + name + " " + descriptor, 1, () -> {
+      poolOut.writeByte(tag);
+      poolOut.writeShort(ownerIndex);
+      poolOut.writeShort(nameAndType);
+    });
+  }
+
+  // Where a jump goes. Jumps forward are patched once it's bound, and the
+  // stack is as deep wherever it's jumped from. Each jump is where its
+  // instruction starts, followed by where its offset goes if it's 4 bytes.
+  static class Label {
+    private int position = -1;
+    private int depth = -1;
+    private final List<int[]> jumps = new ArrayList<>();
+  }
+
+  // The body of a method, written an instruction at a time. How deep the stack
+  // gets is tracked as it's written, and locals are counted by the caller.
+  class Code {
+    private final int access;
+    private final String name;
+    private final String descriptor;
+
+    private byte[] code = new byte[64];
+    private int size = 0;
+    private int depth = 0;
+    private int maxStack = 0;
+    private int maxLocals = 0;
+
+    private Code(int access, String name, String descriptor) {
+      this.access = access;
+      this.name = name;
+      this.descriptor = descriptor;
+    }
+
+    void locals(int count) {
+      maxLocals = Math.max(maxLocals, count);
+    }
+
+    // An instruction with no operands, and what it does to the stack
+    void op(int opcode, int effect) {
+      u1(opcode);
+      stack(effect);
+    }
+
+    void iconst(int value) {
+      if (value >= -1 && value <= 5) {
+        op(ICONST_0 + value, 1);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        op(BIPUSH, 1);
+        u1(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        op(SIPUSH, 1);
+        u2(value);
+      } else {
+        constant(integer(value), 1);
+      }
+    }
+
+    void ldc(String value) {
+      constant(string(value), 1);
+    }
+
+    void ldc(double value) {
+      op(LDC2_W, 2);
+      u2(doubleConstant(value));
+    }
+
+    private void constant(int index, int effect) {
+      if (index <= 0xFF) {
+        op(LDC, effect);
+        u1(index);
+      } else {
+        op(LDC_W, effect);
+        u2(index);
+      }
+    }
+
+    void aload(int local) {
+      local(ALOAD, local, 1);
+    }
+
+    void astore(int local) {
+      local(ASTORE, local, -1);
+    }
+
+    void dload(int local) {
+      local(DLOAD, local, 2);
+    }
+
+    void dstore(int local) {
+      local(DSTORE, local, -2);
+    }
+
+    void iload(int local) {
+      local(ILOAD, local, 1);
+    }
+
+    private void local(int opcode, int local, int effect) {
+      if (local > 0xFF) {
+        u1(WIDE);
+        op(opcode, effect);
+        u2(local);
+      } else {
+        op(opcode, effect);
+        u1(local);
+      }
+    }
+
+    // New, checkcast and anewarray
+    void type(int opcode, String type) {
+      op(opcode, opcode == NEW ? 1 : 0);
+      u2(classRef(type));
+    }
+
+    void field(int opcode, String owner, String name, String descriptor) {
+      var size = slots(descriptor);
+      op(opcode, switch (opcode) {
+        case GETSTATIC -> size;
+        case PUTSTATIC -> -size;
+        case GETFIELD -> size - 1;
+        default -> -size - 1;
+      });
+      u2(member(FIELD, owner, name, descriptor));
+    }
+
+    void invoke(int opcode, String owner, String name, String descriptor) {
+      var arguments = arguments(descriptor);
+      var result = slots(descriptor.substring(descriptor.indexOf(')') + 1));
+      op(opcode, result - arguments - (opcode == INVOKESTATIC ? 0 : 1));
+
+      if (opcode == INVOKEINTERFACE) {
+        u2(member(INTERFACE_METHOD, owner, name, descriptor));
+        u1(arguments + 1);
+        u1(0);
+      } else {
+        u2(member(METHOD, owner, name, descriptor));
+      }
+    }
+
+    // The conditional jumps pop what they test
+    void jump(int opcode, Label label) {
+      var start = size;
+      op(opcode, switch (opcode) {
+        case GOTO -> 0;
+        case IF_ACMPNE -> -2;
+        default -> -1;
+      });
+      u2(0);
+
+      if (label.depth < 0) {
+        label.depth = depth;
+      }
+
+      if (label.position >= 0) {
+        patch(start, label.position);
+      } else {
+        label.jumps.add(new int[]{ start });
+      }
+    }
+
+    void bind(Label label) {
+      label.position = size;
+      if (label.depth >= 0) {
+        depth = label.depth;
+      } else {
+        label.depth = depth;
+      }
+
+      for (var jump : label.jumps) {
+        if (jump.length == 1) {
+          patch(jump[0], size);
+        } else {
+          var offset = size - jump[0];
+          code[jump[1]] = (byte)(offset >> 24);
+          code[jump[1] + 1] = (byte)(offset >> 16);
+          code[jump[1] + 2] = (byte)(offset >> 8);
+          code[jump[1] + 3] = (byte)offset;
+        }
+      }
+    }
+
+    // Switches on the int on top of the stack, from 0 to cases.length - 1
+    void tableswitch(Label fallback, Label[] cases) {
+      var start = size;
+      op(TABLESWITCH, -1);
+      while (size % 4 != 0) {
+        u1(0);
+      }
+
+      var at = size;
+      u4(0);
+      u4(0);
+      u4(cases.length - 1);
+      for (var i = 0; i < cases.length; i++) {
+        u4(0);
+      }
+
+      // The labels are all bound after it, nothing else jumps to them
+      var targets = new ArrayList<Label>();
+      targets.add(fallback);
+      targets.addAll(List.of(cases));
+      for (var i = 0; i < targets.size(); i++) {
+        var label = targets.get(i);
+        label.depth = depth;
+        var offset = at + (i == 0 ? 0 : 8 + i * 4);
+        label.jumps.add(new int[]{ start, offset });
+      }
+    }
+
+    void end() {
+      if (size > 0xFFFF) {
+        throw new IllegalStateException(String.format("Method '%s' is too large.", name));
+      }
+
+      var out = new ByteArrayOutputStream();
+      var data = new DataOutputStream(out);
+      write(() -> {
+        data.writeShort(access);
+        data.writeShort(utf8(name));
+        data.writeShort(utf8(descriptor));
+        data.writeShort(1);
+        data.writeShort(utf8("Code"));
+        data.writeInt(12 + size);
+        data.writeShort(maxStack);
+        data.writeShort(maxLocals);
+        data.writeInt(size);
+        data.write(code, 0, size);
+        data.writeShort(0);
+        data.writeShort(0);
+      });
+
+      methods.add(out.toByteArray());
+    }
+
+    private void patch(int jump, int target) {
+      var offset = target - jump;
+      if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+        throw new IllegalStateException(String.format("Method '%s' is too large.", name));
+      }
+
+      code[jump + 1] = (byte)(offset >> 8);
+      code[jump + 2] = (byte)offset;
+    }
+
+    private void stack(int effect) {
+      depth += effect;
+      maxStack = Math.max(maxStack, depth);
+    }
+
+    private void u1(int value) {
+      if (size == code.length) {
+        code = Arrays.copyOf(code, code.length * 2);
+      }
+
+      code[size++] = (byte)value;
+    }
+
+    private void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    private void u4(int value) {
+      u2(value >> 16);
+      u2(value);
+    }
+  }
+
+  // Stack slots taken by a value of the type, or by the arguments of a method
+  private static int slots(String descriptor) {
+    return switch (descriptor.charAt(0)) {
+      case 'V' -> 0;
+      case 'D', 'J' -> 2;
+      default -> 1;
+    };
+  }
+
+  private static int arguments(String descriptor) {
+    var slots = 0;
+    var i = 1;
+    while (descriptor.charAt(i) != ')') {
+      var c = descriptor.charAt(i);
+      slots += c == 'D' || c == 'J' ? 2 : 1;
+
+      while (descriptor.charAt(i) == '[') {
+        i++;
+      }
+
+      if (descriptor.charAt(i) == 'L') {
+        i = descriptor.indexOf(';', i);
+      }
+
+      i++;
+    }
+
+    return slots;
+  }
+}
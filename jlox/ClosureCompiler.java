@@ -0,0 +1,545 @@
+import java.util.List;
+
+// Compiles resolved statements to a tree of lambdas for the closure backend.
+// What the tree walker works out every time a node runs, which record it is,
+// which operator, where a variable lives, is decided once here and bound into
+// the lambda that runs it. Numeric expressions are compiled to lambdas that
+// return an unboxed double, see Expr.isNumeric.
+class ClosureCompiler {
+  interface Statement {
+    Completion execute(Interpreter interpreter);
+  }
+
+  interface Expression {
+    Object evaluate(Interpreter interpreter);
+  }
+
+  interface NumberExpression {
+    double evaluate(Interpreter interpreter);
+  }
+
+  private static final Statement NORMAL = interpreter -> Completion.NORMAL;
+  private static final Statement BREAK = interpreter -> Completion.BREAK;
+  private static final Statement CONTINUE = interpreter -> Completion.CONTINUE;
+
+  // Stops at the first statement that doesn't complete normally
+  static Statement compile(List<Stmt> stmts) {
+    var compiled = new Statement[stmts.size()];
+    for (var i = 0; i < compiled.length; i++) {
+      compiled[i] = compile(stmts.get(i));
+    }
+
+    return switch (compiled.length) {
+      case 0 -> NORMAL;
+      case 1 -> compiled[0];
+      case 2 -> {
+        var first = compiled[0];
+        var second = compiled[1];
+        yield interpreter -> {
+          var completion = first.execute(interpreter);
+          if (completion != Completion.NORMAL) {
+            return completion;
+          }
+
+          return second.execute(interpreter);
+        };
+      }
+      default -> interpreter -> {
+        for (var stmt : compiled) {
+          var completion = stmt.execute(interpreter);
+          if (completion != Completion.NORMAL) {
+            return completion;
+          }
+        }
+
+        return Completion.NORMAL;
+      };
+    };
+  }
+
+  private static Statement compile(Stmt stmt) {
+    return switch (stmt) {
+      case Stmt.ExprStmt expr -> compileExprStmt(expr);
+      case Stmt.Var var -> compileVar(var);
+      case Stmt.Block block -> compileBlock(block);
+      case Stmt.If ifStmt -> compileIf(ifStmt);
+      case Stmt.While whileStmt -> compileWhile(whileStmt);
+      case Stmt.For forStmt -> compileFor(forStmt);
+      case Stmt.Function func -> interpreter -> interpreter.execFunction(func);
+      case Stmt.Class classStmt -> interpreter -> interpreter.execClass(classStmt);
+      case Stmt.Return returnStmt -> compileReturn(returnStmt);
+      case Stmt.Break breakStmt -> BREAK;
+      case Stmt.Continue continueStmt -> CONTINUE;
+      default -> throw new IllegalStateException("Unknown statement.");
+    };
+  }
+
+  private static Statement compileExprStmt(Stmt.ExprStmt stmt) {
+    var expr = compile(stmt.expr());
+
+    return interpreter -> {
+      expr.evaluate(interpreter);
+      return Completion.NORMAL;
+    };
+  }
+
+  private static Statement compileVar(Stmt.Var stmt) {
+    var value = stmt.value() == null ? (Expression)interpreter -> null : compile(stmt.value());
+    var index = stmt.local().index;
+
+    return switch (stmt.local().kind) {
+      case GLOBAL -> {
+        var identifier = stmt.identifier().lexeme();
+        yield interpreter -> {
+          interpreter.global.define(identifier, value.evaluate(interpreter));
+          return Completion.NORMAL;
+        };
+      }
+      case FRAME -> interpreter -> {
+        interpreter.frame[index] = value.evaluate(interpreter);
+        return Completion.NORMAL;
+      };
+      case CELL -> interpreter -> {
+        interpreter.frame[index] = new Cell(value.evaluate(interpreter));
+        return Completion.NORMAL;
+      };
+      case UPVALUE -> throw new IllegalStateException("Can't declare an upvalue.");
+    };
+  }
+
+  private static Statement compileBlock(Stmt.Block stmt) {
+    var scope = stmt.scope();
+    var stmts = compile(stmt.stmts());
+
+    return interpreter -> {
+      interpreter.reserve(scope);
+      return stmts.execute(interpreter);
+    };
+  }
+
+  private static Statement compileIf(Stmt.If stmt) {
+    var condition = compile(stmt.condition());
+    var ifStmt = compile(stmt.ifStmt());
+
+    if (stmt.elseStmt() == null) {
+      return interpreter -> {
+        if (interpreter.isTruthy(condition.evaluate(interpreter))) {
+          return ifStmt.execute(interpreter);
+        }
+
+        return Completion.NORMAL;
+      };
+    }
+
+    var elseStmt = compile(stmt.elseStmt());
+    return interpreter -> {
+      if (interpreter.isTruthy(condition.evaluate(interpreter))) {
+        return ifStmt.execute(interpreter);
+      }
+
+      return elseStmt.execute(interpreter);
+    };
+  }
+
+  private static Statement compileWhile(Stmt.While stmt) {
+    var condition = compile(stmt.condition());
+    var body = compile(stmt.stmt());
+
+    return interpreter -> {
+      while (interpreter.isTruthy(condition.evaluate(interpreter))) {
+        interpreter.backEdges++;
+        var completion = body.execute(interpreter);
+        if (completion == Completion.BREAK) {
+          break;
+        }
+
+        if (completion == Completion.RETURN) {
+          return completion;
+        }
+      }
+
+      return Completion.NORMAL;
+    };
+  }
+
+  private static Statement compileFor(Stmt.For stmt) {
+    var scope = stmt.scope();
+    var initializer = stmt.initializer() == null ? NORMAL : compile(stmt.initializer());
+    var condition = compile(stmt.condition());
+    var increment = stmt.increment() == null ? (Expression)interpreter -> null : compile(stmt.increment());
+    var body = compile(stmt.stmt());
+
+    return interpreter -> {
+      interpreter.reserve(scope);
+      initializer.execute(interpreter);
+
+      while (interpreter.isTruthy(condition.evaluate(interpreter))) {
+        interpreter.backEdges++;
+        var completion = body.execute(interpreter);
+        if (completion == Completion.BREAK) {
+          break;
+        }
+
+        if (completion == Completion.RETURN) {
+          return completion;
+        }
+
+        // Continuing still runs the increment
+        increment.evaluate(interpreter);
+      }
+
+      return Completion.NORMAL;
+    };
+  }
+
+  private static Statement compileReturn(Stmt.Return stmt) {
+    if (stmt.expr() == null) {
+      return interpreter -> {
+        interpreter.returned = null;
+        return Completion.RETURN;
+      };
+    }
+
+    var value = compile(stmt.expr());
+    return interpreter -> {
+      interpreter.returned = value.evaluate(interpreter);
+      return Completion.RETURN;
+    };
+  }
+
+  private static Expression compile(Expr expr) {
+    return switch (expr) {
+      case Expr.Literal literal -> compileLiteral(literal);
+      case Expr.Grouping grouping -> compile(grouping.expr());
+      case Expr.Logical logical -> compileLogical(logical);
+      case Expr.Binary binary -> compileBinary(binary);
+      case Expr.Unary unary -> compileUnary(unary);
+      case Expr.Var var -> compileRead(var.identifier(), var.local());
+      case Expr.Assign assign -> compileAssign(assign);
+      case Expr.Call call -> compileCall(call);
+      case Expr.InstanceGet get -> compileInstanceGet(get);
+      case Expr.InstanceSet set -> compileInstanceSet(set);
+      case Expr.This thisExpr -> compileRead(thisExpr.keyword(), thisExpr.local());
+      case Expr.Super superExpr -> interpreter -> interpreter.evalSuper(superExpr);
+      default -> throw new IllegalStateException("Unknown expression.");
+    };
+  }
+
+  // Dual numbers are decided by the interpreter that runs the code, so number
+  // literals still go through it.
+  private static Expression compileLiteral(Expr.Literal expr) {
+    var value = expr.value();
+    if (value instanceof Double) {
+      return interpreter -> interpreter.literal(value);
+    }
+
+    return interpreter -> value;
+  }
+
+  private static Expression compileLogical(Expr.Logical expr) {
+    var left = compile(expr.left());
+    var right = compile(expr.right());
+
+    if (expr.operator().type() == TokenType.OR) {
+      return interpreter -> {
+        var value = left.evaluate(interpreter);
+        return interpreter.isTruthy(value) ? value : right.evaluate(interpreter);
+      };
+    }
+
+    return interpreter -> {
+      var value = left.evaluate(interpreter);
+      return !interpreter.isTruthy(value) ? value : right.evaluate(interpreter);
+    };
+  }
+
+  private static Expression compileBinary(Expr.Binary expr) {
+    if (expr.numeric()) {
+      var number = compileNumber(expr);
+      return interpreter -> interpreter.box(number.evaluate(interpreter));
+    }
+
+    var operator = expr.operator();
+    var type = operator.type();
+
+    if (type == TokenType.EQUAL_EQUAL || type == TokenType.BANG_EQUAL) {
+      var left = compile(expr.left());
+      var right = compile(expr.right());
+      if (type == TokenType.BANG_EQUAL) {
+        return interpreter -> !interpreter.isEqual(left.evaluate(interpreter), right.evaluate(interpreter));
+      }
+
+      return interpreter -> interpreter.isEqual(left.evaluate(interpreter), right.evaluate(interpreter));
+    }
+
+    if (type == TokenType.PLUS) {
+      var left = compile(expr.left());
+      var right = compile(expr.right());
+      return interpreter -> {
+        var leftValue = left.evaluate(interpreter);
+        return interpreter.binary(operator, leftValue, right.evaluate(interpreter));
+      };
+    }
+
+    var left = compileLeftOperand(expr);
+    var right = compileRightOperand(expr);
+
+    return switch (type) {
+      case TokenType.GREATER -> interpreter -> left.evaluate(interpreter) > right.evaluate(interpreter);
+      case TokenType.LESS -> interpreter -> left.evaluate(interpreter) < right.evaluate(interpreter);
+      case TokenType.GREATER_EQUAL -> interpreter -> left.evaluate(interpreter) >= right.evaluate(interpreter);
+      case TokenType.LESS_EQUAL -> interpreter -> left.evaluate(interpreter) <= right.evaluate(interpreter);
+      default -> throw new IllegalStateException(String.format("'%s' isn't a binary operator.", operator.lexeme()));
+    };
+  }
+
+  private static Expression compileUnary(Expr.Unary expr) {
+    if (expr.operator().type() == TokenType.MINUS) {
+      var number = compileNumber(expr);
+      return interpreter -> interpreter.box(number.evaluate(interpreter));
+    }
+
+    var operand = compile(expr.expr());
+    return interpreter -> !interpreter.isTruthy(operand.evaluate(interpreter));
+  }
+
+  // Only called on numeric expressions, the same as Interpreter.number
+  private static NumberExpression compileNumber(Expr expr) {
+    return switch (expr) {
+      case Expr.Literal literal -> {
+        var value = (double)literal.value();
+        yield interpreter -> value;
+      }
+      case Expr.Grouping grouping -> compileNumber(grouping.expr());
+      case Expr.Unary unary -> {
+        if (Expr.isNumeric(unary.expr())) {
+          var operand = compileNumber(unary.expr());
+          yield interpreter -> -operand.evaluate(interpreter);
+        }
+
+        var operator = unary.operator();
+        var operand = compile(unary.expr());
+        yield interpreter -> {
+          var value = operand.evaluate(interpreter);
+          interpreter.checkNumberOperand(operator, value);
+          return -interpreter.toDouble(value);
+        };
+      }
+      case Expr.Binary binary -> compileArithmetic(binary);
+      default -> throw new IllegalStateException("Expression isn't numeric.");
+    };
+  }
+
+  private static NumberExpression compileArithmetic(Expr.Binary expr) {
+    var operator = expr.operator();
+    var left = compileLeftOperand(expr);
+    var right = compileRightOperand(expr);
+
+    return switch (operator.type()) {
+      case TokenType.PLUS -> interpreter -> left.evaluate(interpreter) + right.evaluate(interpreter);
+      case TokenType.MINUS -> interpreter -> left.evaluate(interpreter) - right.evaluate(interpreter);
+      case TokenType.STAR -> interpreter -> left.evaluate(interpreter) * right.evaluate(interpreter);
+      case TokenType.SLASH -> interpreter -> {
+        var leftValue = left.evaluate(interpreter);
+        var rightValue = right.evaluate(interpreter);
+        interpreter.checkNotDivideByZero(operator, rightValue);
+        return leftValue / rightValue;
+      };
+      case TokenType.PERCENT -> interpreter -> {
+        var leftValue = left.evaluate(interpreter);
+        var rightValue = right.evaluate(interpreter);
+        interpreter.checkNotDivideByZero(operator, rightValue);
+        return interpreter.remainder(leftValue, rightValue);
+      };
+      default -> throw new IllegalStateException(String.format("'%s' isn't numeric.", operator.lexeme()));
+    };
+  }
+
+  // The operands of arithmetic and comparisons fail the same way as in
+  // Interpreter.binary, with the errors picked here.
+  private static NumberExpression compileLeftOperand(Expr.Binary expr) {
+    if (Expr.isNumeric(expr.left())) {
+      return compileNumber(expr.left());
+    }
+
+    var operator = expr.operator();
+    var message = operator.type() == TokenType.PLUS ? "Operands must be strings." : "Operands must be numbers.";
+    var left = compile(expr.left());
+    var right = compile(expr.right());
+
+    return interpreter -> {
+      var value = left.evaluate(interpreter);
+      if (interpreter.isNumber(value)) {
+        return interpreter.toDouble(value);
+      }
+
+      right.evaluate(interpreter);
+      throw new RuntimeError(operator, message);
+    };
+  }
+
+  private static NumberExpression compileRightOperand(Expr.Binary expr) {
+    if (Expr.isNumeric(expr.right())) {
+      return compileNumber(expr.right());
+    }
+
+    var operator = expr.operator();
+    var message = operator.type() == TokenType.PLUS ? "Operand must be a number." : "Operands must be numbers.";
+    var right = compile(expr.right());
+
+    return interpreter -> {
+      var value = right.evaluate(interpreter);
+      if (interpreter.isNumber(value)) {
+        return interpreter.toDouble(value);
+      }
+
+      throw new RuntimeError(operator, message);
+    };
+  }
+
+  private static Expression compileRead(Token identifier, Local local) {
+    var index = local.index;
+
+    return switch (local.kind) {
+      case GLOBAL -> interpreter -> interpreter.global.get(identifier);
+      case FRAME -> interpreter -> interpreter.frame[index];
+      case CELL -> interpreter -> ((Cell)interpreter.frame[index]).value;
+      case UPVALUE -> interpreter -> interpreter.upvalues[index].value;
+    };
+  }
+
+  private static Expression compileAssign(Expr.Assign expr) {
+    var identifier = expr.identifier();
+    var value = compile(expr.value());
+    var index = expr.local().index;
+
+    return switch (expr.local().kind) {
+      case GLOBAL -> interpreter -> {
+        var result = value.evaluate(interpreter);
+        interpreter.global.assign(identifier, result);
+        return result;
+      };
+      case FRAME -> interpreter -> {
+        var result = value.evaluate(interpreter);
+        interpreter.frame[index] = result;
+        return result;
+      };
+      case CELL -> interpreter -> {
+        var result = value.evaluate(interpreter);
+        ((Cell)interpreter.frame[index]).value = result;
+        return result;
+      };
+      case UPVALUE -> interpreter -> {
+        var result = value.evaluate(interpreter);
+        interpreter.upvalues[index].value = result;
+        return result;
+      };
+    };
+  }
+
+  // Calls go through the entry point for their number of arguments, and
+  // methods are called on their instance directly, the same as evalCall.
+  private static Expression compileCall(Expr.Call expr) {
+    var paren = expr.paren();
+    var args = new Expression[expr.args().size()];
+    for (var i = 0; i < args.length; i++) {
+      args[i] = compile(expr.args().get(i));
+    }
+
+    if (expr.callee() instanceof Expr.InstanceGet get) {
+      var instance = compile(get.instance());
+      var identifier = get.identifier();
+      var name = identifier.lexeme();
+
+      return interpreter -> {
+        var value = instance.evaluate(interpreter);
+        if (!(value instanceof LoxInstance)) {
+          throw new RuntimeError(identifier, "Only instances of classes have properties.");
+        }
+
+        var receiver = (LoxInstance)value;
+        var method = receiver.method(name);
+        if (method == null) {
+          return call(interpreter, receiver.get(identifier), paren, args);
+        }
+
+        checkArity(paren, method.arity(), args.length);
+        return switch (args.length) {
+          case 0 -> method.invoke0(interpreter, receiver);
+          case 1 -> method.invoke1(interpreter, receiver, args[0].evaluate(interpreter));
+          case 2 -> method.invoke2(interpreter, receiver, args[0].evaluate(interpreter), args[1].evaluate(interpreter));
+          case 3 -> method.invoke3(interpreter, receiver, args[0].evaluate(interpreter), args[1].evaluate(interpreter), args[2].evaluate(interpreter));
+          case 4 -> method.invoke4(interpreter, receiver, args[0].evaluate(interpreter), args[1].evaluate(interpreter), args[2].evaluate(interpreter), args[3].evaluate(interpreter));
+          default -> method.invoke(interpreter, receiver, evaluateAll(interpreter, args));
+        };
+      };
+    }
+
+    var callee = compile(expr.callee());
+    return interpreter -> call(interpreter, callee.evaluate(interpreter), paren, args);
+  }
+
+  private static Object call(Interpreter interpreter, Object callee, Token paren, Expression[] args) {
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren, "Calls can only be made on functions and classes.");
+    }
+
+    var func = (LoxCallable)callee;
+    checkArity(paren, func.arity(), args.length);
+
+    return switch (args.length) {
+      case 0 -> func.call0(interpreter);
+      case 1 -> func.call1(interpreter, args[0].evaluate(interpreter));
+      case 2 -> func.call2(interpreter, args[0].evaluate(interpreter), args[1].evaluate(interpreter));
+      case 3 -> func.call3(interpreter, args[0].evaluate(interpreter), args[1].evaluate(interpreter), args[2].evaluate(interpreter));
+      case 4 -> func.call4(interpreter, args[0].evaluate(interpreter), args[1].evaluate(interpreter), args[2].evaluate(interpreter), args[3].evaluate(interpreter));
+      default -> func.call(interpreter, evaluateAll(interpreter, args));
+    };
+  }
+
+  private static void checkArity(Token paren, int arity, int count) {
+    if (count != arity) {
+      throw new RuntimeError(paren, String.format("Expected %d arguments but got %d", arity, count));
+    }
+  }
+
+  private static Object[] evaluateAll(Interpreter interpreter, Expression[] args) {
+    var values = new Object[args.length];
+    for (var i = 0; i < values.length; i++) {
+      values[i] = args[i].evaluate(interpreter);
+    }
+
+    return values;
+  }
+
+  private static Expression compileInstanceGet(Expr.InstanceGet expr) {
+    var instance = compile(expr.instance());
+    var identifier = expr.identifier();
+
+    return interpreter -> {
+      var value = instance.evaluate(interpreter);
+      if (!(value instanceof LoxInstance)) {
+        throw new RuntimeError(identifier, "Only instances of classes have properties.");
+      }
+
+      return ((LoxInstance)value).get(identifier);
+    };
+  }
+
+  private static Expression compileInstanceSet(Expr.InstanceSet expr) {
+    var instance = compile(expr.instance());
+    var identifier = expr.identifier();
+    var value = compile(expr.value());
+
+    return interpreter -> {
+      var object = instance.evaluate(interpreter);
+      if (!(object instanceof LoxInstance)) {
+        throw new RuntimeError(identifier, "Only instances of classes have properties.");
+      }
+
+      var result = value.evaluate(interpreter);
+      ((LoxInstance)object).set(identifier, result);
+      return result;
+    };
+  }
+}
@@ -0,0 +1,9 @@
+// How a statement finished, passed back up through the statements around it
+// instead of thrown. A statement that returns leaves its value with the
+// interpreter for the call to pick up.
+enum Completion {
+  NORMAL,
+  BREAK,
+  CONTINUE,
+  RETURN,
+}
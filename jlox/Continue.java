@@ -1,5 +0,0 @@
-class Continue extends RuntimeException {
-    Continue() {
-      super(null, null, false, false);
-    }
-}
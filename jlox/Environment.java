@@ -1,18 +1,12 @@
 import java.util.Map;
 import java.util.HashMap;
 
+// Globals, the only variables looked up by name since they can be defined at
+// any time. Every other variable lives in a slot of its function's frame, or in
+// a Cell once a closure captured it.
 class Environment {
-  final Environment enclosing;
   private final Map<String, Object> values = new HashMap<>();
 
-  Environment() {
-    this.enclosing = null;
-  }
-
-  Environment(Environment enclosing) {
-    this.enclosing = enclosing;
-  }
-
   void define(String identifier, Object value) {
     values.put(identifier, value);
   }
@@ -24,16 +18,12 @@ class Environment {
       return;
     }
 
-    if (enclosing != null) {
-      enclosing.assign(identifier, value);
-      return;
-    }
-
     throw new RuntimeError(identifier, String.format("Undefined variable '%s'.", key));
   }
 
-  void assignAt(int depth, Token identifier, Object value) {
-    ancestor(depth).values.put(identifier.lexeme(), value);
+  // Null for a variable that isn't defined, rather than an error
+  Object peek(String identifier) {
+    return values.get(identifier);
   }
 
   Object get(Token identifier) {
@@ -42,24 +32,6 @@ class Environment {
       return values.get(key);
     }
 
-    if (enclosing != null) {
-      return enclosing.get(identifier);
-    }
-
     throw new RuntimeError(identifier, String.format("Undefined variable '%s'.", key));
   }
-
-  Object getAt(int depth, String identifier) {
-    return ancestor(depth).values.get(identifier);
-  }
-
-  Environment ancestor(int depth) {
-    var env = this;
-
-    for (var i = 0; i < depth; i++) {
-      env = env.enclosing;
-    }
-
-    return env;
-  }
 }
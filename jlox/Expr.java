@@ -1,75 +1,64 @@
 import java.util.List;
 
+// Ids are unique among the nodes from one parser, which hands them out in
+// order from 0.
 interface Expr {
-  record Literal(long id, Object value) implements Expr {
-    Literal(Object value) {
-      this(System.nanoTime(), value);
-    }
-  }
+  record Literal(int id, Object value) implements Expr {}
+  record Grouping(int id, Expr expr) implements Expr {}
+  record Logical(int id, Expr left, Token operator, Expr right) implements Expr {}
 
-  record Grouping(long id, Expr expr) implements Expr {
-    Grouping(Expr expr) {
-      this(System.nanoTime(), expr);
+  // Worked out from the operands when the node is built, see isNumeric
+  record Binary(int id, Expr left, Token operator, Expr right, boolean numeric) implements Expr {
+    Binary(int id, Expr left, Token operator, Expr right) {
+      this(id, left, operator, right, switch (operator.type()) {
+        case TokenType.MINUS, TokenType.STAR, TokenType.SLASH, TokenType.PERCENT -> true;
+        case TokenType.PLUS -> isNumeric(left) || isNumeric(right);
+        default -> false;
+      });
     }
   }
 
-  record Logical(long id, Expr left, Token operator, Expr right) implements Expr {
-    Logical(Expr left, Token operator, Expr right) {
-      this(System.nanoTime(), left, operator, right);
-    }
-  }
+  record Unary(int id, Token operator, Expr expr) implements Expr {}
+  record Call(int id, Expr callee, Token paren, List<Expr> args) implements Expr {}
+  record InstanceGet(int id, Expr instance, Token identifier) implements Expr {}
+  record InstanceSet(int id, Expr instance, Token identifier, Expr value) implements Expr {}
 
-  record Binary(long id, Expr left, Token operator, Expr right) implements Expr {
-    Binary(Expr left, Token operator, Expr right) {
-      this(System.nanoTime(), left, operator, right);
+  // Expressions that refer to a variable carry where the resolver found it
+  record Var(int id, Token identifier, Local local) implements Expr {
+    Var(int id, Token identifier) {
+      this(id, identifier, new Local());
     }
   }
 
-  record Unary(long id, Token operator, Expr expr) implements Expr {
-    Unary(Token operator, Expr expr) {
-      this(System.nanoTime(), operator, expr);
+  record Assign(int id, Token identifier, Expr value, Local local) implements Expr {
+    Assign(int id, Token identifier, Expr value) {
+      this(id, identifier, value, new Local());
     }
   }
 
-  record Var(long id, Token identifier) implements Expr {
-    Var(Token identifier) {
-      this(System.nanoTime(), identifier);
+  record This(int id, Token keyword, Local local) implements Expr {
+    This(int id, Token keyword) {
+      this(id, keyword, new Local());
     }
   }
 
-  record Assign(long id, Token identifier, Expr value) implements Expr {
-    Assign(Token identifier, Expr value) {
-      this(System.nanoTime(), identifier, value);
+  // The local is the superclass, the receiver is the 'this' to bind to
+  record Super(int id, Token keyword, Token method, Local local, Local receiver) implements Expr {
+    Super(int id, Token keyword, Token method) {
+      this(id, keyword, method, new Local(), new Local());
     }
   }
 
-  record Call(long id, Expr callee, Token paren, List<Expr> args) implements Expr {
-    Call(Expr callee, Token paren, List<Expr> args) {
-      this(System.nanoTime(), callee, paren, args);
-    }
-  }
-
-  record InstanceGet(long id, Expr instance, Token identifier) implements Expr {
-    InstanceGet(Expr instance, Token identifier) {
-      this(System.nanoTime(), instance, identifier);
-    }
-  }
-
-  record InstanceSet(long id, Expr instance, Token identifier, Expr value) implements Expr {
-    InstanceSet(Expr instance, Token identifier, Expr value) {
-      this(System.nanoTime(), instance, identifier, value);
-    }
-  }
-
-  record This(long id, Token keyword) implements Expr {
-    This(Token keyword) {
-      this(System.nanoTime(), keyword);
-    }
-  }
-
-  record Super(long id, Token keyword, Token method) implements Expr {
-    Super(Token keyword, Token method) {
-      this(System.nanoTime(), keyword, method);
-    }
+  // Whether the expression always evaluates to a number, or fails. Adding
+  // anything to a number is either a number or an error, since strings can
+  // only be added to strings.
+  static boolean isNumeric(Expr expr) {
+    return switch (expr) {
+      case Literal literal -> literal.value() instanceof Double;
+      case Grouping grouping -> isNumeric(grouping.expr());
+      case Unary unary -> unary.operator().type() == TokenType.MINUS;
+      case Binary binary -> binary.numeric();
+      default -> false;
+    };
   }
 }
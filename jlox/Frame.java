@@ -0,0 +1,34 @@
+// Layout of a function's frame and closure, set by the resolver. The frame
+// has a slot for the receiver of a method, each parameter and each variable
+// declared in the body. Blocks that aren't nested in each other share slots.
+class Frame {
+  // Capture for the superclass, always the first upvalue of a subclass method
+  static final int SUPER = -1;
+
+  int size = 0;
+
+  // Whether the receiver, if any, and each parameter is captured by a closure
+  // and so has to be put in a Cell.
+  boolean[] cells = new boolean[0];
+
+  // Where each upvalue comes from when a closure of the function is created,
+  // either SUPER, a slot of the enclosing frame or an upvalue of the enclosing
+  // closure.
+  int[] captures = new int[0];
+
+  static int local(int slot) {
+    return slot << 1 | 1;
+  }
+
+  static int upvalue(int index) {
+    return index << 1;
+  }
+
+  static boolean isLocal(int capture) {
+    return (capture & 1) == 1;
+  }
+
+  static int index(int capture) {
+    return capture >> 1;
+  }
+}
@@ -0,0 +1,149 @@
+import java.util.List;
+
+// Statements of a function declaration. Top level functions and methods are
+// only pre-parsed by default, their bodies are parsed and resolved the first
+// time they're called so functions that never run cost next to nothing.
+class FunctionBody {
+  private List<Stmt> stmts;
+
+  // The body compiled for the other backends, the first time it's run there
+  private Node.Statement[] nodes;
+  private ClosureCompiler.Statement closure;
+  private Chunk chunk;
+
+  // Set when the body has been compiled to a class, see JvmCompiler. It's run
+  // that way whatever the backend is. ArenaInterpreter binds its bodies the
+  // same way, and the Jit sets it from a thread of its own.
+  private volatile JvmCompiler.Code code;
+
+  // Calls and loop iterations while interpreted, and how many times compiled
+  // code went back to that, see Jit
+  private int heat;
+  private int deoptimizations;
+
+  // Set when the body has only been pre-parsed, start is the index of the
+  // first token after its opening brace. The parser holds on to the tokens of
+  // everything it parsed, so it's dropped as soon as the body is compiled.
+  private Parser parser;
+  private final int start;
+
+  // What the resolver would have resolved the body as
+  private FunctionType type = FunctionType.FUNCTION;
+  private ClassType classType = ClassType.NONE;
+  private boolean hasErrors = false;
+
+  FunctionBody(List<Stmt> stmts) {
+    this.stmts = stmts;
+    this.parser = null;
+    this.start = 0;
+  }
+
+  FunctionBody(Parser parser, int start) {
+    this.stmts = null;
+    this.parser = parser;
+    this.start = start;
+  }
+
+  boolean isParsed() {
+    return stmts != null;
+  }
+
+  // Null until the body has been parsed
+  List<Stmt> stmts() {
+    return stmts;
+  }
+
+  // Once resolved, see Optimizer
+  void optimize() {
+    stmts = Optimizer.optimize(stmts);
+  }
+
+  Node.Statement[] nodes(Profile profile) {
+    if (nodes == null) {
+      nodes = NodeCompiler.compile(stmts, profile);
+    }
+
+    return nodes;
+  }
+
+  ClosureCompiler.Statement closure() {
+    if (closure == null) {
+      closure = ClosureCompiler.compile(stmts);
+    }
+
+    return closure;
+  }
+
+  Chunk chunk() {
+    if (chunk == null) {
+      chunk = BytecodeCompiler.compile(stmts);
+    }
+
+    return chunk;
+  }
+
+  JvmCompiler.Code code() {
+    return code;
+  }
+
+  void bind(JvmCompiler.Code code) {
+    this.code = code;
+  }
+
+  // True once, when the heat reaches the threshold
+  boolean heat(int count, int threshold) {
+    var before = heat;
+    heat += count;
+    return before < threshold && heat >= threshold;
+  }
+
+  // Not yet run interpreted, or since compiled code went back to that
+  boolean isCold() {
+    return heat == 0 && deoptimizations == 0;
+  }
+
+  int deoptimizations() {
+    return deoptimizations;
+  }
+
+  // Back to being interpreted until it's hot again. Calls of the compiled
+  // code that are still running can ask again.
+  void deoptimize() {
+    if (code == null) {
+      return;
+    }
+
+    code = null;
+    heat = 0;
+    deoptimizations++;
+  }
+
+  void defer(FunctionType type, ClassType classType) {
+    this.type = type;
+    this.classType = classType;
+  }
+
+  // Parses, resolves and optimizes a pre-parsed body, any errors are reported
+  // as usual.
+  // Returns false if there were any.
+  boolean compile(Stmt.Function declaration) {
+    if (hasErrors) {
+      return false;
+    }
+
+    var stmts = parser.parseBody(start);
+    if (stmts != null && !Lox.hadError()) {
+      new Resolver().resolveBody(declaration, stmts, type, classType);
+    }
+
+    parser = null;
+
+    if (stmts == null || Lox.hadError()) {
+      hasErrors = true;
+      return false;
+    }
+
+    this.stmts = Optimizer.optimize(stmts);
+    return true;
+  }
+}
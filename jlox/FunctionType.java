@@ -0,0 +1,6 @@
+enum FunctionType {
+  NONE,
+  FUNCTION,
+  INITIALIZER,
+  METHOD,
+}
@@ -1,21 +1,74 @@
 import java.time.Instant;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.HashMap;
 
 class Interpreter {
   final Environment global = new Environment();
-  private Environment environment = global;
-  private final Map<Expr, Integer> locals = new HashMap<>();
+
+  // Frame of the function being called and the upvalues of its closure. The
+  // top level has a frame too, for variables declared in blocks.
+  Object[] frame = new Object[0];
+  Cell[] upvalues = new Cell[0];
+
+  // Value of the return statement that completed with RETURN
+  Object returned;
+
+  // What runs the program. The tree walker evaluates the AST directly, the
+  // others compile it first: nodes to a tree of self-specializing nodes, see
+  // Node, closures to a tree of lambdas, see ClosureCompiler, and bytecode to
+  // a Chunk for the VM.
+  enum Backend { TREE, NODES, CLOSURES, BYTECODE }
+
+  private final Backend backend;
+  private final VM vm = new VM();
+
+  // Compiles functions once they're hot, with --jit. Loops count their
+  // iterations here for it, see executeCall.
+  final Jit jit;
+  int backEdges;
+
+  // Recorded to or read from with --profile-out and --profile-in, or null
+  final Profile profile;
+
+  // With dual numbers, integral numbers are kept as a Long instead of a
+  // Double, as long as every long that size is exact as a double too. Numbers
+  // behave the same either way, see box.
+  private final boolean dualNumbers;
+  private static final double MAX_EXACT = 0x1p53;
 
   Interpreter() {
+    this(false);
+  }
+
+  Interpreter(boolean dualNumbers) {
+    this(dualNumbers, Backend.TREE);
+  }
+
+  Interpreter(boolean dualNumbers, Backend backend) {
+    this(dualNumbers, backend, false);
+  }
+
+  Interpreter(boolean dualNumbers, Backend backend, boolean jit) {
+    this(dualNumbers, backend, jit, null);
+  }
+
+  Interpreter(boolean dualNumbers, Backend backend, boolean jit, Profile profile) {
+    this.dualNumbers = dualNumbers;
+    this.backend = backend;
+    this.jit = jit ? new Jit(this) : null;
+    this.profile = profile;
+
     global.define("time", new LoxCallable() {
       public String toString() { return "<interpreter function - time>"; }
       public int arity() { return 0; }
 
-      public Object call(Interpreter interpreter, List<Object> arguments) {
-        return Instant.now().getEpochSecond();
+      public Object call(Interpreter interpreter, Object[] arguments) {
+        return call0(interpreter);
+      }
+
+      public Object call0(Interpreter interpreter) {
+        return box(Instant.now().getEpochSecond());
       }
     });
 
@@ -23,8 +76,15 @@ class Interpreter {
       public String toString() { return "<interpreter function - print>"; }
       public int arity() { return 1; }
 
-      public Object call(Interpreter interpreter, List<Object> arguments) {
-        var value = arguments.getFirst();
+      public Object call(Interpreter interpreter, Object[] arguments) {
+        return call1(interpreter, arguments[0]);
+      }
+
+      public Object call1(Interpreter interpreter, Object value) {
+        // Printed the same as the Double it stands for
+        if (value instanceof Long) {
+          value = (double)(long)value;
+        }
 
         var str = "nil";
         if (value != null) {
@@ -43,34 +103,116 @@ class Interpreter {
 
   void interpret(List<Stmt> stmts) {
     try {
-      for (var stmt : stmts) {
-        execute(stmt);
+      switch (backend) {
+        case TREE -> {
+          for (var stmt : stmts) {
+            execute(stmt);
+          }
+        }
+        case NODES -> {
+          for (var stmt : NodeCompiler.compile(stmts, profile)) {
+            stmt.execute(this);
+          }
+        }
+        case CLOSURES -> ClosureCompiler.compile(stmts).execute(this);
+        case BYTECODE -> vm.run(this, BytecodeCompiler.compile(stmts));
       }
     } catch (RuntimeError error) {
       Lox.runtimeError(error);
     }
   }
 
-  void executeBlock(List<Stmt> stmts, Environment environment) {
-    var enclosingEnvironment = this.environment;
+  // A resolved program that's run without being decoded, see --arena
+  void interpret(Arena program) {
+    try {
+      new ArenaInterpreter(this, program).execute();
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
 
+  // A program compiled ahead of time, see ProgramJar
+  void interpret(JvmCompiler.Code program) {
     try {
-      this.environment = environment;
+      program.run(this, frame, upvalues);
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  // Returns the value the body returned, or nil if it ran off the end. An
+  // initializer returns its receiver instead. The body is run right here to
+  // keep deep recursion off the JVM stack, and it's still small enough for
+  // HotSpot to inline into compiled callers.
+  Object executeCall(LoxFunction function, Object[] frame, LoxInstance receiver) {
+    var declaration = function.declaration();
+    var body = declaration.body();
 
-      for (var stmt : stmts) {
-        execute(stmt);
+    // Compiled code keeps its frame to itself
+    var code = body.code();
+    if (code != null) {
+      var value = code.run(this, frame, function.upvalues());
+      return function.isInitializer() ? receiver : value;
+    }
+
+    var enclosingFrame = this.frame;
+    var enclosingUpvalues = this.upvalues;
+    var enclosingBackEdges = backEdges;
+
+    try {
+      this.frame = frame;
+      this.upvalues = function.upvalues();
+
+      var completion = switch (backend) {
+        case TREE -> executeAll(body.stmts());
+        case NODES -> Node.executeAll(body.nodes(profile), this);
+        case CLOSURES -> body.closure().execute(this);
+        case BYTECODE -> vm.run(this, body.chunk());
+      };
+
+      Object value = null;
+      if (completion == Completion.RETURN) {
+        value = returned;
+        returned = null;
       }
+
+      return function.isInitializer() ? receiver : value;
     } finally {
-      this.environment = enclosingEnvironment;
+      this.frame = enclosingFrame;
+      this.upvalues = enclosingUpvalues;
+      count(declaration, enclosingBackEdges);
+    }
+  }
+
+  // Loops of the functions it called were counted for them. Kept out of
+  // executeCall so that its frame stays small.
+  private void count(Stmt.Function declaration, int enclosingBackEdges) {
+    var count = 1 + backEdges - enclosingBackEdges;
+    if (profile != null) {
+      profile.count(declaration, count);
+    }
+
+    if (jit != null) {
+      jit.count(declaration, count);
     }
+
+    backEdges = enclosingBackEdges;
   }
 
-  void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  // Stops at the first statement that doesn't complete normally
+  private Completion executeAll(List<Stmt> stmts) {
+    for (var stmt : stmts) {
+      var completion = execute(stmt);
+      if (completion != Completion.NORMAL) {
+        return completion;
+      }
+    }
+
+    return Completion.NORMAL;
   }
 
-  private void execute(Stmt stmt) {
-    switch (stmt) {
+  private Completion execute(Stmt stmt) {
+    return switch (stmt) {
       case Stmt.ExprStmt expr -> execExprStmt(expr);
       case Stmt.Var var -> execVar(var);
       case Stmt.Block block -> execBlock(block);
@@ -82,7 +224,7 @@ class Interpreter {
       case Stmt.Break breakStmt -> execBreak(breakStmt);
       case Stmt.Continue continueStmt -> execContinue(continueStmt);
       case Stmt.Class classStmt -> execClass(classStmt);
-      default -> {}
+      default -> Completion.NORMAL;
     };
   }
 
@@ -104,89 +246,117 @@ class Interpreter {
     };
   }
 
-  private void execExprStmt(Stmt.ExprStmt stmt) {
+  private Completion execExprStmt(Stmt.ExprStmt stmt) {
     evaluate(stmt.expr());
+
+    return Completion.NORMAL;
   }
 
-  private void execVar(Stmt.Var stmt) {
+  private Completion execVar(Stmt.Var stmt) {
     Object value = null;
     if (stmt.value() != null) {
       value = evaluate(stmt.value());
     }
 
-    environment.define(stmt.identifier().lexeme(), value);
+    define(stmt.local(), stmt.identifier(), value);
+
+    return Completion.NORMAL;
   }
 
-  private void execBlock(Stmt.Block stmt) {
-    executeBlock(stmt.stmts(), new Environment(environment));
+  private Completion execBlock(Stmt.Block stmt) {
+    reserve(stmt.scope());
+
+    return executeAll(stmt.stmts());
   }
 
-  private void execIf(Stmt.If stmt) {
+  // Functions get a frame big enough for all of their blocks, only the top
+  // level one has to grow.
+  void reserve(Scope scope) {
+    if (frame.length < scope.size) {
+      frame = Arrays.copyOf(frame, scope.size);
+    }
+  }
+
+  private Completion execIf(Stmt.If stmt) {
     if (isTruthy(evaluate(stmt.condition()))) {
-      execute(stmt.ifStmt());
+      return execute(stmt.ifStmt());
     } else if (stmt.elseStmt() != null) {
-      execute(stmt.elseStmt());
+      return execute(stmt.elseStmt());
     }
+
+    return Completion.NORMAL;
   }
 
-  private void execWhile(Stmt.While stmt) {
+  private Completion execWhile(Stmt.While stmt) {
     while (isTruthy(evaluate(stmt.condition()))) {
-      try {
-        execute(stmt.stmt());
-      } catch (Break _) {
+      backEdges++;
+      var completion = execute(stmt.stmt());
+      if (completion == Completion.BREAK) {
         break;
-      } catch (Continue _) {
-        continue;
+      }
+
+      if (completion == Completion.RETURN) {
+        return completion;
       }
     }
+
+    return Completion.NORMAL;
   }
 
-  private void execFor(Stmt.For stmt) {
+  private Completion execFor(Stmt.For stmt) {
+    reserve(stmt.scope());
+
     if (stmt.initializer() != null) {
       execute(stmt.initializer());
     }
 
     while (isTruthy(evaluate(stmt.condition()))) {
-      try {
-        execute(stmt.stmt());
-
-        if (stmt.increment() != null) {
-          evaluate(stmt.increment());
-        }
-      } catch (Break _) {
+      backEdges++;
+      var completion = execute(stmt.stmt());
+      if (completion == Completion.BREAK) {
         break;
-      } catch (Continue _) {
-        if (stmt.increment() != null) {
-          evaluate(stmt.increment());
-        }
+      }
 
-        continue;
+      if (completion == Completion.RETURN) {
+        return completion;
+      }
+
+      // Continuing still runs the increment
+      if (stmt.increment() != null) {
+        evaluate(stmt.increment());
       }
     }
+
+    return Completion.NORMAL;
   }
 
-  private void execFunction(Stmt.Function stmt) {
-    environment.define(stmt.identifier().lexeme(), new LoxFunction(stmt, environment, false));
+  Completion execFunction(Stmt.Function stmt) {
+    // Defined before the closure is created so it can capture itself
+    define(stmt.local(), stmt.identifier(), null);
+    assign(stmt.local(), stmt.identifier(), new LoxFunction(stmt, capture(stmt, null), null, false));
+
+    return Completion.NORMAL;
   }
 
-  private void execReturn(Stmt.Return stmt) {
+  private Completion execReturn(Stmt.Return stmt) {
     Object value = null;
     if (stmt.expr() != null) {
       value = evaluate(stmt.expr());
     }
 
-    throw new Return(value);
+    returned = value;
+    return Completion.RETURN;
   }
 
-  private void execBreak(Stmt.Break stmt) {
-    throw new Break();
+  private Completion execBreak(Stmt.Break stmt) {
+    return Completion.BREAK;
   }
 
-  private void execContinue(Stmt.Continue stmt) {
-    throw new Continue();
+  private Completion execContinue(Stmt.Continue stmt) {
+    return Completion.CONTINUE;
   }
 
-  private void execClass(Stmt.Class stmt) {
+  Completion execClass(Stmt.Class stmt) {
     LoxClass superclass = null;
     if (stmt.superclass() != null) {
       var expr = evaluate(stmt.superclass());
@@ -198,32 +368,83 @@ class Interpreter {
     }
 
     // Defining it first will allow referencing the class within the classes methods.
-    environment.define(stmt.identifier().lexeme(), null);
+    define(stmt.local(), stmt.identifier(), null);
 
+    // Every method of a subclass shares the superclass as its first upvalue
+    Cell superCell = null;
     if (superclass != null) {
-      environment = new Environment(environment);
-      environment.define("super", superclass);
+      superCell = new Cell(superclass);
     }
 
     var methods = new HashMap<String, LoxFunction>();
     for (var method : stmt.methods()) {
       var identifier = method.identifier().lexeme();
-      var function = new LoxFunction(method, environment, identifier.equals("init"));
+      var function = new LoxFunction(method, capture(method, superCell), null, identifier.equals("init"));
 
       methods.put(identifier, function);
     }
 
     var klass = new LoxClass(stmt.identifier().lexeme(), superclass, methods);
 
-    if (superclass != null) {
-      environment = environment.enclosing;
+    assign(stmt.local(), stmt.identifier(), klass);
+
+    return Completion.NORMAL;
+  }
+
+  // Upvalues of a new closure of the function. A body that hasn't been
+  // compiled yet is at the top level, so the only thing it can capture is the
+  // superclass.
+  private Cell[] capture(Stmt.Function stmt, Cell superCell) {
+    if (!stmt.body().isParsed()) {
+      return superCell != null ? new Cell[]{ superCell } : new Cell[0];
     }
 
-    environment.assign(stmt.identifier(), klass);
+    var captures = stmt.frame().captures;
+    var cells = new Cell[captures.length];
+    for (var i = 0; i < captures.length; i++) {
+      var capture = captures[i];
+      if (capture == Frame.SUPER) {
+        cells[i] = superCell;
+      } else if (Frame.isLocal(capture)) {
+        cells[i] = (Cell)frame[Frame.index(capture)];
+      } else {
+        cells[i] = upvalues[Frame.index(capture)];
+      }
+    }
+
+    return cells;
+  }
+
+  private void define(Local local, Token identifier, Object value) {
+    switch (local.kind) {
+      case GLOBAL -> global.define(identifier.lexeme(), value);
+      case FRAME -> frame[local.index] = value;
+      case CELL -> frame[local.index] = new Cell(value);
+      case UPVALUE -> throw new IllegalStateException("Can't declare an upvalue.");
+    }
+  }
+
+  private void assign(Local local, Token identifier, Object value) {
+    switch (local.kind) {
+      case GLOBAL -> global.assign(identifier, value);
+      case FRAME -> frame[local.index] = value;
+      case CELL -> ((Cell)frame[local.index]).value = value;
+      case UPVALUE -> upvalues[local.index].value = value;
+    }
   }
 
   private Object evalLiteral(Expr.Literal expr) {
-    return expr.value();
+    return literal(expr.value());
+  }
+
+  // Integral literals are a Long too, so they compare to other integers
+  // without going through double.
+  Object literal(Object value) {
+    if (dualNumbers && value instanceof Double) {
+      return box((double)value);
+    }
+
+    return value;
   }
 
   private Object evalGrouping(Expr.Grouping expr) {
@@ -246,107 +467,224 @@ class Interpreter {
     return evaluate(expr.right());
   }
 
+  // Only arithmetic and comparisons on numbers all the way down are computed
+  // unboxed, see number. Anything else has its operands evaluated right here
+  // so a call in one costs no more stack than it would without them.
   private Object evalBinary(Expr.Binary expr) {
+    var operator = expr.operator();
+    if (Expr.isNumeric(expr.left()) && Expr.isNumeric(expr.right())) {
+      switch (operator.type()) {
+        case TokenType.PLUS, TokenType.MINUS, TokenType.STAR, TokenType.SLASH, TokenType.PERCENT -> {
+          return box(number(expr));
+        }
+        case TokenType.GREATER -> {
+          return number(expr.left()) > number(expr.right());
+        }
+        case TokenType.LESS -> {
+          return number(expr.left()) < number(expr.right());
+        }
+        case TokenType.GREATER_EQUAL -> {
+          return number(expr.left()) >= number(expr.right());
+        }
+        case TokenType.LESS_EQUAL -> {
+          return number(expr.left()) <= number(expr.right());
+        }
+        default -> {}
+      }
+    }
+
     var left = evaluate(expr.left());
     var right = evaluate(expr.right());
 
-    return switch (expr.operator().type()) {
-      case TokenType.PLUS -> {
-        if (left instanceof Double) {
-          checkNumberOperand(expr.operator(), right);
-          yield (double)left + (double)right;
-        } else {
-          checkStringOperands(expr.operator(), left, right);
-          yield (String)left + (String)right;
-        }
-      }
-      case TokenType.MINUS -> {
-        checkNumberOperands(expr.operator(), left, right);
-        yield (double)left - (double)right;
-      }
-      case TokenType.STAR -> {
-        checkNumberOperands(expr.operator(), left, right);
-        yield (double)left * (double)right;
+    return switch (operator.type()) {
+      case TokenType.EQUAL_EQUAL -> isEqual(left, right);
+      case TokenType.BANG_EQUAL -> !isEqual(left, right);
+      default -> binary(operator, left, right);
+    };
+  }
+
+  // Binary operators other than equality applied to values that are already
+  // evaluated, with the same errors as evalBinary.
+  Object binary(Token operator, Object left, Object right) {
+    if (operator.type() == TokenType.PLUS) {
+      if (isNumber(left)) {
+        checkNumberOperand(operator, right);
+        return box(toDouble(left) + toDouble(right));
       }
+
+      checkStringOperands(operator, left, right);
+      return (String)left + (String)right;
+    }
+
+    if (!isNumber(left) || !isNumber(right)) {
+      throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    var a = toDouble(left);
+    var b = toDouble(right);
+
+    return switch (operator.type()) {
+      case TokenType.MINUS -> box(a - b);
+      case TokenType.STAR -> box(a * b);
       case TokenType.SLASH -> {
-        checkNumberOperands(expr.operator(), left, right);
-        checkNotDivideByZero(expr.operator(), right);
-        yield (double)left / (double)right;
+        checkNotDivideByZero(operator, b);
+        yield box(a / b);
       }
       case TokenType.PERCENT -> {
-        checkNumberOperands(expr.operator(), left, right);
-        checkNotDivideByZero(expr.operator(), right);
-        yield (double)left % (double)right;
+        checkNotDivideByZero(operator, b);
+        yield box(remainder(a, b));
       }
-      case TokenType.GREATER -> {
-        checkNumberOperands(expr.operator(), left, right);
-        yield (double)left > (double)right;
-      }
-      case TokenType.LESS -> {
-        checkNumberOperands(expr.operator(), left, right);
-        yield (double)left < (double)right;
-      }
-      case TokenType.GREATER_EQUAL -> {
-        checkNumberOperands(expr.operator(), left, right);
-        yield (double)left >= (double)right;
-      }
-      case TokenType.LESS_EQUAL -> {
-        checkNumberOperands(expr.operator(), left, right);
-        yield (double)left <= (double)right;
-      }
-      case TokenType.EQUAL_EQUAL -> isEqual(left, right);
-      case TokenType.BANG_EQUAL -> !isEqual(left, right);
-      default -> null;
+      case TokenType.GREATER -> a > b;
+      case TokenType.LESS -> a < b;
+      case TokenType.GREATER_EQUAL -> a >= b;
+      case TokenType.LESS_EQUAL -> a <= b;
+      default -> throw new IllegalStateException(String.format("'%s' isn't a binary operator.", operator.lexeme()));
     };
   }
 
-  private Object evalUnary(Expr.Unary expr) {
-    var value = evaluate(expr.expr());
+  Object negate(Token operator, Object value) {
+    checkNumberOperand(operator, value);
 
+    return box(-toDouble(value));
+  }
+
+  private Object evalUnary(Expr.Unary expr) {
     return switch (expr.operator().type()) {
       case TokenType.MINUS -> {
-        checkNumberOperand(expr.operator(), value);
-        yield -(double)value;
+        if (Expr.isNumeric(expr.expr())) {
+          yield box(-number(expr.expr()));
+        }
+
+        yield negate(expr.operator(), evaluate(expr.expr()));
       }
-      case TokenType.BANG -> !isTruthy(value);
+      case TokenType.BANG -> !isTruthy(evaluate(expr.expr()));
       default -> null;
     };
   }
 
+  // Numeric expressions are computed on doubles all the way down and only
+  // boxed once their value leaves the expression. Only called on those, an
+  // operand that isn't one is evaluated and checked the same as when boxed.
+  private double number(Expr expr) {
+    return switch (expr) {
+      case Expr.Literal literal -> (double)literal.value();
+      case Expr.Grouping grouping -> number(grouping.expr());
+      case Expr.Unary unary -> {
+        if (Expr.isNumeric(unary.expr())) {
+          yield -number(unary.expr());
+        }
+
+        var value = evaluate(unary.expr());
+        checkNumberOperand(unary.operator(), value);
+        yield -toDouble(value);
+      }
+      case Expr.Binary binary -> {
+        var operator = binary.operator();
+        if (!Expr.isNumeric(binary.left()) || !Expr.isNumeric(binary.right())) {
+          yield toDouble(binary(operator, evaluate(binary.left()), evaluate(binary.right())));
+        }
+
+        var left = number(binary.left());
+        var right = number(binary.right());
+
+        yield switch (operator.type()) {
+          case TokenType.PLUS -> left + right;
+          case TokenType.MINUS -> left - right;
+          case TokenType.STAR -> left * right;
+          case TokenType.SLASH -> {
+            checkNotDivideByZero(operator, right);
+            yield left / right;
+          }
+          case TokenType.PERCENT -> {
+            checkNotDivideByZero(operator, right);
+            yield remainder(left, right);
+          }
+          default -> throw new IllegalStateException(String.format("'%s' isn't numeric.", operator.lexeme()));
+        };
+      }
+      default -> throw new IllegalStateException("Expression isn't numeric.");
+    };
+  }
+
   private Object evalVar(Expr.Var expr) {
-    return lookupVar(expr.identifier(), expr);
+    return lookupVar(expr.identifier(), expr.local());
   }
 
   private Object evalAssign(Expr.Assign expr) {
     var value = evaluate(expr.value());
-
-    var depth = locals.get(expr);
-    if (depth == null) {
-      global.assign(expr.identifier(), value);
-    } else {
-      environment.assignAt(depth, expr.identifier(), value);
-    }
+    assign(expr.local(), expr.identifier(), value);
 
     return value;
   }
 
   private Object evalCall(Expr.Call expr) {
-    var callee = evaluate(expr.callee());
+    // Methods are called on their instance directly instead of being bound to
+    // it first.
+    Object callee;
+    if (expr.callee() instanceof Expr.InstanceGet get) {
+      var instance = evaluate(get.instance());
+      if (!(instance instanceof LoxInstance)) {
+        throw new RuntimeError(get.identifier(), "Only instances of classes have properties.");
+      }
+
+      var receiver = (LoxInstance)instance;
+      var method = receiver.method(get.identifier().lexeme());
+      if (method != null) {
+        return invoke(expr, method, receiver);
+      }
+
+      callee = receiver.get(get.identifier());
+    } else {
+      callee = evaluate(expr.callee());
+    }
+
+    // Not a method of its own, it would be one more JVM frame for every level
+    // of recursion in Lox
     if (!(callee instanceof LoxCallable)) {
       throw new RuntimeError(expr.paren(), "Calls can only be made on functions and classes.");
     }
 
     var func = (LoxCallable)callee;
-    var args = new ArrayList<Object>(expr.args().size());
-    if (expr.args().size() != func.arity()) {
-      throw new RuntimeError(expr.paren(), String.format("Expected %d arguments but got %d", func.arity(), expr.args().size()));
+    var args = expr.args();
+    checkArity(expr, func.arity());
+
+    return switch (args.size()) {
+      case 0 -> func.call0(this);
+      case 1 -> func.call1(this, evaluate(args.get(0)));
+      case 2 -> func.call2(this, evaluate(args.get(0)), evaluate(args.get(1)));
+      case 3 -> func.call3(this, evaluate(args.get(0)), evaluate(args.get(1)), evaluate(args.get(2)));
+      case 4 -> func.call4(this, evaluate(args.get(0)), evaluate(args.get(1)), evaluate(args.get(2)), evaluate(args.get(3)));
+      default -> func.call(this, evaluateAll(args));
+    };
+  }
+
+  private Object invoke(Expr.Call expr, LoxFunction method, LoxInstance receiver) {
+    var args = expr.args();
+    checkArity(expr, method.arity());
+
+    return switch (args.size()) {
+      case 0 -> method.invoke0(this, receiver);
+      case 1 -> method.invoke1(this, receiver, evaluate(args.get(0)));
+      case 2 -> method.invoke2(this, receiver, evaluate(args.get(0)), evaluate(args.get(1)));
+      case 3 -> method.invoke3(this, receiver, evaluate(args.get(0)), evaluate(args.get(1)), evaluate(args.get(2)));
+      case 4 -> method.invoke4(this, receiver, evaluate(args.get(0)), evaluate(args.get(1)), evaluate(args.get(2)), evaluate(args.get(3)));
+      default -> method.invoke(this, receiver, evaluateAll(args));
+    };
+  }
+
+  private void checkArity(Expr.Call expr, int arity) {
+    if (expr.args().size() != arity) {
+      throw new RuntimeError(expr.paren(), String.format("Expected %d arguments but got %d", arity, expr.args().size()));
     }
+  }
 
-    for (var arg : expr.args()) {
-      args.add(evaluate(arg));
+  private Object[] evaluateAll(List<Expr> exprs) {
+    var values = new Object[exprs.size()];
+    for (var i = 0; i < values.length; i++) {
+      values[i] = evaluate(exprs.get(i));
     }
 
-    return func.call(this, args);
+    return values;
   }
 
   private Object evalInstanceGet(Expr.InstanceGet expr) {
@@ -370,13 +708,12 @@ class Interpreter {
   }
 
   private Object evalThis(Expr.This expr) {
-    return lookupVar(expr.keyword(), expr);
+    return lookupVar(expr.keyword(), expr.local());
   }
 
-  private Object evalSuper(Expr.Super expr) {
-    var depth = locals.get(expr);
-    var superclass = (LoxClass)environment.getAt(depth, "super");
-    var instance = (LoxInstance)environment.getAt(depth - 1, "this");
+  Object evalSuper(Expr.Super expr) {
+    var superclass = (LoxClass)lookupVar(expr.keyword(), expr.local());
+    var instance = (LoxInstance)lookupVar(expr.keyword(), expr.receiver());
 
     var identifier = expr.method().lexeme();
     var method = superclass.getMethod(identifier);
@@ -387,16 +724,51 @@ class Interpreter {
     return method.bind(instance);
   }
 
-  private Object lookupVar(Token identifier, Expr expr) {
-    var depth = locals.get(expr);
-    if (depth == null) {
-      return global.get(identifier);
+  // Numbers leaving a numeric expression. With dual numbers, integral ones are
+  // kept as a Long unless they're -0, which only a Double can be. Arithmetic
+  // is still done on doubles, so every result is exactly what it would have
+  // been without dual numbers.
+  Object box(double value) {
+    if (dualNumbers && value == (long)value && Math.abs(value) <= MAX_EXACT && (value != 0 || Math.copySign(1, value) > 0)) {
+      return Long.valueOf((long)value);
     }
 
-    return environment.getAt(depth, identifier.lexeme());
+    return value;
   }
 
-  private boolean isEqual(Object left, Object right) {
+  boolean isNumber(Object value) {
+    return value instanceof Double || value instanceof Long;
+  }
+
+  double toDouble(Object value) {
+    if (value instanceof Long) {
+      return (long)value;
+    }
+
+    return (double)value;
+  }
+
+  // The integer remainder is exact, so it's the same as the much slower
+  // floating point one for integral operands. The result has the sign of the
+  // left operand, even when it's 0.
+  double remainder(double left, double right) {
+    if (dualNumbers && left == (long)left && right == (long)right && Math.abs(left) <= MAX_EXACT && Math.abs(right) <= MAX_EXACT) {
+      return Math.copySign((double)((long)left % (long)right), left);
+    }
+
+    return left % right;
+  }
+
+  private Object lookupVar(Token identifier, Local local) {
+    return switch (local.kind) {
+      case GLOBAL -> global.get(identifier);
+      case FRAME -> frame[local.index];
+      case CELL -> ((Cell)frame[local.index]).value;
+      case UPVALUE -> upvalues[local.index].value;
+    };
+  }
+
+  boolean isEqual(Object left, Object right) {
     if (left == null && right == null) {
       return true;
     }
@@ -405,10 +777,20 @@ class Interpreter {
       return false;
     }
 
+    // A Long is equal to the Double it stands for, numbers compare the same
+    // way Double.equals does.
+    if (left instanceof Long && right instanceof Long) {
+      return (long)left == (long)right;
+    }
+
+    if (left instanceof Long || right instanceof Long) {
+      return isNumber(left) && isNumber(right) && Double.doubleToLongBits(toDouble(left)) == Double.doubleToLongBits(toDouble(right));
+    }
+
     return left.equals(right);
   }
 
-  private boolean isTruthy(Object value) {
+  boolean isTruthy(Object value) {
     if (value == null) {
       return false;
     }
@@ -420,32 +802,22 @@ class Interpreter {
     return true;
   }
 
-  private void checkNumberOperand(Token operator, Object operand) {
-    if (operand instanceof Double) {
+  void checkNumberOperand(Token operator, Object operand) {
+    if (isNumber(operand)) {
       return;
     }
 
     throw new RuntimeError(operator, "Operand must be a number.");
   }
 
-  private void checkNumberOperands(Token operator, Object... operands) {
-    for (var operand : operands) {
-      if (!(operand instanceof Double)) {
-        throw new RuntimeError(operator, "Operands must be numbers.");
-      }
-    }
-  }
-
-  private void checkStringOperands(Token operator, Object... operands) {
-    for (var operand : operands) {
-      if (!(operand instanceof String)) {
-        throw new RuntimeError(operator, "Operands must be strings.");
-      }
+  private void checkStringOperands(Token operator, Object left, Object right) {
+    if (!(left instanceof String) || !(right instanceof String)) {
+      throw new RuntimeError(operator, "Operands must be strings.");
     }
   }
 
-  private void checkNotDivideByZero(Token operator, Object operand) {
-    if (operand instanceof Double && (double)operand == 0) {
+  void checkNotDivideByZero(Token operator, double operand) {
+    if (operand == 0) {
       throw new RuntimeError(operator, "Cannot be divide by zero.");
     }
   }
@@ -0,0 +1,177 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Tiered execution with --jit. Functions start out interpreted by whichever
+// backend runs the program, which counts their calls and loop iterations. A
+// function that gets hot is compiled by JvmCompiler to a hidden class on a
+// thread of its own while the interpreter carries on, and from then on its
+// calls run the compiled code, see FunctionBody.code. There's no on-stack
+// replacement, a call that's already running finishes interpreted.
+//
+// Compiled code assumes that a global it calls still holds the function it did
+// when it was queued, and calls that function directly. When it doesn't, the
+// function is deoptimized: that call goes through as usual, but the next ones
+// are interpreted until the function is hot again. It's then compiled without
+// the assumption, or not at all after too many deoptimizations.
+//
+// With --profile-in, a function that was hot last time is compiled after its
+// first call, and calls that went elsewhere last time aren't assumed.
+class Jit {
+  // Each call counts once, and so does each loop iteration
+  private static final int THRESHOLD = 1000;
+  private static final int MAX_DEOPTIMIZATIONS = 4;
+
+  // One thread compiles for every interpreter, without keeping the program
+  // from exiting
+  private static final ExecutorService compiler = Executors.newSingleThreadExecutor(runnable -> {
+    var thread = new Thread(runnable, "jlox-jit");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final Interpreter interpreter;
+
+  // Calls that went somewhere other than assumed, by their paren
+  private final Set<Token> missed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  Jit(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  // Called as the interpreter returns from the function
+  void count(Stmt.Function declaration, int count) {
+    var body = declaration.body();
+    var profile = interpreter.profile;
+    if (profile != null && body.isCold() && profile.count(declaration) >= THRESHOLD) {
+      count = THRESHOLD;
+    }
+
+    if (!body.heat(count, THRESHOLD) || body.deoptimizations() > MAX_DEOPTIMIZATIONS) {
+      return;
+    }
+
+    // Globals are only read on the interpreter's thread
+    var targets = new IdentityHashMap<Token, LoxFunction>();
+    targets(body.stmts(), targets);
+    compiler.execute(() -> compile(declaration, targets));
+  }
+
+  private static void compile(Stmt.Function declaration, Map<Token, LoxFunction> targets) {
+    try {
+      var compiled = JvmCompiler.compileFunction("LoxJit", declaration, targets);
+      var lookup = MethodHandles.lookup().defineHiddenClass(compiled.bytes(), true);
+      var klass = lookup.lookupClass();
+      lookup.findStaticVarHandle(klass, "constants", Object[].class).set(compiled.constants());
+
+      var constructor = lookup.findConstructor(klass, MethodType.methodType(void.class, int.class));
+      declaration.body().bind((JvmCompiler.Code)constructor.invoke(0));
+    } catch (Throwable error) {
+      // Anything that can't be compiled, such as a function too big for a
+      // class, stays interpreted
+    }
+  }
+
+  static void deoptimize(Interpreter interpreter, Stmt.Function declaration, Token paren) {
+    if (interpreter.jit != null) {
+      interpreter.jit.missed.add(paren);
+    }
+
+    if (interpreter.profile != null) {
+      interpreter.profile.missed(paren);
+    }
+
+    declaration.body().deoptimize();
+  }
+
+  // Calls to a global that holds a function which takes that many arguments,
+  // leaving out nested functions since they aren't compiled along with it
+  private void targets(List<Stmt> stmts, Map<Token, LoxFunction> targets) {
+    for (var stmt : stmts) {
+      targets(stmt, targets);
+    }
+  }
+
+  private void targets(Stmt stmt, Map<Token, LoxFunction> targets) {
+    switch (stmt) {
+      case Stmt.ExprStmt exprStmt -> targets(exprStmt.expr(), targets);
+      case Stmt.If ifStmt -> {
+        targets(ifStmt.condition(), targets);
+        targets(ifStmt.ifStmt(), targets);
+        if (ifStmt.elseStmt() != null) {
+          targets(ifStmt.elseStmt(), targets);
+        }
+      }
+      case Stmt.While whileStmt -> {
+        targets(whileStmt.condition(), targets);
+        targets(whileStmt.stmt(), targets);
+      }
+      case Stmt.For forStmt -> {
+        if (forStmt.initializer() != null) {
+          targets(forStmt.initializer(), targets);
+        }
+
+        targets(forStmt.condition(), targets);
+        if (forStmt.increment() != null) {
+          targets(forStmt.increment(), targets);
+        }
+
+        targets(forStmt.stmt(), targets);
+      }
+      case Stmt.Return returnStmt -> {
+        if (returnStmt.expr() != null) {
+          targets(returnStmt.expr(), targets);
+        }
+      }
+      case Stmt.Block block -> targets(block.stmts(), targets);
+      case Stmt.Var var -> {
+        if (var.value() != null) {
+          targets(var.value(), targets);
+        }
+      }
+      default -> {}
+    }
+  }
+
+  private void targets(Expr expr, Map<Token, LoxFunction> targets) {
+    switch (expr) {
+      case Expr.Grouping grouping -> targets(grouping.expr(), targets);
+      case Expr.Logical logical -> {
+        targets(logical.left(), targets);
+        targets(logical.right(), targets);
+      }
+      case Expr.Binary binary -> {
+        targets(binary.left(), targets);
+        targets(binary.right(), targets);
+      }
+      case Expr.Unary unary -> targets(unary.expr(), targets);
+      case Expr.Assign assign -> targets(assign.value(), targets);
+      case Expr.InstanceGet get -> targets(get.instance(), targets);
+      case Expr.InstanceSet set -> {
+        targets(set.instance(), targets);
+        targets(set.value(), targets);
+      }
+      case Expr.Call call -> {
+        if (call.callee() instanceof Expr.Var var && var.local().kind == Local.Kind.GLOBAL && !missed.contains(call.paren())
+            && (interpreter.profile == null || !interpreter.profile.wasMissed(call.paren()))
+            && interpreter.global.peek(var.identifier().lexeme()) instanceof LoxFunction function
+            && function.receiver() == null && function.arity() == call.args().size()) {
+          targets.put(call.paren(), function);
+        } else {
+          targets(call.callee(), targets);
+        }
+
+        for (var arg : call.args()) {
+          targets(arg, targets);
+        }
+      }
+      default -> {}
+    }
+  }
+}
@@ -0,0 +1,1122 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles resolved statements to JVM classes, so HotSpot compiles Lox code
+// the same way it does Java. Each function body becomes a static method run
+// with the interpreter, the frame LoxFunction set up and the upvalues of its
+// closure. Its frame slots are moved into JVM locals on entry and numeric
+// expressions are computed on JVM doubles, see Expr.isNumeric. Anything
+// dynamic, and anything that can fail, goes through JvmRuntime.
+//
+// Calls are invokeinterface on LoxCallable, which HotSpot keeps an inline
+// cache for at each call site. Method calls have one of their own as well,
+// keyed on the class of the instance, see JvmRuntime.Site.
+//
+// Tokens, declarations and caches the code needs are in a static array of
+// constants. An instance of a class runs the function it was made for.
+class JvmCompiler {
+  interface Code {
+    Object run(Interpreter interpreter, Object[] frame, Cell[] upvalues);
+  }
+
+  private static final String OBJECT = "java/lang/Object";
+  private static final String CODE = "JvmCompiler$Code";
+  private static final String RUNTIME = "JvmRuntime";
+  private static final String SITE = "JvmRuntime$Site";
+  private static final String RUN = "(LInterpreter;[Ljava/lang/Object;[LCell;)Ljava/lang/Object;";
+  private static final String[] INVOKE = {
+    "(Ljava/lang/Object;LLoxInstance;LInterpreter;)Ljava/lang/Object;",
+    "(Ljava/lang/Object;LLoxInstance;LInterpreter;Ljava/lang/Object;)Ljava/lang/Object;",
+    "(Ljava/lang/Object;LLoxInstance;LInterpreter;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;",
+    "(Ljava/lang/Object;LLoxInstance;LInterpreter;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;",
+    "(Ljava/lang/Object;LLoxInstance;LInterpreter;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;",
+  };
+  private static final String[] CALL = {
+    "(LInterpreter;)Ljava/lang/Object;",
+    "(LInterpreter;Ljava/lang/Object;)Ljava/lang/Object;",
+    "(LInterpreter;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;",
+    "(LInterpreter;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;",
+    "(LInterpreter;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;",
+  };
+
+  // Locals of every method, the frame slots come after them
+  private static final int INTERPRETER = 0;
+  private static final int FRAME = 1;
+  private static final int UPVALUES = 2;
+  private static final int SLOTS = 3;
+
+  // Constants are built back in chunks, each its own method
+  private static final int CONSTANTS_PER_METHOD = 500;
+
+  // A class is full once its constant pool is this big, well short of the
+  // limit so the method being compiled still fits. The top level is split
+  // into methods of so many statements, since it's only limited by the size
+  // of the program.
+  private static final int CONSTANT_POOL_LIMIT = 40000;
+  private static final int STATEMENTS_PER_METHOD = 100;
+
+  // One class of a program. One that's too big for a single class is split
+  // over several, each with constants of its own.
+  private static class Unit {
+    final String name;
+    final ClassWriter writer;
+    final List<Object> constants = new ArrayList<>();
+    final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+
+    // The methods an instance of the class can run, by number
+    final List<String> methods = new ArrayList<>();
+
+    Unit(String name) {
+      this.name = name;
+      this.writer = new ClassWriter(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_FINAL, name, OBJECT, CODE);
+    }
+  }
+
+  private final String className;
+  private final List<Unit> units = new ArrayList<>();
+  private Unit unit;
+
+  // Every function found in the code compiled so far, and where it was
+  // compiled to
+  private final List<Stmt.Function> functions = new ArrayList<>();
+  private final Map<Stmt.Function, Integer> functionIndexes = new IdentityHashMap<>();
+  private final Map<Stmt.Function, Unit> functionUnits = new IdentityHashMap<>();
+  private final Map<Stmt.Function, Integer> functionMethods = new IdentityHashMap<>();
+
+  // Set when compiling a single function for the Jit, along with the calls it
+  // assumes go to the function their global held
+  private final Stmt.Function jitted;
+  private final Map<Token, LoxFunction> targets;
+
+  // The method being compiled
+  private ClassWriter.Code code;
+  private int locals;
+  private Loop loop;
+
+  private record Loop(ClassWriter.Label exit, ClassWriter.Label next) {}
+
+  private JvmCompiler(String className, Stmt.Function jitted, Map<Token, LoxFunction> targets) {
+    this.className = className;
+    this.jitted = jitted;
+    this.targets = targets;
+    this.unit = new Unit(className);
+    units.add(unit);
+  }
+
+  record Compiled(byte[] bytes, Object[] constants) {}
+
+  // A function on its own, for the Jit. Its constants are the parts of the
+  // AST the code needs rather than built back, so they're set on the class
+  // once it's defined. Functions declared in it are left to the interpreter.
+  static Compiled compileFunction(String className, Stmt.Function declaration, Map<Token, LoxFunction> targets) {
+    var compiler = new JvmCompiler(className, declaration, targets);
+    var unit = compiler.unit;
+    var name = String.format("%s$0", declaration.identifier().lexeme());
+    unit.methods.add(name);
+    compiler.compileFunction(name, declaration.body().stmts(), declaration.frame().cells.length, declaration.frame().size);
+    compiler.compileRun(unit);
+
+    return new Compiled(unit.writer.toByteArray(), unit.constants.toArray());
+  }
+
+  // A whole program that runs on its own, with the classes it's compiled to by
+  // name. Their constants are built back when they're loaded, so the program
+  // doesn't need the AST it was compiled from. The first class has the main
+  // method.
+  static Map<String, byte[]> compileProgram(String className, List<Stmt> stmts, boolean dualNumbers) {
+    var compiler = new JvmCompiler(className, null, Map.of());
+
+    var script = new ArrayList<Unit>();
+    for (var start = 0; start < stmts.size(); start += STATEMENTS_PER_METHOD) {
+      var chunk = stmts.subList(start, Math.min(start + STATEMENTS_PER_METHOD, stmts.size()));
+      compiler.next();
+      compiler.compileFunction(String.format("script$%d", start / STATEMENTS_PER_METHOD), chunk, 0, slots(chunk));
+      script.add(compiler.unit);
+    }
+
+    // Functions are added as they're found in the code compiled before them
+    for (var i = 0; i < compiler.functions.size(); i++) {
+      var function = compiler.functions.get(i);
+      var name = String.format("%s$%d", function.identifier().lexeme(), i + 1);
+      compiler.next();
+      compiler.functionUnits.put(function, compiler.unit);
+      compiler.functionMethods.put(function, compiler.unit.methods.size());
+      compiler.unit.methods.add(name);
+      compiler.compileFunction(name, function.body().stmts(), function.frame().cells.length, function.frame().size);
+    }
+
+    var first = compiler.units.get(0);
+    compiler.compileMain(first, script, dualNumbers);
+
+    var classes = new LinkedHashMap<String, byte[]>();
+    for (var unit : compiler.units) {
+      compiler.compileRun(unit);
+      compiler.compileConstants(unit);
+      classes.put(unit.name, unit.writer.toByteArray());
+    }
+
+    return classes;
+  }
+
+  // Moves on to a new class once the one being compiled to is full. Building
+  // back a constant, and running a method, takes a few entries in the pool
+  // of its own later on.
+  private void next() {
+    if (unit.writer.constantCount() + 4 * (unit.constants.size() + unit.methods.size()) > CONSTANT_POOL_LIMIT) {
+      unit = new Unit(String.format("%s$%d", className, units.size()));
+      units.add(unit);
+    }
+  }
+
+  // Moves the parameters, and the receiver if there is one, from the frame
+  // into their locals. The rest start out nil.
+  private void compileFunction(String name, List<Stmt> stmts, int params, int slots) {
+    code = unit.writer.method(ClassWriter.ACC_STATIC, name, RUN);
+    locals = SLOTS + slots;
+    code.locals(locals);
+
+    for (var slot = 0; slot < slots; slot++) {
+      if (slot < params) {
+        code.aload(FRAME);
+        code.iconst(slot);
+        code.op(ClassWriter.AALOAD, -1);
+      } else {
+        code.op(ClassWriter.ACONST_NULL, 1);
+      }
+
+      code.astore(SLOTS + slot);
+    }
+
+    for (var stmt : stmts) {
+      compile(stmt);
+    }
+
+    code.op(ClassWriter.ACONST_NULL, 1);
+    code.op(ClassWriter.ARETURN, -1);
+    code.end();
+  }
+
+  // Slots the top level needs for the variables declared in its blocks
+  private static int slots(List<Stmt> stmts) {
+    var slots = 0;
+    for (var stmt : stmts) {
+      slots = Math.max(slots, slots(stmt));
+    }
+
+    return slots;
+  }
+
+  private static int slots(Stmt stmt) {
+    return switch (stmt) {
+      case Stmt.Block block -> Math.max(block.scope().size, slots(block.stmts()));
+      case Stmt.For forStmt -> Math.max(forStmt.scope().size, slots(forStmt.stmt()));
+      case Stmt.If ifStmt -> Math.max(slots(ifStmt.ifStmt()), ifStmt.elseStmt() == null ? 0 : slots(ifStmt.elseStmt()));
+      case Stmt.While whileStmt -> slots(whileStmt.stmt());
+      default -> 0;
+    };
+  }
+
+  private void compile(Stmt stmt) {
+    switch (stmt) {
+      case Stmt.ExprStmt expr -> compileEffect(expr.expr());
+      case Stmt.Var var -> define(var.local(), var.identifier(), () -> {
+        if (var.value() == null) {
+          code.op(ClassWriter.ACONST_NULL, 1);
+        } else {
+          compile(var.value());
+        }
+      });
+      case Stmt.Block block -> {
+        for (var inner : block.stmts()) {
+          compile(inner);
+        }
+      }
+      case Stmt.If ifStmt -> compileIf(ifStmt);
+      case Stmt.While whileStmt -> compileWhile(whileStmt);
+      case Stmt.For forStmt -> compileFor(forStmt);
+      case Stmt.Function func -> compileFunctionDeclaration(func);
+      case Stmt.Class classStmt -> compileClass(classStmt);
+      case Stmt.Return returnStmt -> {
+        if (returnStmt.expr() == null) {
+          code.op(ClassWriter.ACONST_NULL, 1);
+        } else {
+          compile(returnStmt.expr());
+        }
+
+        code.op(ClassWriter.ARETURN, -1);
+      }
+      case Stmt.Break breakStmt -> code.jump(ClassWriter.GOTO, loop.exit());
+      case Stmt.Continue continueStmt -> code.jump(ClassWriter.GOTO, loop.next());
+      default -> throw new IllegalStateException("Unknown statement.");
+    }
+  }
+
+  // An expression whose value isn't used
+  private void compileEffect(Expr expr) {
+    if (expr instanceof Expr.Assign assign) {
+      assign(assign.local(), assign.identifier(), () -> compile(assign.value()), false);
+      return;
+    }
+
+    compile(expr);
+    code.op(ClassWriter.POP, -1);
+  }
+
+  private void compileIf(Stmt.If stmt) {
+    var otherwise = new ClassWriter.Label();
+    compileCondition(stmt.condition(), otherwise, false);
+    compile(stmt.ifStmt());
+
+    if (stmt.elseStmt() == null) {
+      code.bind(otherwise);
+      return;
+    }
+
+    var end = new ClassWriter.Label();
+    code.jump(ClassWriter.GOTO, end);
+    code.bind(otherwise);
+    compile(stmt.elseStmt());
+    code.bind(end);
+  }
+
+  private void compileWhile(Stmt.While stmt) {
+    var start = new ClassWriter.Label();
+    var exit = new ClassWriter.Label();
+
+    code.bind(start);
+    compileCondition(stmt.condition(), exit, false);
+    compileLoop(stmt.stmt(), exit, start);
+    code.jump(ClassWriter.GOTO, start);
+    code.bind(exit);
+  }
+
+  private void compileFor(Stmt.For stmt) {
+    if (stmt.initializer() != null) {
+      compile(stmt.initializer());
+    }
+
+    var start = new ClassWriter.Label();
+    var next = new ClassWriter.Label();
+    var exit = new ClassWriter.Label();
+
+    code.bind(start);
+    compileCondition(stmt.condition(), exit, false);
+    compileLoop(stmt.stmt(), exit, next);
+
+    // Continuing still runs the increment
+    code.bind(next);
+    if (stmt.increment() != null) {
+      compileEffect(stmt.increment());
+    }
+
+    code.jump(ClassWriter.GOTO, start);
+    code.bind(exit);
+  }
+
+  private void compileLoop(Stmt body, ClassWriter.Label exit, ClassWriter.Label next) {
+    var enclosing = loop;
+    loop = new Loop(exit, next);
+    compile(body);
+    loop = enclosing;
+  }
+
+  // Defined before the closure is created so it can capture itself
+  private void compileFunctionDeclaration(Stmt.Function stmt) {
+    define(stmt.local(), stmt.identifier(), () -> code.op(ClassWriter.ACONST_NULL, 1));
+    assign(stmt.local(), stmt.identifier(), () -> {
+      constant(declaration(stmt), "Stmt$Function");
+      compileUpvalues(stmt, -1);
+      code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "function", "(LStmt$Function;[LCell;)LLoxFunction;");
+    }, false);
+  }
+
+  private void compileClass(Stmt.Class stmt) {
+    var superclass = -1;
+    var superCell = -1;
+    if (stmt.superclass() != null) {
+      superclass = temporary(1);
+      read(stmt.superclass().local(), stmt.superclass().identifier());
+      constant(stmt.superclass().identifier(), "Token");
+      code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "superclass", "(Ljava/lang/Object;LToken;)LLoxClass;");
+      code.astore(superclass);
+    }
+
+    define(stmt.local(), stmt.identifier(), () -> code.op(ClassWriter.ACONST_NULL, 1));
+
+    // Every method of a subclass shares the superclass as its first upvalue
+    if (superclass != -1) {
+      superCell = temporary(1);
+      code.type(ClassWriter.NEW, "Cell");
+      code.op(ClassWriter.DUP, 1);
+      code.aload(superclass);
+      code.invoke(ClassWriter.INVOKESPECIAL, "Cell", "<init>", "(Ljava/lang/Object;)V");
+      code.astore(superCell);
+    }
+
+    var cell = superCell;
+    var klass = superclass;
+    assign(stmt.local(), stmt.identifier(), () -> {
+      constant(declaration(stmt), "Stmt$Class");
+      if (klass == -1) {
+        code.op(ClassWriter.ACONST_NULL, 1);
+      } else {
+        code.aload(klass);
+      }
+
+      var methods = stmt.methods();
+      code.iconst(methods.size());
+      code.type(ClassWriter.ANEWARRAY, "[LCell;");
+      for (var i = 0; i < methods.size(); i++) {
+        code.op(ClassWriter.DUP, 1);
+        code.iconst(i);
+        compileUpvalues(methods.get(i), cell);
+        code.op(ClassWriter.AASTORE, -3);
+      }
+
+      code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "klass", "(LStmt$Class;LLoxClass;[[LCell;)LLoxClass;");
+    }, false);
+
+    if (superclass != -1) {
+      release(2);
+    }
+  }
+
+  // The upvalues of a new closure of the function, see Frame.captures
+  private void compileUpvalues(Stmt.Function stmt, int superCell) {
+    var captures = stmt.frame().captures;
+    code.iconst(captures.length);
+    code.type(ClassWriter.ANEWARRAY, "Cell");
+
+    for (var i = 0; i < captures.length; i++) {
+      var capture = captures[i];
+      code.op(ClassWriter.DUP, 1);
+      code.iconst(i);
+      if (capture == Frame.SUPER) {
+        code.aload(superCell);
+      } else if (Frame.isLocal(capture)) {
+        code.aload(SLOTS + Frame.index(capture));
+        code.type(ClassWriter.CHECKCAST, "Cell");
+      } else {
+        code.aload(UPVALUES);
+        code.iconst(Frame.index(capture));
+        code.op(ClassWriter.AALOAD, -1);
+      }
+
+      code.op(ClassWriter.AASTORE, -3);
+    }
+  }
+
+  private void define(Local local, Token identifier, Runnable value) {
+    switch (local.kind) {
+      case GLOBAL -> {
+        code.aload(INTERPRETER);
+        code.field(ClassWriter.GETFIELD, "Interpreter", "global", "LEnvironment;");
+        code.ldc(identifier.lexeme());
+        value.run();
+        code.invoke(ClassWriter.INVOKEVIRTUAL, "Environment", "define", "(Ljava/lang/String;Ljava/lang/Object;)V");
+      }
+      case FRAME -> {
+        value.run();
+        code.astore(SLOTS + local.index);
+      }
+      case CELL -> {
+        code.type(ClassWriter.NEW, "Cell");
+        code.op(ClassWriter.DUP, 1);
+        value.run();
+        code.invoke(ClassWriter.INVOKESPECIAL, "Cell", "<init>", "(Ljava/lang/Object;)V");
+        code.astore(SLOTS + local.index);
+      }
+      case UPVALUE -> throw new IllegalStateException("Can't declare an upvalue.");
+    }
+  }
+
+  // Leaves the value on the stack if it's kept
+  private void assign(Local local, Token identifier, Runnable value, boolean keep) {
+    switch (local.kind) {
+      case GLOBAL -> {
+        code.aload(INTERPRETER);
+        code.field(ClassWriter.GETFIELD, "Interpreter", "global", "LEnvironment;");
+        constant(identifier, "Token");
+        value.run();
+        if (keep) {
+          code.op(ClassWriter.DUP_X2, 1);
+        }
+
+        code.invoke(ClassWriter.INVOKEVIRTUAL, "Environment", "assign", "(LToken;Ljava/lang/Object;)V");
+      }
+      case FRAME -> {
+        value.run();
+        if (keep) {
+          code.op(ClassWriter.DUP, 1);
+        }
+
+        code.astore(SLOTS + local.index);
+      }
+      case CELL, UPVALUE -> {
+        loadCell(local);
+        value.run();
+        if (keep) {
+          code.op(ClassWriter.DUP_X1, 1);
+        }
+
+        code.field(ClassWriter.PUTFIELD, "Cell", "value", "Ljava/lang/Object;");
+      }
+    }
+  }
+
+  private void read(Local local, Token identifier) {
+    switch (local.kind) {
+      case GLOBAL -> {
+        code.aload(INTERPRETER);
+        code.field(ClassWriter.GETFIELD, "Interpreter", "global", "LEnvironment;");
+        constant(identifier, "Token");
+        code.invoke(ClassWriter.INVOKEVIRTUAL, "Environment", "get", "(LToken;)Ljava/lang/Object;");
+      }
+      case FRAME -> code.aload(SLOTS + local.index);
+      case CELL, UPVALUE -> {
+        loadCell(local);
+        code.field(ClassWriter.GETFIELD, "Cell", "value", "Ljava/lang/Object;");
+      }
+    }
+  }
+
+  private void loadCell(Local local) {
+    if (local.kind == Local.Kind.CELL) {
+      code.aload(SLOTS + local.index);
+      code.type(ClassWriter.CHECKCAST, "Cell");
+    } else {
+      code.aload(UPVALUES);
+      code.iconst(local.index);
+      code.op(ClassWriter.AALOAD, -1);
+    }
+  }
+
+  private void compile(Expr expr) {
+    switch (expr) {
+      case Expr.Literal literal -> compileLiteral(literal.value());
+      case Expr.Grouping grouping -> compile(grouping.expr());
+      case Expr.Logical logical -> compileLogical(logical);
+      case Expr.Binary binary -> compileBinary(binary);
+      case Expr.Unary unary -> compileUnary(unary);
+      case Expr.Var var -> read(var.local(), var.identifier());
+      case Expr.Assign assign -> assign(assign.local(), assign.identifier(), () -> compile(assign.value()), true);
+      case Expr.Call call -> compileCall(call);
+      case Expr.InstanceGet get -> {
+        compile(get.instance());
+        constant(get.identifier(), "Token");
+        code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "get", "(Ljava/lang/Object;LToken;)Ljava/lang/Object;");
+      }
+      case Expr.InstanceSet set -> {
+        // The instance is checked before the value is evaluated
+        compile(set.instance());
+        constant(set.identifier(), "Token");
+        code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "instance", "(Ljava/lang/Object;LToken;)LLoxInstance;");
+        constant(set.identifier(), "Token");
+        compile(set.value());
+        code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "set", "(LLoxInstance;LToken;Ljava/lang/Object;)Ljava/lang/Object;");
+      }
+      case Expr.This thisExpr -> read(thisExpr.local(), thisExpr.keyword());
+      case Expr.Super superExpr -> {
+        read(superExpr.local(), superExpr.keyword());
+        read(superExpr.receiver(), superExpr.keyword());
+        constant(superExpr.method(), "Token");
+        code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "superMethod", "(Ljava/lang/Object;Ljava/lang/Object;LToken;)LLoxFunction;");
+      }
+      default -> throw new IllegalStateException("Unknown expression.");
+    }
+  }
+
+  private void compileLiteral(Object value) {
+    switch (value) {
+      case null -> code.op(ClassWriter.ACONST_NULL, 1);
+      case Boolean bool -> code.field(ClassWriter.GETSTATIC, "java/lang/Boolean", bool ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+      case String string -> code.ldc(string);
+      default -> {
+        // Integral numbers are a Long with dual numbers
+        code.aload(INTERPRETER);
+        constant(value, OBJECT);
+        code.invoke(ClassWriter.INVOKEVIRTUAL, "Interpreter", "literal", "(Ljava/lang/Object;)Ljava/lang/Object;");
+      }
+    }
+  }
+
+  private void compileLogical(Expr.Logical expr) {
+    var end = new ClassWriter.Label();
+
+    compile(expr.left());
+    code.op(ClassWriter.DUP, 1);
+    code.aload(INTERPRETER);
+    code.op(ClassWriter.SWAP, 0);
+    code.invoke(ClassWriter.INVOKEVIRTUAL, "Interpreter", "isTruthy", "(Ljava/lang/Object;)Z");
+    code.jump(expr.operator().type() == TokenType.OR ? ClassWriter.IFNE : ClassWriter.IFEQ, end);
+    code.op(ClassWriter.POP, -1);
+    compile(expr.right());
+    code.bind(end);
+  }
+
+  private void compileBinary(Expr.Binary expr) {
+    if (expr.numeric()) {
+      code.aload(INTERPRETER);
+      compileNumber(expr);
+      box();
+      return;
+    }
+
+    var operator = expr.operator();
+    switch (operator.type()) {
+      case TokenType.PLUS -> {
+        code.aload(INTERPRETER);
+        constant(operator, "Token");
+        compile(expr.left());
+        compile(expr.right());
+        code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "add", "(LInterpreter;LToken;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+      }
+      case TokenType.EQUAL_EQUAL, TokenType.BANG_EQUAL -> {
+        compileEqual(expr);
+        if (operator.type() == TokenType.BANG_EQUAL) {
+          code.iconst(1);
+          code.op(ClassWriter.IXOR, -1);
+        }
+
+        code.invoke(ClassWriter.INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+      }
+      default -> {
+        var yes = new ClassWriter.Label();
+        var end = new ClassWriter.Label();
+        compileComparison(expr, yes, true);
+        code.field(ClassWriter.GETSTATIC, "java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;");
+        code.jump(ClassWriter.GOTO, end);
+        code.bind(yes);
+        code.field(ClassWriter.GETSTATIC, "java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;");
+        code.bind(end);
+      }
+    }
+  }
+
+  private void compileEqual(Expr.Binary expr) {
+    code.aload(INTERPRETER);
+    compile(expr.left());
+    compile(expr.right());
+    code.invoke(ClassWriter.INVOKEVIRTUAL, "Interpreter", "isEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+  }
+
+  // Jumps to the target if the comparison is the same as when. NaN compares
+  // false either way.
+  private void compileComparison(Expr.Binary expr, ClassWriter.Label target, boolean when) {
+    compileOperands(expr);
+
+    switch (expr.operator().type()) {
+      case TokenType.GREATER -> {
+        code.op(ClassWriter.DCMPL, -3);
+        code.jump(when ? ClassWriter.IFGT : ClassWriter.IFLE, target);
+      }
+      case TokenType.GREATER_EQUAL -> {
+        code.op(ClassWriter.DCMPL, -3);
+        code.jump(when ? ClassWriter.IFGE : ClassWriter.IFLT, target);
+      }
+      case TokenType.LESS -> {
+        code.op(ClassWriter.DCMPG, -3);
+        code.jump(when ? ClassWriter.IFLT : ClassWriter.IFGE, target);
+      }
+      case TokenType.LESS_EQUAL -> {
+        code.op(ClassWriter.DCMPG, -3);
+        code.jump(when ? ClassWriter.IFLE : ClassWriter.IFGT, target);
+      }
+      default -> throw new IllegalStateException(String.format("'%s' isn't a binary operator.", expr.operator().lexeme()));
+    }
+  }
+
+  // Jumps to the target if the condition's truthiness is the same as when,
+  // without boxing the comparisons and logical operators in it
+  private void compileCondition(Expr condition, ClassWriter.Label target, boolean when) {
+    switch (condition) {
+      case Expr.Grouping grouping -> compileCondition(grouping.expr(), target, when);
+      case Expr.Unary unary when unary.operator().type() == TokenType.BANG -> compileCondition(unary.expr(), target, !when);
+      case Expr.Logical logical -> {
+        // Or jumps as soon as either side is true, and only goes on to the
+        // right if the left is false. And is the other way around.
+        var or = logical.operator().type() == TokenType.OR;
+        if (or == when) {
+          compileCondition(logical.left(), target, when);
+          compileCondition(logical.right(), target, when);
+        } else {
+          var skip = new ClassWriter.Label();
+          compileCondition(logical.left(), skip, !when);
+          compileCondition(logical.right(), target, when);
+          code.bind(skip);
+        }
+      }
+      case Expr.Binary binary when !binary.numeric() && binary.operator().type() != TokenType.PLUS -> {
+        switch (binary.operator().type()) {
+          case TokenType.EQUAL_EQUAL -> {
+            compileEqual(binary);
+            code.jump(when ? ClassWriter.IFNE : ClassWriter.IFEQ, target);
+          }
+          case TokenType.BANG_EQUAL -> {
+            compileEqual(binary);
+            code.jump(when ? ClassWriter.IFEQ : ClassWriter.IFNE, target);
+          }
+          default -> compileComparison(binary, target, when);
+        }
+      }
+      default -> {
+        code.aload(INTERPRETER);
+        compile(condition);
+        code.invoke(ClassWriter.INVOKEVIRTUAL, "Interpreter", "isTruthy", "(Ljava/lang/Object;)Z");
+        code.jump(when ? ClassWriter.IFNE : ClassWriter.IFEQ, target);
+      }
+    }
+  }
+
+  private void compileUnary(Expr.Unary expr) {
+    if (expr.operator().type() == TokenType.MINUS) {
+      code.aload(INTERPRETER);
+      compileNumber(expr);
+      box();
+      return;
+    }
+
+    code.aload(INTERPRETER);
+    compile(expr.expr());
+    code.invoke(ClassWriter.INVOKEVIRTUAL, "Interpreter", "isTruthy", "(Ljava/lang/Object;)Z");
+    code.iconst(1);
+    code.op(ClassWriter.IXOR, -1);
+    code.invoke(ClassWriter.INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+  }
+
+  // With the interpreter below the double
+  private void box() {
+    code.invoke(ClassWriter.INVOKEVIRTUAL, "Interpreter", "box", "(D)Ljava/lang/Object;");
+  }
+
+  // Leaves the value of a numeric expression as a double, see Expr.isNumeric
+  private void compileNumber(Expr expr) {
+    switch (expr) {
+      case Expr.Literal literal -> code.ldc((double)literal.value());
+      case Expr.Grouping grouping -> compileNumber(grouping.expr());
+      case Expr.Unary unary -> {
+        if (Expr.isNumeric(unary.expr())) {
+          compileNumber(unary.expr());
+        } else {
+          compile(unary.expr());
+          constant(unary.operator(), "Token");
+          code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "operand", "(Ljava/lang/Object;LToken;)D");
+        }
+
+        code.op(ClassWriter.DNEG, 0);
+      }
+      case Expr.Binary binary -> {
+        var operator = binary.operator();
+        compileOperands(binary);
+
+        switch (operator.type()) {
+          case TokenType.PLUS -> code.op(ClassWriter.DADD, -2);
+          case TokenType.MINUS -> code.op(ClassWriter.DSUB, -2);
+          case TokenType.STAR -> code.op(ClassWriter.DMUL, -2);
+          case TokenType.SLASH -> {
+            divisor(operator);
+            code.op(ClassWriter.DDIV, -2);
+          }
+          case TokenType.PERCENT -> {
+            divisor(operator);
+            code.aload(INTERPRETER);
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "remainder", "(DDLInterpreter;)D");
+          }
+          default -> throw new IllegalStateException(String.format("'%s' isn't numeric.", operator.lexeme()));
+        }
+      }
+      default -> throw new IllegalStateException("Expression isn't numeric.");
+    }
+  }
+
+  private void divisor(Token operator) {
+    constant(operator, "Token");
+    code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "divisor", "(DLToken;)D");
+  }
+
+  // Leaves both operands as doubles. Both are evaluated before either is
+  // checked, the left one first, see Interpreter.binary.
+  private void compileOperands(Expr.Binary expr) {
+    var operator = expr.operator();
+    var rightNumeric = Expr.isNumeric(expr.right());
+
+    if (Expr.isNumeric(expr.left())) {
+      compileNumber(expr.left());
+      compileRightOperand(expr.right(), operator);
+      return;
+    }
+
+    compile(expr.left());
+    if (rightNumeric) {
+      var right = temporary(2);
+      compileNumber(expr.right());
+      code.dstore(right);
+      constant(operator, "Token");
+      code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "leftOperand", "(Ljava/lang/Object;LToken;)D");
+      code.dload(right);
+      release(2);
+    } else {
+      var right = temporary(1);
+      compile(expr.right());
+      code.astore(right);
+      constant(operator, "Token");
+      code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "leftOperand", "(Ljava/lang/Object;LToken;)D");
+      code.aload(right);
+      release(1);
+      constant(operator, "Token");
+      code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "rightOperand", "(Ljava/lang/Object;LToken;)D");
+    }
+  }
+
+  private void compileRightOperand(Expr right, Token operator) {
+    if (Expr.isNumeric(right)) {
+      compileNumber(right);
+      return;
+    }
+
+    compile(right);
+    constant(operator, "Token");
+    code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "rightOperand", "(Ljava/lang/Object;LToken;)D");
+  }
+
+  // Callees are checked before their arguments are evaluated, the same as in
+  // the tree walker
+  private void compileCall(Expr.Call expr) {
+    var args = expr.args();
+
+    if (expr.callee() instanceof Expr.InstanceGet get) {
+      var site = new JvmRuntime.Site(get.identifier());
+      constant(site, SITE);
+      compile(get.instance());
+      constant(get.identifier(), "Token");
+      code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "instance", "(Ljava/lang/Object;LToken;)LLoxInstance;");
+      constant(expr.paren(), "Token");
+      code.iconst(args.size());
+      code.invoke(ClassWriter.INVOKEVIRTUAL, SITE, "callee", "(LLoxInstance;LToken;I)Ljava/lang/Object;");
+      constant(site, SITE);
+      code.invoke(ClassWriter.INVOKEVIRTUAL, SITE, "receiver", "()LLoxInstance;");
+      code.aload(INTERPRETER);
+      compileArguments(args);
+
+      if (args.size() < INVOKE.length) {
+        code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "invoke" + args.size(), INVOKE[args.size()]);
+      } else {
+        code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "invoke", "(Ljava/lang/Object;LLoxInstance;LInterpreter;[Ljava/lang/Object;)Ljava/lang/Object;");
+      }
+
+      return;
+    }
+
+    if (targets.get(expr.paren()) instanceof LoxFunction target) {
+      compileTargetCall(expr, target);
+      return;
+    }
+
+    compile(expr.callee());
+    compileCallable(expr);
+  }
+
+  // Calls the callee on the stack
+  private void compileCallable(Expr.Call expr) {
+    var args = expr.args();
+    constant(expr.paren(), "Token");
+    code.iconst(args.size());
+    code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "callable", "(Ljava/lang/Object;LToken;I)LLoxCallable;");
+    code.aload(INTERPRETER);
+    compileArguments(args);
+
+    if (args.size() < CALL.length) {
+      code.invoke(ClassWriter.INVOKEINTERFACE, "LoxCallable", "call" + args.size(), CALL[args.size()]);
+    } else {
+      code.invoke(ClassWriter.INVOKEINTERFACE, "LoxCallable", "call", "(LInterpreter;[Ljava/lang/Object;)Ljava/lang/Object;");
+    }
+  }
+
+  // As long as the callee is still the target it's called directly, its arity
+  // has been checked already. Otherwise the function being compiled is
+  // deoptimized, and the call goes through as usual.
+  private void compileTargetCall(Expr.Call expr, LoxFunction target) {
+    var args = expr.args();
+    var deoptimize = new ClassWriter.Label();
+    var end = new ClassWriter.Label();
+
+    compile(expr.callee());
+    code.op(ClassWriter.DUP, 1);
+    constant(target, "LoxFunction");
+    code.jump(ClassWriter.IF_ACMPNE, deoptimize);
+    code.op(ClassWriter.POP, -1);
+    constant(target, "LoxFunction");
+    code.aload(INTERPRETER);
+    code.op(ClassWriter.ACONST_NULL, 1);
+    compileArguments(args);
+
+    if (args.size() < INVOKE.length) {
+      var descriptor = "(LInterpreter;LLoxInstance;" + "Ljava/lang/Object;".repeat(args.size()) + ")Ljava/lang/Object;";
+      code.invoke(ClassWriter.INVOKEVIRTUAL, "LoxFunction", "invoke" + args.size(), descriptor);
+    } else {
+      code.invoke(ClassWriter.INVOKEVIRTUAL, "LoxFunction", "invoke", "(LInterpreter;LLoxInstance;[Ljava/lang/Object;)Ljava/lang/Object;");
+    }
+
+    code.jump(ClassWriter.GOTO, end);
+
+    code.bind(deoptimize);
+    code.aload(INTERPRETER);
+    constant(jitted, "Stmt$Function");
+    constant(expr.paren(), "Token");
+    code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "deoptimize", "(Ljava/lang/Object;LInterpreter;LStmt$Function;LToken;)Ljava/lang/Object;");
+    compileCallable(expr);
+    code.bind(end);
+  }
+
+  // More than four arguments are passed in an array, see LoxCallable
+  private void compileArguments(List<Expr> args) {
+    if (args.size() < CALL.length) {
+      for (var arg : args) {
+        compile(arg);
+      }
+
+      return;
+    }
+
+    code.iconst(args.size());
+    code.type(ClassWriter.ANEWARRAY, OBJECT);
+    for (var i = 0; i < args.size(); i++) {
+      code.op(ClassWriter.DUP, 1);
+      code.iconst(i);
+      compile(args.get(i));
+      code.op(ClassWriter.AASTORE, -3);
+    }
+  }
+
+  // Locals for values that have to be kept out of the way for a moment, freed
+  // in the reverse order they were taken
+  private int temporary(int size) {
+    var local = locals;
+    locals += size;
+    code.locals(locals);
+
+    return local;
+  }
+
+  private void release(int size) {
+    locals -= size;
+  }
+
+  private void constant(Object value, String type) {
+    code.field(ClassWriter.GETSTATIC, unit.name, "constants", "[Ljava/lang/Object;");
+    code.iconst(constantIndex(value));
+    code.op(ClassWriter.AALOAD, -1);
+    code.type(ClassWriter.CHECKCAST, type);
+  }
+
+  // Whatever a constant is built back from comes before it
+  private int constantIndex(Object value) {
+    var index = unit.constantIndexes.get(value);
+    if (index != null) {
+      return index;
+    }
+
+    switch (value) {
+      case Stmt.Function function -> constantIndex(function.identifier());
+      case Stmt.Class klass -> {
+        constantIndex(klass.identifier());
+        for (var method : klass.methods()) {
+          constantIndex(declaration(method));
+        }
+      }
+      case JvmRuntime.Site site -> constantIndex(site.identifier());
+      default -> {}
+    }
+
+    unit.constants.add(value);
+    unit.constantIndexes.put(value, unit.constants.size() - 1);
+    return unit.constants.size() - 1;
+  }
+
+  // Functions declared in a program are compiled too, once
+  private Stmt.Function declaration(Stmt.Function function) {
+    if (jitted == null && !functionIndexes.containsKey(function)) {
+      functionIndexes.put(function, functions.size());
+      functions.add(function);
+    }
+
+    return function;
+  }
+
+  private Stmt.Class declaration(Stmt.Class klass) {
+    for (var method : klass.methods()) {
+      declaration(method);
+    }
+
+    return klass;
+  }
+
+  // Runs the method the instance is for
+  private void compileRun(Unit unit) {
+    var writer = unit.writer;
+    var init = writer.method(ClassWriter.ACC_PUBLIC, "<init>", "(I)V");
+    init.locals(2);
+    init.aload(0);
+    init.invoke(ClassWriter.INVOKESPECIAL, OBJECT, "<init>", "()V");
+    init.aload(0);
+    init.iload(1);
+    init.field(ClassWriter.PUTFIELD, unit.name, "function", "I");
+    init.op(ClassWriter.RETURN, 0);
+    init.end();
+
+    writer.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_FINAL, "function", "I");
+    writer.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC, "constants", "[Ljava/lang/Object;");
+
+    var run = writer.method(ClassWriter.ACC_PUBLIC, "run", RUN);
+    run.locals(4);
+
+    // A class can have nothing but parts of the top level
+    var fallback = new ClassWriter.Label();
+    var cases = new ClassWriter.Label[unit.methods.size()];
+    if (cases.length > 0) {
+      for (var i = 0; i < cases.length; i++) {
+        cases[i] = new ClassWriter.Label();
+      }
+
+      run.aload(0);
+      run.field(ClassWriter.GETFIELD, unit.name, "function", "I");
+      run.tableswitch(fallback, cases);
+    }
+
+    for (var i = 0; i < cases.length; i++) {
+      run.bind(cases[i]);
+      run.aload(1);
+      run.aload(2);
+      run.aload(3);
+      run.invoke(ClassWriter.INVOKESTATIC, unit.name, unit.methods.get(i), RUN);
+      run.op(ClassWriter.ARETURN, -1);
+    }
+
+    run.bind(fallback);
+    run.op(ClassWriter.ACONST_NULL, 1);
+    run.op(ClassWriter.ARETURN, -1);
+    run.end();
+  }
+
+  // The top level runs each of its methods in turn, wherever they are
+  private void compileMain(Unit unit, List<Unit> script, boolean dualNumbers) {
+    var run = unit.writer.method(ClassWriter.ACC_STATIC, "script", RUN);
+    run.locals(SLOTS);
+    for (var i = 0; i < script.size(); i++) {
+      run.aload(INTERPRETER);
+      run.aload(FRAME);
+      run.aload(UPVALUES);
+      run.invoke(ClassWriter.INVOKESTATIC, script.get(i).name, String.format("script$%d", i), RUN);
+      run.op(ClassWriter.POP, -1);
+    }
+
+    run.op(ClassWriter.ACONST_NULL, 1);
+    run.op(ClassWriter.ARETURN, -1);
+    run.end();
+
+    var main = unit.writer.method(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "main", "([Ljava/lang/String;)V");
+    main.locals(1);
+    newInstance(main, unit, unit.methods.size());
+    unit.methods.add("script");
+    main.iconst(dualNumbers ? 1 : 0);
+    main.invoke(ClassWriter.INVOKESTATIC, "Lox", "runCompiled", "(LJvmCompiler$Code;Z)V");
+    main.op(ClassWriter.RETURN, 0);
+    main.end();
+  }
+
+  private static void newInstance(ClassWriter.Code code, Unit unit, int method) {
+    code.type(ClassWriter.NEW, unit.name);
+    code.op(ClassWriter.DUP, 1);
+    code.iconst(method);
+    code.invoke(ClassWriter.INVOKESPECIAL, unit.name, "<init>", "(I)V");
+  }
+
+  // Builds back each constant from the parts the runtime still needs
+  private void compileConstants(Unit unit) {
+    var writer = unit.writer;
+    var init = writer.method(ClassWriter.ACC_STATIC, "<clinit>", "()V");
+    init.iconst(unit.constants.size());
+    init.type(ClassWriter.ANEWARRAY, OBJECT);
+    init.field(ClassWriter.PUTSTATIC, unit.name, "constants", "[Ljava/lang/Object;");
+
+    for (var start = 0; start < unit.constants.size(); start += CONSTANTS_PER_METHOD) {
+      var name = String.format("constants$%d", start / CONSTANTS_PER_METHOD);
+      init.invoke(ClassWriter.INVOKESTATIC, unit.name, name, "()V");
+
+      var chunk = writer.method(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC, name, "()V");
+      for (var i = start; i < Math.min(start + CONSTANTS_PER_METHOD, unit.constants.size()); i++) {
+        chunk.field(ClassWriter.GETSTATIC, unit.name, "constants", "[Ljava/lang/Object;");
+        chunk.iconst(i);
+        compileConstant(chunk, unit, unit.constants.get(i));
+        chunk.op(ClassWriter.AASTORE, -3);
+      }
+
+      chunk.op(ClassWriter.RETURN, 0);
+      chunk.end();
+    }
+
+    init.op(ClassWriter.RETURN, 0);
+    init.end();
+  }
+
+  private void compileConstant(ClassWriter.Code code, Unit unit, Object value) {
+    switch (value) {
+      case Token token -> {
+        code.iconst(token.type().ordinal());
+        code.ldc(token.lexeme());
+        code.iconst(token.line());
+        code.iconst(token.column());
+        code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "token", "(ILjava/lang/String;II)LToken;");
+      }
+      case Double number -> {
+        code.ldc(number);
+        code.invoke(ClassWriter.INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+      }
+      case JvmRuntime.Site site -> {
+        code.type(ClassWriter.NEW, SITE);
+        code.op(ClassWriter.DUP, 1);
+        loadConstant(code, unit, site.identifier(), "Token");
+        code.invoke(ClassWriter.INVOKESPECIAL, SITE, "<init>", "(LToken;)V");
+      }
+      case Stmt.Function function -> {
+        var frame = function.frame();
+        var cells = new StringBuilder();
+        for (var cell : frame.cells) {
+          cells.append(cell ? '1' : '0');
+        }
+
+        loadConstant(code, unit, function.identifier(), "Token");
+        code.iconst(function.params().size());
+        code.iconst(frame.size);
+        code.ldc(cells.toString());
+        newInstance(code, functionUnits.get(function), functionMethods.get(function));
+        code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "function", "(LToken;IILjava/lang/String;LJvmCompiler$Code;)LStmt$Function;");
+      }
+      case Stmt.Class klass -> {
+        loadConstant(code, unit, klass.identifier(), "Token");
+        var methods = klass.methods();
+        code.iconst(methods.size());
+        code.type(ClassWriter.ANEWARRAY, "Stmt$Function");
+        for (var i = 0; i < methods.size(); i++) {
+          code.op(ClassWriter.DUP, 1);
+          code.iconst(i);
+          loadConstant(code, unit, methods.get(i), "Stmt$Function");
+          code.op(ClassWriter.AASTORE, -3);
+        }
+
+        code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "klass", "(LToken;[LStmt$Function;)LStmt$Class;");
+      }
+      default -> throw new IllegalStateException("Unknown constant.");
+    }
+  }
+
+  private static void loadConstant(ClassWriter.Code code, Unit unit, Object value, String type) {
+    code.field(ClassWriter.GETSTATIC, unit.name, "constants", "[Ljava/lang/Object;");
+    code.iconst(unit.constantIndexes.get(value));
+    code.op(ClassWriter.AALOAD, -1);
+    code.type(ClassWriter.CHECKCAST, type);
+  }
+}
@@ -0,0 +1,271 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// What the classes JvmCompiler writes call into. Anything that's more than a
+// few instructions, or that can fail, is done here so the generated code
+// stays small, with the same errors as the tree walker.
+class JvmRuntime {
+  // The inline cache of a method call. It keeps the method the class of the
+  // last instance had, and which receiver the callee it found is called on.
+  static class Site {
+    private final Token identifier;
+    private LoxClass klass;
+    private LoxFunction method;
+    private LoxInstance receiver;
+
+    Site(Token identifier) {
+      this.identifier = identifier;
+    }
+
+    Token identifier() {
+      return identifier;
+    }
+
+    // The method the instance would call, checked for the number of
+    // arguments, or what's in the field hiding it
+    Object callee(LoxInstance instance, Token paren, int count) {
+      var key = identifier.lexeme();
+      var klass = instance.klass();
+      if (klass != this.klass) {
+        this.method = klass.getMethod(key);
+        this.klass = klass;
+      }
+
+      if (method != null && !instance.hasField(key)) {
+        checkArity(method, paren, count);
+        receiver = instance;
+        return method;
+      }
+
+      receiver = null;
+      return callable(instance.get(identifier), paren, count);
+    }
+
+    // The receiver for the last callee, or null if it isn't a method. Taken
+    // before the arguments are evaluated, since they can call through here.
+    LoxInstance receiver() {
+      var receiver = this.receiver;
+      this.receiver = null;
+      return receiver;
+    }
+  }
+
+  static LoxCallable callable(Object callee, Token paren, int count) {
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren, "Calls can only be made on functions and classes.");
+    }
+
+    var callable = (LoxCallable)callee;
+    checkArity(callable, paren, count);
+    return callable;
+  }
+
+  private static void checkArity(LoxCallable callable, Token paren, int count) {
+    if (callable.arity() != count) {
+      throw new RuntimeError(paren, String.format("Expected %d arguments but got %d", callable.arity(), count));
+    }
+  }
+
+  static Object invoke0(Object callee, LoxInstance receiver, Interpreter interpreter) {
+    if (receiver != null) {
+      return ((LoxFunction)callee).invoke0(interpreter, receiver);
+    }
+
+    return ((LoxCallable)callee).call0(interpreter);
+  }
+
+  static Object invoke1(Object callee, LoxInstance receiver, Interpreter interpreter, Object a) {
+    if (receiver != null) {
+      return ((LoxFunction)callee).invoke1(interpreter, receiver, a);
+    }
+
+    return ((LoxCallable)callee).call1(interpreter, a);
+  }
+
+  static Object invoke2(Object callee, LoxInstance receiver, Interpreter interpreter, Object a, Object b) {
+    if (receiver != null) {
+      return ((LoxFunction)callee).invoke2(interpreter, receiver, a, b);
+    }
+
+    return ((LoxCallable)callee).call2(interpreter, a, b);
+  }
+
+  static Object invoke3(Object callee, LoxInstance receiver, Interpreter interpreter, Object a, Object b, Object c) {
+    if (receiver != null) {
+      return ((LoxFunction)callee).invoke3(interpreter, receiver, a, b, c);
+    }
+
+    return ((LoxCallable)callee).call3(interpreter, a, b, c);
+  }
+
+  static Object invoke4(Object callee, LoxInstance receiver, Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    if (receiver != null) {
+      return ((LoxFunction)callee).invoke4(interpreter, receiver, a, b, c, d);
+    }
+
+    return ((LoxCallable)callee).call4(interpreter, a, b, c, d);
+  }
+
+  static Object invoke(Object callee, LoxInstance receiver, Interpreter interpreter, Object[] arguments) {
+    if (receiver != null) {
+      return ((LoxFunction)callee).invoke(interpreter, receiver, arguments);
+    }
+
+    return ((LoxCallable)callee).call(interpreter, arguments);
+  }
+
+  static LoxInstance instance(Object instance, Token identifier) {
+    if (!(instance instanceof LoxInstance)) {
+      throw new RuntimeError(identifier, "Only instances of classes have properties.");
+    }
+
+    return (LoxInstance)instance;
+  }
+
+  static Object get(Object instance, Token identifier) {
+    return instance(instance, identifier).get(identifier);
+  }
+
+  static Object set(LoxInstance instance, Token identifier, Object value) {
+    instance.set(identifier, value);
+    return value;
+  }
+
+  static Object add(Interpreter interpreter, Token operator, Object left, Object right) {
+    if (left instanceof Double a && right instanceof Double b) {
+      return interpreter.box(a + b);
+    }
+
+    return interpreter.binary(operator, left, right);
+  }
+
+  // Operands of arithmetic and comparisons that aren't numeric expressions,
+  // see Interpreter.binary. The left one is checked once the right one
+  // has been evaluated.
+  static double leftOperand(Object value, Token operator) {
+    if (value instanceof Double number) {
+      return number;
+    }
+
+    if (value instanceof Long number) {
+      return number;
+    }
+
+    if (operator.type() == TokenType.PLUS) {
+      throw new RuntimeError(operator, "Operands must be strings.");
+    }
+
+    throw new RuntimeError(operator, "Operands must be numbers.");
+  }
+
+  static double rightOperand(Object value, Token operator) {
+    if (value instanceof Double number) {
+      return number;
+    }
+
+    if (value instanceof Long number) {
+      return number;
+    }
+
+    if (operator.type() == TokenType.PLUS) {
+      throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    throw new RuntimeError(operator, "Operands must be numbers.");
+  }
+
+  static double operand(Object value, Token operator) {
+    if (value instanceof Double number) {
+      return number;
+    }
+
+    if (value instanceof Long number) {
+      return number;
+    }
+
+    throw new RuntimeError(operator, "Operand must be a number.");
+  }
+
+  static double divisor(double value, Token operator) {
+    if (value == 0) {
+      throw new RuntimeError(operator, "Cannot be divide by zero.");
+    }
+
+    return value;
+  }
+
+  static double remainder(double left, double right, Interpreter interpreter) {
+    return interpreter.remainder(left, right);
+  }
+
+  // Returns the callee, for the call to go through as usual, see Jit
+  static Object deoptimize(Object callee, Interpreter interpreter, Stmt.Function declaration, Token paren) {
+    Jit.deoptimize(interpreter, declaration, paren);
+    return callee;
+  }
+
+  static LoxFunction function(Stmt.Function declaration, Cell[] upvalues) {
+    return new LoxFunction(declaration, upvalues, null, false);
+  }
+
+  static LoxClass superclass(Object superclass, Token identifier) {
+    if (!(superclass instanceof LoxClass)) {
+      throw new RuntimeError(identifier, "Superclass must be a class.");
+    }
+
+    return (LoxClass)superclass;
+  }
+
+  // The upvalues are those of each method, in order
+  static LoxClass klass(Stmt.Class declaration, LoxClass superclass, Cell[][] upvalues) {
+    var methods = new HashMap<String, LoxFunction>();
+    for (var i = 0; i < upvalues.length; i++) {
+      var method = declaration.methods().get(i);
+      var identifier = method.identifier().lexeme();
+      methods.put(identifier, new LoxFunction(method, upvalues[i], null, identifier.equals("init")));
+    }
+
+    return new LoxClass(declaration.identifier().lexeme(), superclass, methods);
+  }
+
+  static LoxFunction superMethod(Object superclass, Object instance, Token method) {
+    var identifier = method.lexeme();
+    var function = ((LoxClass)superclass).getMethod(identifier);
+    if (function == null) {
+      throw new RuntimeError(method, String.format("Undefined instance property '%s'.", identifier));
+    }
+
+    return function.bind((LoxInstance)instance);
+  }
+
+  // A program compiled ahead of time has no AST, only the parts of it the
+  // runtime still needs are built back from its constants.
+  static Token token(int type, String lexeme, int line, int column) {
+    return new Token(TokenType.values()[type], lexeme, null, line, column);
+  }
+
+  // The cells are whether the receiver, if any, and each parameter is captured
+  static Stmt.Function function(Token identifier, int arity, int size, String cells, JvmCompiler.Code code) {
+    var params = new ArrayList<Token>();
+    for (var i = 0; i < arity; i++) {
+      params.add(identifier);
+    }
+
+    var frame = new Frame();
+    frame.size = size;
+    frame.cells = new boolean[cells.length()];
+    for (var i = 0; i < cells.length(); i++) {
+      frame.cells[i] = cells.charAt(i) == '1';
+    }
+
+    var body = new FunctionBody(List.of());
+    body.bind(code);
+
+    return new Stmt.Function(identifier, params, body, new Local(), frame);
+  }
+
+  static Stmt.Class klass(Token identifier, Stmt.Function[] methods) {
+    return new Stmt.Class(identifier, null, List.of(methods));
+  }
+}
@@ -0,0 +1,69 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Transition table for every token with a fixed lexeme, keywords and operators
+// alike, built once from the lexemes declared in TokenType. Adding a keyword
+// or operator to TokenType adds states here rather than lookups in the
+// scanner, recognizing one is a table walk with no hashing or allocation.
+class LexerTable {
+  static final int DEAD = 0;
+  static final int START = 1;
+
+  // Fixed lexemes are all ASCII, anything else goes straight to DEAD
+  private static final int WIDTH = 128;
+
+  // Row per state, DEAD's row is left zeroed so it's never left once entered
+  private static final short[] transitions;
+  private static final TokenType[] accepts;
+
+  static {
+    var fixed = new ArrayList<TokenType>();
+    var states = 2;
+    for (var type : TokenType.values()) {
+      switch (type) {
+        case TokenType.IDENTIFIER, TokenType.STRING, TokenType.NUMBER, TokenType.EOF -> {}
+        default -> {
+          fixed.add(type);
+          states += type.toString().length();
+        }
+      }
+    }
+
+    var table = new short[states * WIDTH];
+    var accepting = new TokenType[states];
+    var next = START + 1;
+
+    for (var type : fixed) {
+      var state = START;
+
+      for (var c : type.toString().toCharArray()) {
+        var index = state * WIDTH + c;
+        if (table[index] == DEAD) {
+          table[index] = (short)next++;
+        }
+
+        state = table[index];
+      }
+
+      accepting[state] = type;
+    }
+
+    transitions = Arrays.copyOf(table, next * WIDTH);
+    accepts = Arrays.copyOf(accepting, next);
+  }
+
+  private LexerTable() {}
+
+  static int next(int state, char c) {
+    if (c >= WIDTH) {
+      return DEAD;
+    }
+
+    return transitions[state * WIDTH + c];
+  }
+
+  // Token for the lexeme ending in state, null if it isn't a complete one
+  static TokenType accept(int state) {
+    return accepts[state];
+  }
+}
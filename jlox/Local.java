@@ -0,0 +1,18 @@
+// Where the resolver found the variable an expression refers to, or where it
+// put the one a statement declares. Set once when the code is resolved and
+// read on every evaluation after, so a variable is never looked up by name
+// unless it's global.
+class Local {
+  enum Kind {
+    GLOBAL,
+    // A slot in the current frame
+    FRAME,
+    // A slot in the current frame holding a Cell, since a closure captured it
+    CELL,
+    // An upvalue of the current closure
+    UPVALUE,
+  }
+
+  Kind kind = Kind.GLOBAL;
+  int index = 0;
+}
@@ -0,0 +1,5 @@
+enum LoopType {
+  NONE,
+  WHILE,
+  FOR,
+}
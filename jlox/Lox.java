@@ -1,26 +1,146 @@
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
 
 class Lox {
-  private static final Interpreter interpreter = new Interpreter();
+  private static Interpreter interpreter = new Interpreter();
   private static boolean hadError = false;
   private static boolean hadRuntimeError = false;
+  private static boolean strict = false;
 
-  public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox <path>");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+  // From the line a token was scanned on to the line it's reported on. They're
+  // the same except with --watch, see Watch.
+  static IntUnaryOperator lines = IntUnaryOperator.identity();
+
+  // When set for a thread, errors are added to the list instead of being
+  // reported. See ParallelFrontEnd.
+  static final ThreadLocal<List<String>> collectedErrors = new ThreadLocal<>();
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    var stream = false;
+    var parallel = false;
+    var arena = false;
+    var cache = false;
+    var watch = false;
+    var compile = false;
+    var jit = false;
+    var profileOut = false;
+    var profileIn = false;
+    var dumpAst = false;
+    var dualNumbers = false;
+    var backend = Interpreter.Backend.TREE;
+    String path = null;
+
+    for (var arg : args) {
+      switch (arg) {
+        case "--stream" -> stream = true;
+        case "--parallel" -> parallel = true;
+        case "--strict" -> strict = true;
+        case "--cache" -> cache = true;
+        case "--arena" -> arena = true;
+        case "--watch" -> watch = true;
+        case "--compile" -> compile = true;
+        case "--jit" -> jit = true;
+        case "--profile-out" -> profileOut = true;
+        case "--profile-in" -> profileIn = true;
+        case "--dump-ast" -> dumpAst = true;
+        case "--dual-numbers" -> dualNumbers = true;
+        case "--nodes", "--closures", "--bytecode" -> {
+          if (backend != Interpreter.Backend.TREE) {
+            usage();
+          }
+
+          backend = Interpreter.Backend.valueOf(arg.substring(2).toUpperCase());
+        }
+        default -> {
+          if (path != null || arg.startsWith("--")) {
+            usage();
+          }
+
+          path = arg;
+        }
+      }
+    }
+
+    if (stream && (parallel || cache)) {
+      usage();
+    }
+
+    if (watch && (stream || parallel || cache || path == null)) {
+      usage();
+    }
+
+    if (compile && (stream || cache || watch || jit || backend != Interpreter.Backend.TREE || path == null)) {
+      usage();
+    }
+
+    if (jit && watch) {
+      usage();
+    }
+
+    if (arena && (stream || parallel || watch || compile || jit || dumpAst || profileOut || profileIn || backend != Interpreter.Backend.TREE || path == null)) {
+      usage();
+    }
+
+    if (dumpAst && (stream || cache || watch || compile || jit || profileOut || profileIn || dualNumbers || backend != Interpreter.Backend.TREE || path == null)) {
+      usage();
+    }
+
+    // The profile is kept next to the script, see Profile
+    if ((profileOut || profileIn) && (stream || watch || compile || path == null)) {
+      usage();
+    }
+
+    Profile profile = null;
+    if (profileOut || profileIn) {
+      profile = new Profile(profileOut);
+      if (profileIn) {
+        profile.read(Profile.pathFor(path));
+      }
+    }
+
+    if (dualNumbers || jit || backend != Interpreter.Backend.TREE || profile != null) {
+      interpreter = new Interpreter(dualNumbers, backend, jit, profile);
+    }
+
+    if (watch) {
+      Watch.run(Paths.get(path), dualNumbers, backend);
+    } else if (arena) {
+      runArena(path, cache);
+    } else if (stream) {
+      runStream(path == null ? System.in : Files.newInputStream(Paths.get(path)));
+    } else if (compile) {
+      compileFile(path, parallel, dualNumbers);
+    } else if (dumpAst) {
+      dumpFile(path, parallel);
+    } else if (path != null) {
+      runFile(path, parallel, cache);
     } else {
       runPrompt();
     }
   }
 
+  private static void usage() {
+    System.out.println("Usage: jlox [--stream | --parallel] [--cache] [--strict] [--dual-numbers] [--nodes | --closures | --bytecode] [--jit] [--profile-out] [--profile-in] [path]");
+    System.out.println("       jlox --arena [--cache] [--dual-numbers] path");
+    System.out.println("       jlox --watch [--dual-numbers] [--nodes | --closures | --bytecode] path");
+    System.out.println("       jlox --compile [--parallel] [--dual-numbers] path");
+    System.out.println("       jlox --dump-ast [--parallel] path");
+    System.exit(64);
+  }
+
+  static boolean hadError() {
+    return hadError;
+  }
+
   static void error(int line, String message) {
     report(line, "", message);
   }
@@ -36,12 +156,161 @@ class Lox {
   static void runtimeError(RuntimeError error) {
     hadRuntimeError = true;
 
-    System.err.println(String.format("%s\n[line %d]", error.getMessage(), error.token.line()));
+    System.err.println(String.format("%s\n[line %d]", error.getMessage(), lines.applyAsInt(error.token.line())));
+  }
+
+  private static void runFile(String path, boolean parallel, boolean cache) throws IOException {
+    // Mapping the file lets the scanner read the source directly from the page
+    // cache instead of holding both the raw bytes and a decoded copy on the heap.
+    try (var channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      var source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      var cachePath = ProgramCache.pathFor(path);
+
+      List<Stmt> stmts = null;
+      if (cache) {
+        var cached = ProgramCache.load(cachePath, source);
+        stmts = cached == null ? null : cached.decode();
+      }
+
+      if (stmts == null) {
+        // Cached programs are compiled in full, bodies included
+        stmts = compile(source, parallel, !strict && !cache);
+
+        if (stmts != null && cache) {
+          ProgramCache.store(cachePath, source, Arena.encode(stmts));
+        }
+      }
+
+      if (stmts != null) {
+        interpreter.interpret(stmts);
+      }
+    }
+
+    // Even a run that failed learned something about the script
+    var profile = interpreter.profile;
+    if (profile != null && profile.isRecording() && !hadError) {
+      profile.write(Profile.pathFor(path));
+    }
+
+    if (hadError) {
+      System.exit(65);
+    }
+    if (hadRuntimeError) {
+      System.exit(70);
+    }
+  }
+
+  // Runs the program from an Arena instead of from records. The source is
+  // parsed in full and encoded before it's resolved, then ArenaResolver and
+  // ArenaInterpreter walk the arena. The parser's records are dropped once
+  // they're encoded, and a cached program is run without being decoded. The
+  // Optimizer only rewrites records, so none of this is optimized.
+  private static void runArena(String path, boolean cache) throws IOException {
+    try (var channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      var source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      var cachePath = ProgramCache.pathFor(path);
+
+      Arena program = null;
+      if (cache) {
+        program = ProgramCache.load(cachePath, source);
+      }
+
+      if (program == null) {
+        program = encode(new Scanner(source));
+
+        if (program != null && cache) {
+          ProgramCache.store(cachePath, source, program);
+        }
+      }
+
+      if (program != null) {
+        interpreter.interpret(program);
+      }
+    }
+
+    if (hadError) {
+      System.exit(65);
+    }
+
+    if (hadRuntimeError) {
+      System.exit(70);
+    }
+  }
+
+  // Compiles the program to a runnable jar next to it instead of running it,
+  // see ProgramJar. Every body is compiled up front, so errors anywhere in it
+  // are reported now.
+  private static void compileFile(String path, boolean parallel, boolean dualNumbers) throws IOException {
+    try (var channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      var source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      var stmts = compile(source, parallel, false);
+      if (stmts != null) {
+        ProgramJar.store(ProgramJar.pathFor(path), stmts, dualNumbers);
+      }
+    } catch (IllegalStateException error) {
+      // A single function or class the JVM can't hold
+      hadError = true;
+      System.err.println(String.format("Error: %s", error.getMessage()));
+    }
+
+    if (hadError) {
+      System.exit(65);
+    }
+  }
+
+  // Prints the program as it would run, after the Optimizer, instead of
+  // running it. Every body is compiled up front so they're printed too.
+  private static void dumpFile(String path, boolean parallel) throws IOException {
+    try (var channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      var source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      var stmts = compile(source, parallel, false);
+      if (stmts != null) {
+        System.out.print(AstPrinter.print(stmts));
+      }
+    }
+
+    if (hadError) {
+      System.exit(65);
+    }
+  }
+
+  // Runs a program compiled by compileFile, see ProgramJar
+  static void runCompiled(JvmCompiler.Code program, boolean dualNumbers) {
+    interpreter = new Interpreter(dualNumbers);
+    interpreter.interpret(program);
+
+    if (hadRuntimeError) {
+      System.exit(70);
+    }
   }
 
-  private static void runFile(String path) throws IOException {
-    var bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+  // Each top level declaration is resolved and run as soon as it has been
+  // parsed, rather than waiting for the whole input. After an error the rest of
+  // the input is still checked but nothing else is run.
+  private static void runStream(InputStream input) {
+    var parser = new Parser(new Scanner(input), false);
+    var resolver = new Resolver();
+
+    while (parser.hasNext()) {
+      var stmt = parser.next();
+      if (stmt == null) {
+        continue;
+      }
+
+      // Once there's been an error the rest is only parsed, a declaration with
+      // one can be missing the statements that failed
+      if (hadError) {
+        continue;
+      }
+
+      var stmts = List.of(stmt);
+      resolver.resolve(stmts);
+      if (hadError || hadRuntimeError) {
+        continue;
+      }
+
+      interpreter.interpret(Optimizer.optimize(stmts));
+    }
 
     if (hadError) {
       System.exit(65);
@@ -63,37 +332,97 @@ class Lox {
         break;
       }
 
-      run(line);
-      hadError = false;
-      hadRuntimeError = false;
+      runLine(line);
+    }
+  }
+
+  // Nothing from a line outlives it except what it defines in the global
+  // environment. Resolution is kept on the AST, so replacing a definition
+  // releases everything that was compiled for it.
+  static void runLine(String line) {
+    run(new Scanner(line));
+    clearErrors();
+  }
+
+  static void clearErrors() {
+    hadError = false;
+    hadRuntimeError = false;
+  }
+
+  private static void run(Scanner scanner) {
+    var stmts = compile(scanner, !strict);
+    if (stmts != null) {
+      interpreter.interpret(stmts);
+    }
+  }
+
+  private static List<Stmt> compile(ByteBuffer source, boolean parallel, boolean lazy) {
+    if (parallel) {
+      var stmts = ParallelFrontEnd.compile(source, lazy);
+      if (stmts != null) {
+        return stmts;
+      }
     }
+
+    return compile(new Scanner(source), lazy);
   }
 
-  private static void run(String source) {
-    var scanner = new Scanner(source);
-    var tokens = scanner.scanTokens();
+  // Scans, parses, resolves and optimizes, returning null if there were any
+  // errors
+  private static List<Stmt> compile(Scanner scanner, boolean lazy) {
+    scanner.scanTokens();
     if (hadError) {
-      return;
+      return null;
     }
 
-    var parser = new Parser(tokens);
+    var parser = new Parser(scanner, lazy);
     var stmts = parser.parse();
     if (hadError) {
-      return;
+      return null;
     }
 
-    var resolver = new Resolver(interpreter);
+    var resolver = new Resolver();
     resolver.resolve(stmts);
     if (hadError) {
-      return;
+      return null;
+    }
+
+    return Optimizer.optimize(stmts);
+  }
+
+  // Scans, parses and encodes, then resolves the arena, returning null if there
+  // were any errors
+  private static Arena encode(Scanner scanner) {
+    scanner.scanTokens();
+    if (hadError) {
+      return null;
+    }
+
+    var stmts = new Parser(scanner, false).parse();
+    if (hadError) {
+      return null;
+    }
+
+    var arena = Arena.encode(stmts);
+    ArenaResolver.resolve(arena);
+    if (hadError) {
+      return null;
     }
 
-    interpreter.interpret(stmts);
+    return arena;
   }
 
   private static void report(int line, String where, String message) {
+    var error = String.format("[line %d] Error%s: %s", lines.applyAsInt(line), where, message);
+
+    var collected = collectedErrors.get();
+    if (collected != null) {
+      collected.add(error);
+      return;
+    }
+
     hadError = true;
 
-    System.err.println(String.format("[line %d] Error%s: %s", line, where, message));
+    System.err.println(error);
   }
 }
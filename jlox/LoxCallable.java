@@ -1,6 +1,29 @@
-import java.util.List;
-
+// Calls go through the entry point for their number of arguments, always
+// exactly arity() of them, so no list of arguments is built for them. Calls
+// with more than four arguments pass them in an array, which is also what the
+// other entry points fall back to when a callable doesn't implement them.
 interface LoxCallable {
   int arity();
-  Object call(Interpreter interpreter, List<Object> arguments);
+
+  Object call(Interpreter interpreter, Object[] arguments);
+
+  default Object call0(Interpreter interpreter) {
+    return call(interpreter, new Object[]{});
+  }
+
+  default Object call1(Interpreter interpreter, Object a) {
+    return call(interpreter, new Object[]{ a });
+  }
+
+  default Object call2(Interpreter interpreter, Object a, Object b) {
+    return call(interpreter, new Object[]{ a, b });
+  }
+
+  default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    return call(interpreter, new Object[]{ a, b, c });
+  }
+
+  default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    return call(interpreter, new Object[]{ a, b, c, d });
+  }
 }
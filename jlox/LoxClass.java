@@ -1,6 +1,7 @@
-import java.util.List;
 import java.util.Map;
 
+// Constructing an instance calls the initializer on it directly, it's never
+// bound to the new instance.
 record LoxClass(String identifier, LoxClass superclass, Map<String, LoxFunction> methods) implements LoxCallable {
   public String toString() {
     return String.format("<class - %s>", identifier());
@@ -15,15 +16,46 @@ record LoxClass(String identifier, LoxClass superclass, Map<String, LoxFunction>
     return 0;
   }
 
-  public Object call(Interpreter interpreter, List<Object> arguments) {
+  public Object call(Interpreter interpreter, Object[] arguments) {
     var instance = new LoxInstance(this);
+    var initializer = getMethod("init");
+
+    return initializer == null ? instance : initializer.invoke(interpreter, instance, arguments);
+  }
 
+  public Object call0(Interpreter interpreter) {
+    var instance = new LoxInstance(this);
+    var initializer = getMethod("init");
+
+    return initializer == null ? instance : initializer.invoke0(interpreter, instance);
+  }
+
+  public Object call1(Interpreter interpreter, Object a) {
+    var instance = new LoxInstance(this);
+    var initializer = getMethod("init");
+
+    return initializer == null ? instance : initializer.invoke1(interpreter, instance, a);
+  }
+
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    var instance = new LoxInstance(this);
+    var initializer = getMethod("init");
+
+    return initializer == null ? instance : initializer.invoke2(interpreter, instance, a, b);
+  }
+
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    var instance = new LoxInstance(this);
+    var initializer = getMethod("init");
+
+    return initializer == null ? instance : initializer.invoke3(interpreter, instance, a, b, c);
+  }
+
+  public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    var instance = new LoxInstance(this);
     var initializer = getMethod("init");
-    if (initializer != null) {
-      initializer.bind(instance).call(interpreter, arguments);
-    }
 
-    return instance;
+    return initializer == null ? instance : initializer.invoke4(interpreter, instance, a, b, c, d);
   }
 
   LoxFunction getMethod(String identifier) {
@@ -1,6 +1,7 @@
-import java.util.List;
-
-record LoxFunction(Stmt.Function declaration, Environment environment, boolean isInitializer) implements LoxCallable {
+// A closure, the upvalues are the cells it captured when it was created. Bound
+// methods also carry the instance they were bound to, which goes in the first
+// slot of the frame.
+record LoxFunction(Stmt.Function declaration, Cell[] upvalues, LoxInstance receiver, boolean isInitializer) implements LoxCallable {
   public String toString() {
     return String.format("<function - %s>", declaration().identifier().lexeme());
   }
@@ -9,35 +10,129 @@ record LoxFunction(Stmt.Function declaration, Environment environment, boolean i
     return declaration().params().size();
   }
 
-  public Object call(Interpreter interpreter, List<Object> arguments) {
-    var environment = new Environment(environment());
+  // The entry points go straight to executeCall, the frame helpers have
+  // returned by the time the body runs.
+  public Object call(Interpreter interpreter, Object[] arguments) {
+    return interpreter.executeCall(this, frame(receiver(), arguments), receiver());
+  }
 
-    var params = declaration().params();
-    for (var i = 0; i < params.size(); i++) {
-      environment.define(params.get(i).lexeme(), arguments.get(i));
-    }
+  public Object call0(Interpreter interpreter) {
+    return interpreter.executeCall(this, frame(receiver()), receiver());
+  }
+
+  public Object call1(Interpreter interpreter, Object a) {
+    return interpreter.executeCall(this, frame(receiver(), a), receiver());
+  }
+
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    return interpreter.executeCall(this, frame(receiver(), a, b), receiver());
+  }
+
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    return interpreter.executeCall(this, frame(receiver(), a, b, c), receiver());
+  }
+
+  public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    return interpreter.executeCall(this, frame(receiver(), a, b, c, d), receiver());
+  }
+
+  // Calls a method on the instance without binding it to the instance first,
+  // the receiver is null for functions.
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    return interpreter.executeCall(this, frame(receiver, arguments), receiver);
+  }
+
+  Object invoke0(Interpreter interpreter, LoxInstance receiver) {
+    return interpreter.executeCall(this, frame(receiver), receiver);
+  }
+
+  Object invoke1(Interpreter interpreter, LoxInstance receiver, Object a) {
+    return interpreter.executeCall(this, frame(receiver, a), receiver);
+  }
+
+  Object invoke2(Interpreter interpreter, LoxInstance receiver, Object a, Object b) {
+    return interpreter.executeCall(this, frame(receiver, a, b), receiver);
+  }
+
+  Object invoke3(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c) {
+    return interpreter.executeCall(this, frame(receiver, a, b, c), receiver);
+  }
+
+  Object invoke4(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c, Object d) {
+    return interpreter.executeCall(this, frame(receiver, a, b, c, d), receiver);
+  }
 
-    try {
-      interpreter.executeBlock(declaration().stmts(), environment);
-    } catch (Return ret) {
-      if (isInitializer()) {
-        return environment().getAt(0, "this");
-      }
+  LoxFunction bind(LoxInstance instance) {
+    return new LoxFunction(declaration(), upvalues(), instance, isInitializer());
+  }
 
-      return ret.value;
+  // A new frame with the receiver, if any, in its first slot and the
+  // arguments after it
+  private Object[] frame(LoxInstance receiver) {
+    // Compiled first, the layout of the frame isn't known until then
+    var body = declaration().body();
+    if (!body.isParsed() && !body.compile(declaration())) {
+      var identifier = declaration().identifier();
+      throw new RuntimeError(identifier, String.format("Can't call '%s', its body has errors.", identifier.lexeme()));
     }
 
-    if (isInitializer()) {
-      return environment().getAt(0, "this");
+    var frame = new Object[declaration().frame().size];
+    if (receiver != null) {
+      put(frame, 0, receiver);
     }
 
-    return null;
+    return frame;
   }
 
-  LoxFunction bind(LoxInstance instance) {
-    var environment = new Environment(environment());
-    environment.define("this", instance);
+  private Object[] frame(LoxInstance receiver, Object[] arguments) {
+    var frame = frame(receiver);
+    var slot = receiver == null ? 0 : 1;
+    for (var argument : arguments) {
+      put(frame, slot++, argument);
+    }
+
+    return frame;
+  }
+
+  private Object[] frame(LoxInstance receiver, Object a) {
+    var frame = frame(receiver);
+    var slot = receiver == null ? 0 : 1;
+    put(frame, slot, a);
+
+    return frame;
+  }
+
+  private Object[] frame(LoxInstance receiver, Object a, Object b) {
+    var frame = frame(receiver);
+    var slot = receiver == null ? 0 : 1;
+    put(frame, slot, a);
+    put(frame, slot + 1, b);
+
+    return frame;
+  }
+
+  private Object[] frame(LoxInstance receiver, Object a, Object b, Object c) {
+    var frame = frame(receiver);
+    var slot = receiver == null ? 0 : 1;
+    put(frame, slot, a);
+    put(frame, slot + 1, b);
+    put(frame, slot + 2, c);
+
+    return frame;
+  }
+
+  private Object[] frame(LoxInstance receiver, Object a, Object b, Object c, Object d) {
+    var frame = frame(receiver);
+    var slot = receiver == null ? 0 : 1;
+    put(frame, slot, a);
+    put(frame, slot + 1, b);
+    put(frame, slot + 2, c);
+    put(frame, slot + 3, d);
+
+    return frame;
+  }
 
-    return new LoxFunction(declaration(), environment, isInitializer());
+  private void put(Object[] frame, int slot, Object value) {
+    frame[slot] = declaration().frame().cells[slot] ? new Cell(value) : value;
   }
 }
@@ -28,6 +28,23 @@ class LoxInstance {
     throw new RuntimeError(identifier, String.format("Undefined instance property '%s'.", key));
   }
 
+  LoxClass klass() {
+    return klass;
+  }
+
+  boolean hasField(String key) {
+    return properties.containsKey(key);
+  }
+
+  // The method calling the property would call, unless a field hides it
+  LoxFunction method(String key) {
+    if (hasField(key)) {
+      return null;
+    }
+
+    return klass.getMethod(key);
+  }
+
   void set(Token identifier, Object value) {
     properties.put(identifier.lexeme(), value);
   }
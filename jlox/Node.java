@@ -0,0 +1,1195 @@
+// Executable tree run with --nodes, built from a resolved AST by NodeCompiler.
+// Nodes whose work depends on the types of their operands start out
+// uninitialized. The first time one runs it replaces itself in its parent
+// with a node specialized for the types it saw. A specialized node that sees
+// other types replaces itself with the generic form, which handles anything
+// and stays. The common cases run through small nodes that each do one
+// thing, which the JIT can inline.
+//
+// Variables are read and written through nodes for their kind and slot from
+// the start, the resolver has already decided where they live.
+abstract class Node {
+  private Node parent;
+  private Node replacement;
+
+  void replaceChild(Node child, Node node) {}
+
+  // Only called on the node that's in place, see current
+  final <T extends Node> T replace(T node) {
+    replacement = node;
+    ((Node)node).parent = parent;
+    if (parent != null) {
+      parent.replaceChild(this, node);
+    }
+
+    return node;
+  }
+
+  // The node in this one's place. A node can still be running after it has
+  // been replaced, when something it ran, like a recursive call, ran it again
+  // and replaced it then. It hands its values on to the current one instead
+  // of replacing it again.
+  final Node current() {
+    var node = this;
+    while (node.replacement != null) {
+      node = node.replacement;
+    }
+
+    return node;
+  }
+
+  // Kept in the profile being recorded, if there is one, for NodeCompiler to
+  // build the operator that way on the next run
+  static void specialized(Interpreter interpreter, Token operator, Profile.Specialization specialization) {
+    if (interpreter.profile != null) {
+      interpreter.profile.specialized(operator, specialization);
+    }
+  }
+
+  final <T extends Node> T adopt(T child) {
+    if (child != null) {
+      ((Node)child).parent = this;
+    }
+
+    return child;
+  }
+
+  abstract static class Expression extends Node {
+    abstract Object execute(Interpreter interpreter);
+
+    // Nodes specialized on numbers take their operands as unboxed doubles.
+    // Anything that isn't a number is thrown back at them instead.
+    double executeNumber(Interpreter interpreter) throws UnexpectedValue {
+      return expectNumber(execute(interpreter));
+    }
+  }
+
+  static final class UnexpectedValue extends Exception {
+    final Object value;
+
+    UnexpectedValue(Object value) {
+      super(null, null, false, false);
+      this.value = value;
+    }
+  }
+
+  static double expectNumber(Object value) throws UnexpectedValue {
+    if (value instanceof Double) {
+      return (double)value;
+    }
+
+    if (value instanceof Long) {
+      return (long)value;
+    }
+
+    throw new UnexpectedValue(value);
+  }
+
+  abstract static class Statement extends Node {
+    abstract Completion execute(Interpreter interpreter);
+  }
+
+  // Stops at the first statement that doesn't complete normally
+  static Completion executeAll(Statement[] stmts, Interpreter interpreter) {
+    for (var stmt : stmts) {
+      var completion = stmt.execute(interpreter);
+      if (completion != Completion.NORMAL) {
+        return completion;
+      }
+    }
+
+    return Completion.NORMAL;
+  }
+
+  static final class Constant extends Expression {
+    private final Object value;
+
+    Constant(Object value) {
+      this.value = value;
+    }
+
+    Object execute(Interpreter interpreter) {
+      return value;
+    }
+  }
+
+  // Kept apart from other constants since dual numbers turn them into a Long
+  static final class NumberConstant extends Expression {
+    private final Double value;
+
+    NumberConstant(Double value) {
+      this.value = value;
+    }
+
+    Object execute(Interpreter interpreter) {
+      return interpreter.literal(value);
+    }
+
+    double executeNumber(Interpreter interpreter) {
+      return value;
+    }
+  }
+
+  static final class FrameRead extends Expression {
+    private final int index;
+
+    FrameRead(int index) {
+      this.index = index;
+    }
+
+    Object execute(Interpreter interpreter) {
+      return interpreter.frame[index];
+    }
+  }
+
+  static final class CellRead extends Expression {
+    private final int index;
+
+    CellRead(int index) {
+      this.index = index;
+    }
+
+    Object execute(Interpreter interpreter) {
+      return ((Cell)interpreter.frame[index]).value;
+    }
+  }
+
+  static final class UpvalueRead extends Expression {
+    private final int index;
+
+    UpvalueRead(int index) {
+      this.index = index;
+    }
+
+    Object execute(Interpreter interpreter) {
+      return interpreter.upvalues[index].value;
+    }
+  }
+
+  static final class GlobalRead extends Expression {
+    private final Token identifier;
+
+    GlobalRead(Token identifier) {
+      this.identifier = identifier;
+    }
+
+    Object execute(Interpreter interpreter) {
+      return interpreter.global.get(identifier);
+    }
+  }
+
+  // Assignments and definitions all have a value to store somewhere
+  abstract static class Store extends Expression {
+    Expression value;
+
+    Store(Expression value) {
+      this.value = adopt(value);
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (value == child) {
+        value = (Expression)node;
+      }
+    }
+  }
+
+  static final class FrameAssign extends Store {
+    private final int index;
+
+    FrameAssign(int index, Expression value) {
+      super(value);
+      this.index = index;
+    }
+
+    Object execute(Interpreter interpreter) {
+      var result = value.execute(interpreter);
+      interpreter.frame[index] = result;
+
+      return result;
+    }
+  }
+
+  static final class CellAssign extends Store {
+    private final int index;
+
+    CellAssign(int index, Expression value) {
+      super(value);
+      this.index = index;
+    }
+
+    Object execute(Interpreter interpreter) {
+      var result = value.execute(interpreter);
+      ((Cell)interpreter.frame[index]).value = result;
+
+      return result;
+    }
+  }
+
+  static final class UpvalueAssign extends Store {
+    private final int index;
+
+    UpvalueAssign(int index, Expression value) {
+      super(value);
+      this.index = index;
+    }
+
+    Object execute(Interpreter interpreter) {
+      var result = value.execute(interpreter);
+      interpreter.upvalues[index].value = result;
+
+      return result;
+    }
+  }
+
+  static final class GlobalAssign extends Store {
+    private final Token identifier;
+
+    GlobalAssign(Token identifier, Expression value) {
+      super(value);
+      this.identifier = identifier;
+    }
+
+    Object execute(Interpreter interpreter) {
+      var result = value.execute(interpreter);
+      interpreter.global.assign(identifier, result);
+
+      return result;
+    }
+  }
+
+  static final class And extends Expression {
+    private Expression left;
+    private Expression right;
+
+    And(Expression left, Expression right) {
+      this.left = adopt(left);
+      this.right = adopt(right);
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (left == child) {
+        left = (Expression)node;
+      } else if (right == child) {
+        right = (Expression)node;
+      }
+    }
+
+    Object execute(Interpreter interpreter) {
+      var value = left.execute(interpreter);
+      if (!interpreter.isTruthy(value)) {
+        return value;
+      }
+
+      return right.execute(interpreter);
+    }
+  }
+
+  static final class Or extends Expression {
+    private Expression left;
+    private Expression right;
+
+    Or(Expression left, Expression right) {
+      this.left = adopt(left);
+      this.right = adopt(right);
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (left == child) {
+        left = (Expression)node;
+      } else if (right == child) {
+        right = (Expression)node;
+      }
+    }
+
+    Object execute(Interpreter interpreter) {
+      var value = left.execute(interpreter);
+      if (interpreter.isTruthy(value)) {
+        return value;
+      }
+
+      return right.execute(interpreter);
+    }
+  }
+
+  // Both operands are evaluated before the operator is applied to them, so
+  // a node that has to give way to another can hand it the values.
+  abstract static class Binary extends Expression {
+    final Token operator;
+    Expression left;
+    Expression right;
+
+    Binary(Token operator, Expression left, Expression right) {
+      this.operator = operator;
+      this.left = adopt(left);
+      this.right = adopt(right);
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (left == child) {
+        left = (Expression)node;
+      } else if (right == child) {
+        right = (Expression)node;
+      }
+    }
+
+    Object execute(Interpreter interpreter) {
+      var leftValue = left.execute(interpreter);
+      var rightValue = right.execute(interpreter);
+
+      return apply(interpreter, leftValue, rightValue);
+    }
+
+    abstract Object apply(Interpreter interpreter, Object left, Object right);
+
+    final Object generalize(Interpreter interpreter, Object left, Object right) {
+      if (current() != this) {
+        return ((Binary)current()).apply(interpreter, left, right);
+      }
+
+      specialized(interpreter, operator, Profile.Specialization.GENERIC);
+      return replace(new GenericBinary(operator, this.left, this.right)).apply(interpreter, left, right);
+    }
+
+    // The node for the operator specialized that way, or null if there isn't
+    // one
+    static Binary specialize(Profile.Specialization specialization, Token operator, Expression left, Expression right) {
+      return switch (specialization) {
+        case NUMBER -> switch (operator.type()) {
+          case TokenType.PLUS -> new Add(operator, left, right);
+          case TokenType.MINUS -> new Subtract(operator, left, right);
+          case TokenType.STAR -> new Multiply(operator, left, right);
+          case TokenType.SLASH -> new Divide(operator, left, right);
+          case TokenType.PERCENT -> new Remainder(operator, left, right);
+          case TokenType.GREATER -> new Greater(operator, left, right);
+          case TokenType.GREATER_EQUAL -> new GreaterEqual(operator, left, right);
+          case TokenType.LESS -> new Less(operator, left, right);
+          case TokenType.LESS_EQUAL -> new LessEqual(operator, left, right);
+          default -> null;
+        };
+        case CONCATENATE -> operator.type() == TokenType.PLUS ? new Concatenate(operator, left, right) : null;
+        case GENERIC -> new GenericBinary(operator, left, right);
+      };
+    }
+  }
+
+  static final class UninitializedBinary extends Binary {
+    UninitializedBinary(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    Object apply(Interpreter interpreter, Object leftValue, Object rightValue) {
+      if (current() != this) {
+        return ((Binary)current()).apply(interpreter, leftValue, rightValue);
+      }
+
+      var specialization = Profile.Specialization.GENERIC;
+      if (interpreter.isNumber(leftValue) && interpreter.isNumber(rightValue)) {
+        specialization = Profile.Specialization.NUMBER;
+      } else if (leftValue instanceof String && rightValue instanceof String) {
+        specialization = Profile.Specialization.CONCATENATE;
+      }
+
+      var node = specialize(specialization, operator, left, right);
+      if (node == null) {
+        specialization = Profile.Specialization.GENERIC;
+        node = new GenericBinary(operator, left, right);
+      }
+
+      specialized(interpreter, operator, specialization);
+      return replace(node).apply(interpreter, leftValue, rightValue);
+    }
+  }
+
+  static final class GenericBinary extends Binary {
+    GenericBinary(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    Object apply(Interpreter interpreter, Object left, Object right) {
+      return interpreter.binary(operator, left, right);
+    }
+  }
+
+  // Specialized for two numbers, anything else generalizes it. A Long from
+  // dual numbers is a number too.
+  abstract static class NumberBinary extends Binary {
+    NumberBinary(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    final Object apply(Interpreter interpreter, Object left, Object right) {
+      if (interpreter.isNumber(left) && interpreter.isNumber(right)) {
+        return apply(interpreter, interpreter.toDouble(left), interpreter.toDouble(right));
+      }
+
+      return generalize(interpreter, left, right);
+    }
+
+    abstract Object apply(Interpreter interpreter, double left, double right);
+  }
+
+  // Arithmetic on numbers is computed on doubles until its value leaves for a
+  // node that isn't specialized on numbers.
+  abstract static class Arithmetic extends NumberBinary {
+    Arithmetic(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    final Object execute(Interpreter interpreter) {
+      try {
+        return interpreter.box(executeNumber(interpreter));
+      } catch (UnexpectedValue unexpected) {
+        return unexpected.value;
+      }
+    }
+
+    final double executeNumber(Interpreter interpreter) throws UnexpectedValue {
+      double leftValue;
+      try {
+        leftValue = left.executeNumber(interpreter);
+      } catch (UnexpectedValue unexpected) {
+        return expectNumber(generalize(interpreter, unexpected.value, right.execute(interpreter)));
+      }
+
+      double rightValue;
+      try {
+        rightValue = right.executeNumber(interpreter);
+      } catch (UnexpectedValue unexpected) {
+        return expectNumber(generalize(interpreter, interpreter.box(leftValue), unexpected.value));
+      }
+
+      return compute(interpreter, leftValue, rightValue);
+    }
+
+    final Object apply(Interpreter interpreter, double left, double right) {
+      return interpreter.box(compute(interpreter, left, right));
+    }
+
+    abstract double compute(Interpreter interpreter, double left, double right);
+  }
+
+  static final class Add extends Arithmetic {
+    Add(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    double compute(Interpreter interpreter, double left, double right) {
+      return left + right;
+    }
+  }
+
+  static final class Subtract extends Arithmetic {
+    Subtract(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    double compute(Interpreter interpreter, double left, double right) {
+      return left - right;
+    }
+  }
+
+  static final class Multiply extends Arithmetic {
+    Multiply(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    double compute(Interpreter interpreter, double left, double right) {
+      return left * right;
+    }
+  }
+
+  static final class Divide extends Arithmetic {
+    Divide(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    double compute(Interpreter interpreter, double left, double right) {
+      interpreter.checkNotDivideByZero(operator, right);
+
+      return left / right;
+    }
+  }
+
+  static final class Remainder extends Arithmetic {
+    Remainder(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    double compute(Interpreter interpreter, double left, double right) {
+      interpreter.checkNotDivideByZero(operator, right);
+
+      return interpreter.remainder(left, right);
+    }
+  }
+
+  // Comparisons take their operands unboxed but are a boolean themselves
+  abstract static class Comparison extends NumberBinary {
+    Comparison(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    final Object execute(Interpreter interpreter) {
+      double leftValue;
+      try {
+        leftValue = left.executeNumber(interpreter);
+      } catch (UnexpectedValue unexpected) {
+        return generalize(interpreter, unexpected.value, right.execute(interpreter));
+      }
+
+      double rightValue;
+      try {
+        rightValue = right.executeNumber(interpreter);
+      } catch (UnexpectedValue unexpected) {
+        return generalize(interpreter, interpreter.box(leftValue), unexpected.value);
+      }
+
+      return apply(interpreter, leftValue, rightValue);
+    }
+  }
+
+  static final class Greater extends Comparison {
+    Greater(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    Object apply(Interpreter interpreter, double left, double right) {
+      return left > right;
+    }
+  }
+
+  static final class GreaterEqual extends Comparison {
+    GreaterEqual(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    Object apply(Interpreter interpreter, double left, double right) {
+      return left >= right;
+    }
+  }
+
+  static final class Less extends Comparison {
+    Less(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    Object apply(Interpreter interpreter, double left, double right) {
+      return left < right;
+    }
+  }
+
+  static final class LessEqual extends Comparison {
+    LessEqual(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    Object apply(Interpreter interpreter, double left, double right) {
+      return left <= right;
+    }
+  }
+
+  static final class Concatenate extends Binary {
+    Concatenate(Token operator, Expression left, Expression right) {
+      super(operator, left, right);
+    }
+
+    Object apply(Interpreter interpreter, Object left, Object right) {
+      if (left instanceof String && right instanceof String) {
+        return (String)left + (String)right;
+      }
+
+      return generalize(interpreter, left, right);
+    }
+  }
+
+  // Equality works on anything, there's nothing to specialize
+  static final class Equal extends Binary {
+    private final boolean negated;
+
+    Equal(Token operator, Expression left, Expression right, boolean negated) {
+      super(operator, left, right);
+      this.negated = negated;
+    }
+
+    Object apply(Interpreter interpreter, Object left, Object right) {
+      return interpreter.isEqual(left, right) != negated;
+    }
+  }
+
+  abstract static class Negate extends Expression {
+    final Token operator;
+    Expression operand;
+
+    Negate(Token operator, Expression operand) {
+      this.operator = operator;
+      this.operand = adopt(operand);
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (operand == child) {
+        operand = (Expression)node;
+      }
+    }
+
+    Object execute(Interpreter interpreter) {
+      return apply(interpreter, operand.execute(interpreter));
+    }
+
+    abstract Object apply(Interpreter interpreter, Object value);
+
+    final Object generalize(Interpreter interpreter, Object value) {
+      if (current() != this) {
+        return ((Negate)current()).apply(interpreter, value);
+      }
+
+      specialized(interpreter, operator, Profile.Specialization.GENERIC);
+      return replace(new GenericNegate(operator, operand)).apply(interpreter, value);
+    }
+  }
+
+  static final class UninitializedNegate extends Negate {
+    UninitializedNegate(Token operator, Expression operand) {
+      super(operator, operand);
+    }
+
+    Object apply(Interpreter interpreter, Object value) {
+      if (current() != this) {
+        return ((Negate)current()).apply(interpreter, value);
+      }
+
+      if (interpreter.isNumber(value)) {
+        specialized(interpreter, operator, Profile.Specialization.NUMBER);
+        return replace(new NumberNegate(operator, operand)).apply(interpreter, value);
+      }
+
+      return generalize(interpreter, value);
+    }
+  }
+
+  static final class NumberNegate extends Negate {
+    NumberNegate(Token operator, Expression operand) {
+      super(operator, operand);
+    }
+
+    Object execute(Interpreter interpreter) {
+      try {
+        return interpreter.box(executeNumber(interpreter));
+      } catch (UnexpectedValue unexpected) {
+        return unexpected.value;
+      }
+    }
+
+    double executeNumber(Interpreter interpreter) throws UnexpectedValue {
+      try {
+        return -operand.executeNumber(interpreter);
+      } catch (UnexpectedValue unexpected) {
+        return expectNumber(generalize(interpreter, unexpected.value));
+      }
+    }
+
+    Object apply(Interpreter interpreter, Object value) {
+      if (interpreter.isNumber(value)) {
+        return interpreter.box(-interpreter.toDouble(value));
+      }
+
+      return generalize(interpreter, value);
+    }
+  }
+
+  static final class GenericNegate extends Negate {
+    GenericNegate(Token operator, Expression operand) {
+      super(operator, operand);
+    }
+
+    Object apply(Interpreter interpreter, Object value) {
+      return interpreter.negate(operator, value);
+    }
+  }
+
+  static final class Not extends Expression {
+    private Expression operand;
+
+    Not(Expression operand) {
+      this.operand = adopt(operand);
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (operand == child) {
+        operand = (Expression)node;
+      }
+    }
+
+    Object execute(Interpreter interpreter) {
+      return !interpreter.isTruthy(operand.execute(interpreter));
+    }
+  }
+
+  // Calls go through the entry point for their number of arguments, the same
+  // as in the tree walking interpreter.
+  abstract static class Arguments extends Expression {
+    final Token paren;
+    final Expression[] args;
+
+    Arguments(Token paren, Expression[] args) {
+      this.paren = paren;
+      this.args = args;
+      for (var arg : args) {
+        adopt(arg);
+      }
+    }
+
+    void replaceChild(Node child, Node node) {
+      for (var i = 0; i < args.length; i++) {
+        if (args[i] == child) {
+          args[i] = (Expression)node;
+        }
+      }
+    }
+
+    final void checkArity(int arity) {
+      if (args.length != arity) {
+        throw new RuntimeError(paren, String.format("Expected %d arguments but got %d", arity, args.length));
+      }
+    }
+
+    final Object[] executeAll(Interpreter interpreter) {
+      var values = new Object[args.length];
+      for (var i = 0; i < values.length; i++) {
+        values[i] = args[i].execute(interpreter);
+      }
+
+      return values;
+    }
+  }
+
+  static final class Call extends Arguments {
+    private Expression callee;
+
+    Call(Expression callee, Token paren, Expression[] args) {
+      super(paren, args);
+      this.callee = adopt(callee);
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (callee == child) {
+        callee = (Expression)node;
+      } else {
+        super.replaceChild(child, node);
+      }
+    }
+
+    Object execute(Interpreter interpreter) {
+      return call(interpreter, callee.execute(interpreter));
+    }
+
+    Object call(Interpreter interpreter, Object callee) {
+      if (!(callee instanceof LoxCallable)) {
+        throw new RuntimeError(paren, "Calls can only be made on functions and classes.");
+      }
+
+      var func = (LoxCallable)callee;
+      checkArity(func.arity());
+
+      return switch (args.length) {
+        case 0 -> func.call0(interpreter);
+        case 1 -> func.call1(interpreter, args[0].execute(interpreter));
+        case 2 -> func.call2(interpreter, args[0].execute(interpreter), args[1].execute(interpreter));
+        case 3 -> func.call3(interpreter, args[0].execute(interpreter), args[1].execute(interpreter), args[2].execute(interpreter));
+        case 4 -> func.call4(interpreter, args[0].execute(interpreter), args[1].execute(interpreter), args[2].execute(interpreter), args[3].execute(interpreter));
+        default -> func.call(interpreter, executeAll(interpreter));
+      };
+    }
+  }
+
+  // A call on a property, methods are called on the instance directly
+  // instead of being bound to it first.
+  static final class Invoke extends Arguments {
+    private Expression instance;
+    private final Token identifier;
+
+    Invoke(Expression instance, Token identifier, Token paren, Expression[] args) {
+      super(paren, args);
+      this.instance = adopt(instance);
+      this.identifier = identifier;
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (instance == child) {
+        instance = (Expression)node;
+      } else {
+        super.replaceChild(child, node);
+      }
+    }
+
+    Object execute(Interpreter interpreter) {
+      var value = instance.execute(interpreter);
+      if (!(value instanceof LoxInstance)) {
+        throw new RuntimeError(identifier, "Only instances of classes have properties.");
+      }
+
+      var receiver = (LoxInstance)value;
+      var method = receiver.method(identifier.lexeme());
+      if (method == null) {
+        return call(interpreter, receiver.get(identifier));
+      }
+
+      checkArity(method.arity());
+
+      return switch (args.length) {
+        case 0 -> method.invoke0(interpreter, receiver);
+        case 1 -> method.invoke1(interpreter, receiver, args[0].execute(interpreter));
+        case 2 -> method.invoke2(interpreter, receiver, args[0].execute(interpreter), args[1].execute(interpreter));
+        case 3 -> method.invoke3(interpreter, receiver, args[0].execute(interpreter), args[1].execute(interpreter), args[2].execute(interpreter));
+        case 4 -> method.invoke4(interpreter, receiver, args[0].execute(interpreter), args[1].execute(interpreter), args[2].execute(interpreter), args[3].execute(interpreter));
+        default -> method.invoke(interpreter, receiver, executeAll(interpreter));
+      };
+    }
+
+    private Object call(Interpreter interpreter, Object callee) {
+      if (!(callee instanceof LoxCallable)) {
+        throw new RuntimeError(paren, "Calls can only be made on functions and classes.");
+      }
+
+      var func = (LoxCallable)callee;
+      checkArity(func.arity());
+
+      return func.call(interpreter, executeAll(interpreter));
+    }
+  }
+
+  static final class Get extends Expression {
+    private Expression instance;
+    private final Token identifier;
+
+    Get(Expression instance, Token identifier) {
+      this.instance = adopt(instance);
+      this.identifier = identifier;
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (instance == child) {
+        instance = (Expression)node;
+      }
+    }
+
+    Object execute(Interpreter interpreter) {
+      var value = instance.execute(interpreter);
+      if (!(value instanceof LoxInstance)) {
+        throw new RuntimeError(identifier, "Only instances of classes have properties.");
+      }
+
+      return ((LoxInstance)value).get(identifier);
+    }
+  }
+
+  static final class Set extends Expression {
+    private Expression instance;
+    private final Token identifier;
+    private Expression value;
+
+    Set(Expression instance, Token identifier, Expression value) {
+      this.instance = adopt(instance);
+      this.identifier = identifier;
+      this.value = adopt(value);
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (instance == child) {
+        instance = (Expression)node;
+      } else if (value == child) {
+        value = (Expression)node;
+      }
+    }
+
+    Object execute(Interpreter interpreter) {
+      var object = instance.execute(interpreter);
+      if (!(object instanceof LoxInstance)) {
+        throw new RuntimeError(identifier, "Only instances of classes have properties.");
+      }
+
+      var result = value.execute(interpreter);
+      ((LoxInstance)object).set(identifier, result);
+      return result;
+    }
+  }
+
+  static final class Super extends Expression {
+    private final Expr.Super expr;
+
+    Super(Expr.Super expr) {
+      this.expr = expr;
+    }
+
+    Object execute(Interpreter interpreter) {
+      return interpreter.evalSuper(expr);
+    }
+  }
+
+  static final class ExprStmt extends Statement {
+    private Expression expr;
+
+    ExprStmt(Expression expr) {
+      this.expr = adopt(expr);
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (expr == child) {
+        expr = (Expression)node;
+      }
+    }
+
+    Completion execute(Interpreter interpreter) {
+      expr.execute(interpreter);
+
+      return Completion.NORMAL;
+    }
+  }
+
+  static final class Block extends Statement {
+    private final Scope scope;
+    private final Statement[] stmts;
+
+    Block(Scope scope, Statement[] stmts) {
+      this.scope = scope;
+      this.stmts = stmts;
+    }
+
+    Completion execute(Interpreter interpreter) {
+      interpreter.reserve(scope);
+
+      return executeAll(stmts, interpreter);
+    }
+  }
+
+  static final class If extends Statement {
+    private Expression condition;
+    private final Statement ifStmt;
+    private final Statement elseStmt;
+
+    If(Expression condition, Statement ifStmt, Statement elseStmt) {
+      this.condition = adopt(condition);
+      this.ifStmt = ifStmt;
+      this.elseStmt = elseStmt;
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (condition == child) {
+        condition = (Expression)node;
+      }
+    }
+
+    Completion execute(Interpreter interpreter) {
+      if (interpreter.isTruthy(condition.execute(interpreter))) {
+        return ifStmt.execute(interpreter);
+      } else if (elseStmt != null) {
+        return elseStmt.execute(interpreter);
+      }
+
+      return Completion.NORMAL;
+    }
+  }
+
+  static final class While extends Statement {
+    private Expression condition;
+    private final Statement stmt;
+
+    While(Expression condition, Statement stmt) {
+      this.condition = adopt(condition);
+      this.stmt = stmt;
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (condition == child) {
+        condition = (Expression)node;
+      }
+    }
+
+    Completion execute(Interpreter interpreter) {
+      while (interpreter.isTruthy(condition.execute(interpreter))) {
+        interpreter.backEdges++;
+        var completion = stmt.execute(interpreter);
+        if (completion == Completion.BREAK) {
+          break;
+        }
+
+        if (completion == Completion.RETURN) {
+          return completion;
+        }
+      }
+
+      return Completion.NORMAL;
+    }
+  }
+
+  static final class For extends Statement {
+    private final Scope scope;
+    private final Statement initializer;
+    private Expression condition;
+    private Expression increment;
+    private final Statement stmt;
+
+    For(Scope scope, Statement initializer, Expression condition, Expression increment, Statement stmt) {
+      this.scope = scope;
+      this.initializer = initializer;
+      this.condition = adopt(condition);
+      this.increment = adopt(increment);
+      this.stmt = stmt;
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (condition == child) {
+        condition = (Expression)node;
+      } else if (increment == child) {
+        increment = (Expression)node;
+      }
+    }
+
+    Completion execute(Interpreter interpreter) {
+      interpreter.reserve(scope);
+
+      if (initializer != null) {
+        initializer.execute(interpreter);
+      }
+
+      while (interpreter.isTruthy(condition.execute(interpreter))) {
+        interpreter.backEdges++;
+        var completion = stmt.execute(interpreter);
+        if (completion == Completion.BREAK) {
+          break;
+        }
+
+        if (completion == Completion.RETURN) {
+          return completion;
+        }
+
+        // Continuing still runs the increment
+        if (increment != null) {
+          increment.execute(interpreter);
+        }
+      }
+
+      return Completion.NORMAL;
+    }
+  }
+
+  // Declarations that have a value to put in a new variable
+  abstract static class Define extends Statement {
+    Expression value;
+
+    Define(Expression value) {
+      this.value = adopt(value);
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (value == child) {
+        value = (Expression)node;
+      }
+    }
+
+    final Object value(Interpreter interpreter) {
+      return value == null ? null : value.execute(interpreter);
+    }
+  }
+
+  static final class FrameDefine extends Define {
+    private final int index;
+
+    FrameDefine(int index, Expression value) {
+      super(value);
+      this.index = index;
+    }
+
+    Completion execute(Interpreter interpreter) {
+      interpreter.frame[index] = value(interpreter);
+
+      return Completion.NORMAL;
+    }
+  }
+
+  static final class CellDefine extends Define {
+    private final int index;
+
+    CellDefine(int index, Expression value) {
+      super(value);
+      this.index = index;
+    }
+
+    Completion execute(Interpreter interpreter) {
+      interpreter.frame[index] = new Cell(value(interpreter));
+
+      return Completion.NORMAL;
+    }
+  }
+
+  static final class GlobalDefine extends Define {
+    private final String identifier;
+
+    GlobalDefine(String identifier, Expression value) {
+      super(value);
+      this.identifier = identifier;
+    }
+
+    Completion execute(Interpreter interpreter) {
+      interpreter.global.define(identifier, value(interpreter));
+
+      return Completion.NORMAL;
+    }
+  }
+
+  // Functions and classes are only declared once per run of their scope, they
+  // go through the tree walking interpreter.
+  static final class Function extends Statement {
+    private final Stmt.Function stmt;
+
+    Function(Stmt.Function stmt) {
+      this.stmt = stmt;
+    }
+
+    Completion execute(Interpreter interpreter) {
+      return interpreter.execFunction(stmt);
+    }
+  }
+
+  static final class Class extends Statement {
+    private final Stmt.Class stmt;
+
+    Class(Stmt.Class stmt) {
+      this.stmt = stmt;
+    }
+
+    Completion execute(Interpreter interpreter) {
+      return interpreter.execClass(stmt);
+    }
+  }
+
+  static final class Return extends Statement {
+    private Expression value;
+
+    Return(Expression value) {
+      this.value = adopt(value);
+    }
+
+    void replaceChild(Node child, Node node) {
+      if (value == child) {
+        value = (Expression)node;
+      }
+    }
+
+    Completion execute(Interpreter interpreter) {
+      interpreter.returned = value == null ? null : value.execute(interpreter);
+
+      return Completion.RETURN;
+    }
+  }
+
+  static final class Jump extends Statement {
+    private final Completion completion;
+
+    Jump(Completion completion) {
+      this.completion = completion;
+    }
+
+    Completion execute(Interpreter interpreter) {
+      return completion;
+    }
+  }
+}
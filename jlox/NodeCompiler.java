@@ -0,0 +1,164 @@
+import java.util.List;
+
+// Compiles resolved statements to the nodes the node backend runs. Operators
+// start out uninitialized and specialize themselves when they first run,
+// unless a profile read with --profile-in says what they ended up as last
+// time. Everything else is decided here.
+class NodeCompiler {
+  private final Profile profile;
+
+  private NodeCompiler(Profile profile) {
+    this.profile = profile;
+  }
+
+  // The profile can be null
+  static Node.Statement[] compile(List<Stmt> stmts, Profile profile) {
+    return new NodeCompiler(profile).compile(stmts);
+  }
+
+  private Node.Statement[] compile(List<Stmt> stmts) {
+    var nodes = new Node.Statement[stmts.size()];
+    for (var i = 0; i < nodes.length; i++) {
+      nodes[i] = compile(stmts.get(i));
+    }
+
+    return nodes;
+  }
+
+  private Node.Statement compile(Stmt stmt) {
+    return switch (stmt) {
+      case Stmt.ExprStmt expr -> new Node.ExprStmt(compile(expr.expr()));
+      case Stmt.Var var -> compileVar(var);
+      case Stmt.Block block -> new Node.Block(block.scope(), compile(block.stmts()));
+      case Stmt.If ifStmt -> new Node.If(compile(ifStmt.condition()), compile(ifStmt.ifStmt()), compileOptional(ifStmt.elseStmt()));
+      case Stmt.While whileStmt -> new Node.While(compile(whileStmt.condition()), compile(whileStmt.stmt()));
+      case Stmt.For forStmt -> new Node.For(forStmt.scope(), compileOptional(forStmt.initializer()), compile(forStmt.condition()), compileOptional(forStmt.increment()), compile(forStmt.stmt()));
+      case Stmt.Function func -> new Node.Function(func);
+      case Stmt.Class classStmt -> new Node.Class(classStmt);
+      case Stmt.Return returnStmt -> new Node.Return(compileOptional(returnStmt.expr()));
+      case Stmt.Break breakStmt -> new Node.Jump(Completion.BREAK);
+      case Stmt.Continue continueStmt -> new Node.Jump(Completion.CONTINUE);
+      default -> throw new IllegalStateException("Unknown statement.");
+    };
+  }
+
+  private Node.Statement compileOptional(Stmt stmt) {
+    return stmt == null ? null : compile(stmt);
+  }
+
+  private Node.Statement compileVar(Stmt.Var stmt) {
+    var local = stmt.local();
+    var value = compileOptional(stmt.value());
+
+    return switch (local.kind) {
+      case GLOBAL -> new Node.GlobalDefine(stmt.identifier().lexeme(), value);
+      case FRAME -> new Node.FrameDefine(local.index, value);
+      case CELL -> new Node.CellDefine(local.index, value);
+      case UPVALUE -> throw new IllegalStateException("Can't declare an upvalue.");
+    };
+  }
+
+  private Node.Expression compile(Expr expr) {
+    return switch (expr) {
+      case Expr.Literal literal -> literal.value() instanceof Double number ? new Node.NumberConstant(number) : new Node.Constant(literal.value());
+      case Expr.Grouping grouping -> compile(grouping.expr());
+      case Expr.Logical logical -> compileLogical(logical);
+      case Expr.Binary binary -> compileBinary(binary);
+      case Expr.Unary unary -> compileUnary(unary);
+      case Expr.Var var -> compileRead(var.identifier(), var.local());
+      case Expr.Assign assign -> compileAssign(assign);
+      case Expr.Call call -> compileCall(call);
+      case Expr.InstanceGet get -> new Node.Get(compile(get.instance()), get.identifier());
+      case Expr.InstanceSet set -> new Node.Set(compile(set.instance()), set.identifier(), compile(set.value()));
+      case Expr.This thisExpr -> compileRead(thisExpr.keyword(), thisExpr.local());
+      case Expr.Super superExpr -> new Node.Super(superExpr);
+      default -> throw new IllegalStateException("Unknown expression.");
+    };
+  }
+
+  private Node.Expression compileOptional(Expr expr) {
+    return expr == null ? null : compile(expr);
+  }
+
+  private Node.Expression compileLogical(Expr.Logical expr) {
+    var left = compile(expr.left());
+    var right = compile(expr.right());
+
+    if (expr.operator().type() == TokenType.OR) {
+      return new Node.Or(left, right);
+    }
+
+    return new Node.And(left, right);
+  }
+
+  private Node.Expression compileBinary(Expr.Binary expr) {
+    var operator = expr.operator();
+    var left = compile(expr.left());
+    var right = compile(expr.right());
+
+    return switch (operator.type()) {
+      case TokenType.EQUAL_EQUAL -> new Node.Equal(operator, left, right, false);
+      case TokenType.BANG_EQUAL -> new Node.Equal(operator, left, right, true);
+      default -> {
+        var specialization = profile == null ? null : profile.specialization(operator);
+        Node.Expression node = specialization == null ? null : Node.Binary.specialize(specialization, operator, left, right);
+        yield node != null ? node : new Node.UninitializedBinary(operator, left, right);
+      }
+    };
+  }
+
+  private Node.Expression compileUnary(Expr.Unary expr) {
+    var operand = compile(expr.expr());
+
+    var operator = expr.operator();
+    if (operator.type() == TokenType.MINUS) {
+      var specialization = profile == null ? null : profile.specialization(operator);
+      if (specialization == Profile.Specialization.NUMBER) {
+        return new Node.NumberNegate(operator, operand);
+      }
+
+      if (specialization == Profile.Specialization.GENERIC) {
+        return new Node.GenericNegate(operator, operand);
+      }
+
+      return new Node.UninitializedNegate(operator, operand);
+    }
+
+    return new Node.Not(operand);
+  }
+
+  private Node.Expression compileRead(Token identifier, Local local) {
+    return switch (local.kind) {
+      case GLOBAL -> new Node.GlobalRead(identifier);
+      case FRAME -> new Node.FrameRead(local.index);
+      case CELL -> new Node.CellRead(local.index);
+      case UPVALUE -> new Node.UpvalueRead(local.index);
+    };
+  }
+
+  private Node.Expression compileAssign(Expr.Assign expr) {
+    var local = expr.local();
+    var value = compile(expr.value());
+
+    return switch (local.kind) {
+      case GLOBAL -> new Node.GlobalAssign(expr.identifier(), value);
+      case FRAME -> new Node.FrameAssign(local.index, value);
+      case CELL -> new Node.CellAssign(local.index, value);
+      case UPVALUE -> new Node.UpvalueAssign(local.index, value);
+    };
+  }
+
+  // Methods are called on their instance directly, the same as evalCall
+  private Node.Expression compileCall(Expr.Call expr) {
+    var args = new Node.Expression[expr.args().size()];
+    for (var i = 0; i < args.length; i++) {
+      args[i] = compile(expr.args().get(i));
+    }
+
+    if (expr.callee() instanceof Expr.InstanceGet get) {
+      return new Node.Invoke(compile(get.instance()), get.identifier(), expr.paren(), args);
+    }
+
+    return new Node.Call(compile(expr.callee()), expr.paren(), args);
+  }
+}
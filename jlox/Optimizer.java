@@ -0,0 +1,276 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+// Rewrites resolved statements before they run, whatever the backend:
+//
+//   - Operators applied to literals are folded into a literal, unless they'd
+//     fail, such as dividing by zero, so the error is still reported when it
+//     runs. A logical operator with a literal on the left is folded to
+//     whichever side it evaluates to.
+//   - Groupings are dropped, the tree already holds what they grouped.
+//   - Statements that can never run are dropped: those after a return, break
+//     or continue, and branches and loops a literal condition rules out.
+//
+// Everything the resolver worked out is kept as it was, so the frame still
+// has slots for variables that were dropped along with their declaration.
+// Nodes that don't change are kept as they are.
+class Optimizer {
+  static List<Stmt> optimize(List<Stmt> stmts) {
+    var optimized = new ArrayList<Stmt>(stmts.size());
+    for (var stmt : stmts) {
+      var result = optimize(stmt);
+      if (result == null) {
+        continue;
+      }
+
+      optimized.add(result);
+      if (completesAbruptly(result)) {
+        break;
+      }
+    }
+
+    return optimized;
+  }
+
+  // Null if the statement does nothing
+  private static Stmt optimize(Stmt stmt) {
+    return switch (stmt) {
+      case Stmt.ExprStmt exprStmt -> {
+        var expr = optimize(exprStmt.expr());
+        if (expr instanceof Expr.Literal) {
+          yield null;
+        }
+
+        yield expr == exprStmt.expr() ? exprStmt : new Stmt.ExprStmt(expr);
+      }
+      case Stmt.Var var -> {
+        var value = var.value() == null ? null : optimize(var.value());
+        yield value == var.value() ? var : new Stmt.Var(var.identifier(), value, var.local());
+      }
+      case Stmt.Block block -> new Stmt.Block(optimize(block.stmts()), block.scope());
+      case Stmt.If ifStmt -> optimizeIf(ifStmt);
+      case Stmt.While whileStmt -> optimizeWhile(whileStmt);
+      case Stmt.For forStmt -> optimizeFor(forStmt);
+      case Stmt.Return returnStmt -> {
+        var expr = returnStmt.expr() == null ? null : optimize(returnStmt.expr());
+        yield expr == returnStmt.expr() ? returnStmt : new Stmt.Return(returnStmt.keyword(), expr);
+      }
+      case Stmt.Function function -> {
+        optimizeBody(function);
+        yield function;
+      }
+      case Stmt.Class classStmt -> {
+        for (var method : classStmt.methods()) {
+          optimizeBody(method);
+        }
+
+        yield classStmt;
+      }
+      default -> stmt;
+    };
+  }
+
+  // Bodies that are only pre-parsed are optimized once they're compiled
+  private static void optimizeBody(Stmt.Function function) {
+    if (function.body().isParsed()) {
+      function.body().optimize();
+    }
+  }
+
+  // Where a statement has to be, one that does nothing is an empty block
+  private static Stmt optimizeRequired(Stmt stmt) {
+    var optimized = optimize(stmt);
+    return optimized == null ? new Stmt.Block(List.of()) : optimized;
+  }
+
+  private static Stmt optimizeIf(Stmt.If stmt) {
+    var condition = optimize(stmt.condition());
+    if (condition instanceof Expr.Literal literal) {
+      if (isTruthy(literal.value())) {
+        return optimize(stmt.ifStmt());
+      }
+
+      return stmt.elseStmt() == null ? null : optimize(stmt.elseStmt());
+    }
+
+    var elseStmt = stmt.elseStmt() == null ? null : optimize(stmt.elseStmt());
+    return new Stmt.If(condition, optimizeRequired(stmt.ifStmt()), elseStmt);
+  }
+
+  private static Stmt optimizeWhile(Stmt.While stmt) {
+    var condition = optimize(stmt.condition());
+    if (condition instanceof Expr.Literal literal && !isTruthy(literal.value())) {
+      return null;
+    }
+
+    return new Stmt.While(condition, optimizeRequired(stmt.stmt()));
+  }
+
+  // The initializer runs even when the condition is false from the start
+  private static Stmt optimizeFor(Stmt.For stmt) {
+    var condition = optimize(stmt.condition());
+    if (stmt.initializer() == null && condition instanceof Expr.Literal literal && !isTruthy(literal.value())) {
+      return null;
+    }
+
+    var initializer = stmt.initializer() == null ? null : optimize(stmt.initializer());
+    var increment = stmt.increment() == null ? null : optimize(stmt.increment());
+    if (increment instanceof Expr.Literal) {
+      increment = null;
+    }
+
+    return new Stmt.For(initializer, condition, increment, optimizeRequired(stmt.stmt()), stmt.scope());
+  }
+
+  // Nothing after the statement in the same block can run
+  private static boolean completesAbruptly(Stmt stmt) {
+    return switch (stmt) {
+      case Stmt.Return returnStmt -> true;
+      case Stmt.Break breakStmt -> true;
+      case Stmt.Continue continueStmt -> true;
+      case Stmt.Block block -> !block.stmts().isEmpty() && completesAbruptly(block.stmts().getLast());
+      case Stmt.If ifStmt -> ifStmt.elseStmt() != null && completesAbruptly(ifStmt.ifStmt()) && completesAbruptly(ifStmt.elseStmt());
+      default -> false;
+    };
+  }
+
+  private static Expr optimize(Expr expr) {
+    return switch (expr) {
+      case Expr.Grouping grouping -> optimize(grouping.expr());
+      case Expr.Logical logical -> optimizeLogical(logical);
+      case Expr.Binary binary -> optimizeBinary(binary);
+      case Expr.Unary unary -> optimizeUnary(unary);
+      case Expr.Assign assign -> {
+        var value = optimize(assign.value());
+        yield value == assign.value() ? assign : new Expr.Assign(assign.id(), assign.identifier(), value, assign.local());
+      }
+      case Expr.Call call -> optimizeCall(call);
+      case Expr.InstanceGet get -> {
+        var instance = optimize(get.instance());
+        yield instance == get.instance() ? get : new Expr.InstanceGet(get.id(), instance, get.identifier());
+      }
+      case Expr.InstanceSet set -> {
+        var instance = optimize(set.instance());
+        var value = optimize(set.value());
+        if (instance == set.instance() && value == set.value()) {
+          yield set;
+        }
+
+        yield new Expr.InstanceSet(set.id(), instance, set.identifier(), value);
+      }
+      default -> expr;
+    };
+  }
+
+  private static Expr optimizeLogical(Expr.Logical expr) {
+    var left = optimize(expr.left());
+    var right = optimize(expr.right());
+
+    // Or evaluates to a truthy left, and to the right otherwise. And is the
+    // other way around.
+    if (left instanceof Expr.Literal literal) {
+      return (expr.operator().type() == TokenType.OR) == isTruthy(literal.value()) ? left : right;
+    }
+
+    if (left == expr.left() && right == expr.right()) {
+      return expr;
+    }
+
+    return new Expr.Logical(expr.id(), left, expr.operator(), right);
+  }
+
+  private static Expr optimizeBinary(Expr.Binary expr) {
+    var left = optimize(expr.left());
+    var right = optimize(expr.right());
+
+    if (left instanceof Expr.Literal a && right instanceof Expr.Literal b) {
+      var value = fold(expr.operator(), a.value(), b.value());
+      if (value != null) {
+        return new Expr.Literal(expr.id(), value);
+      }
+    }
+
+    if (left == expr.left() && right == expr.right()) {
+      return expr;
+    }
+
+    return new Expr.Binary(expr.id(), left, expr.operator(), right);
+  }
+
+  private static Expr optimizeUnary(Expr.Unary expr) {
+    var operand = optimize(expr.expr());
+
+    if (operand instanceof Expr.Literal literal) {
+      if (expr.operator().type() == TokenType.BANG) {
+        return new Expr.Literal(expr.id(), !isTruthy(literal.value()));
+      }
+
+      if (literal.value() instanceof Double number) {
+        return new Expr.Literal(expr.id(), -number);
+      }
+    }
+
+    return operand == expr.expr() ? expr : new Expr.Unary(expr.id(), expr.operator(), operand);
+  }
+
+  private static Expr optimizeCall(Expr.Call expr) {
+    var callee = optimize(expr.callee());
+    var changed = callee != expr.callee();
+
+    var args = new ArrayList<Expr>(expr.args().size());
+    for (var arg : expr.args()) {
+      var optimized = optimize(arg);
+      changed |= optimized != arg;
+      args.add(optimized);
+    }
+
+    return changed ? new Expr.Call(expr.id(), callee, expr.paren(), args) : expr;
+  }
+
+  // The value of the operator applied to literal operands, or null when it's
+  // left to run. Numbers are folded as doubles, which is what the interpreter
+  // computes them as with dual numbers too, see Interpreter.box.
+  private static Object fold(Token operator, Object left, Object right) {
+    switch (operator.type()) {
+      case TokenType.EQUAL_EQUAL -> {
+        return Objects.equals(left, right);
+      }
+      case TokenType.BANG_EQUAL -> {
+        return !Objects.equals(left, right);
+      }
+      case TokenType.PLUS -> {
+        if (left instanceof String a && right instanceof String b) {
+          return a + b;
+        }
+      }
+      default -> {}
+    }
+
+    if (!(left instanceof Double a) || !(right instanceof Double b)) {
+      return null;
+    }
+
+    return switch (operator.type()) {
+      case TokenType.PLUS -> a + b;
+      case TokenType.MINUS -> a - b;
+      case TokenType.STAR -> a * b;
+      case TokenType.SLASH -> b == 0 ? null : a / b;
+      // The same as Interpreter.remainder, which is only faster
+      case TokenType.PERCENT -> b == 0 ? null : a % b;
+      case TokenType.GREATER -> a > b;
+      case TokenType.GREATER_EQUAL -> a >= b;
+      case TokenType.LESS -> a < b;
+      case TokenType.LESS_EQUAL -> a <= b;
+      default -> null;
+    };
+  }
+
+  private static boolean isTruthy(Object value) {
+    if (value instanceof Boolean bool) {
+      return bool;
+    }
+
+    return value != null;
+  }
+}
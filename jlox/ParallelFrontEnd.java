@@ -0,0 +1,159 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Scans, parses and resolves a large program on the common fork join pool.
+// The source is split into chunks at top level declarations that can be
+// scanned and parsed on their own, then each top level statement is resolved
+// on its own since the resolver starts every one of them in the same state.
+//
+// Errors are never reported from here. If any chunk has one, compile gives up
+// and returns null so the caller can run the serial front end, which reports
+// them in the same order and with the same recovery as it always has.
+class ParallelFrontEnd {
+  // Chunks smaller than this aren't worth a task of their own
+  private static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+  record Chunk(int offset, int length, int line) {}
+
+  static List<Stmt> compile(ByteBuffer source, boolean lazy) {
+    var chunks = split(source, MIN_CHUNK_SIZE);
+
+    var parsed = chunks.parallelStream().map(chunk -> parse(source, chunk, lazy)).toList();
+    if (parsed.contains(null)) {
+      return null;
+    }
+
+    var stmts = new ArrayList<Stmt>();
+    for (var chunk : parsed) {
+      stmts.addAll(chunk);
+    }
+
+    var resolved = stmts.parallelStream().allMatch(stmt -> withoutErrors(() -> {
+      new Resolver().resolve(List.of(stmt));
+    }));
+    if (!resolved) {
+      return null;
+    }
+
+    return Optimizer.optimize(stmts);
+  }
+
+  private static List<Stmt> parse(ByteBuffer source, Chunk chunk, boolean lazy) {
+    var stmts = new ArrayList<Stmt>();
+
+    var parsed = withoutErrors(() -> {
+      var scanner = new Scanner(source.slice(chunk.offset(), chunk.length()), chunk.line());
+      scanner.scanTokens();
+      if (Lox.collectedErrors.get().isEmpty()) {
+        stmts.addAll(new Parser(scanner, lazy).parse());
+      }
+    });
+    if (!parsed) {
+      return null;
+    }
+
+    return stmts;
+  }
+
+  private static boolean withoutErrors(Runnable run) {
+    var errors = new ArrayList<String>();
+
+    Lox.collectedErrors.set(errors);
+    try {
+      run.run();
+    } finally {
+      Lox.collectedErrors.remove();
+    }
+
+    return errors.isEmpty();
+  }
+
+  // A chunk can end at the start of a line beginning with 'fun' or 'class' as
+  // long as everything before it is closed and the last thing before it was a
+  // '}'. The serial parser is then back at the top level with nothing to
+  // continue, and no semicolon would be inserted at that newline, so scanning
+  // and parsing the chunks on their own gives the same tokens and statements.
+  // Also used by Watch, which splits at every declaration.
+  static List<Chunk> split(ByteBuffer source, int minChunkSize) {
+    var chunks = new ArrayList<Chunk>();
+    var length = source.limit();
+
+    var chunkStart = 0;
+    var chunkLine = 1;
+    var line = 1;
+    var depth = 0;
+    var last = '\0';
+
+    for (var i = 0; i < length; i++) {
+      var c = (char)(source.get(i) & 0xFF);
+
+      switch (c) {
+        case '\n' -> {
+          line++;
+
+          var next = i + 1;
+          if (depth == 0 && last == '}' && next - chunkStart >= minChunkSize && startsDeclaration(source, next)) {
+            chunks.add(new Chunk(chunkStart, next - chunkStart, chunkLine));
+            chunkStart = next;
+            chunkLine = line;
+          }
+        }
+        case '/' -> {
+          if (i + 1 < length && source.get(i + 1) == '/') {
+            while (i + 1 < length && source.get(i + 1) != '\n') {
+              i++;
+            }
+          } else {
+            last = c;
+          }
+        }
+        case '"' -> {
+          i++;
+          while (i < length && source.get(i) != '"') {
+            if (source.get(i) == '\n') {
+              line++;
+            }
+
+            i++;
+          }
+
+          last = c;
+        }
+        case '{', '(' -> {
+          depth++;
+          last = c;
+        }
+        case '}', ')' -> {
+          depth--;
+          last = c;
+        }
+        case ' ', '\t', '\r' -> {}
+        default -> last = c;
+      }
+    }
+
+    chunks.add(new Chunk(chunkStart, length - chunkStart, chunkLine));
+    return chunks;
+  }
+
+  private static boolean startsDeclaration(ByteBuffer source, int offset) {
+    return startsWith(source, offset, "fun") || startsWith(source, offset, "class");
+  }
+
+  private static boolean startsWith(ByteBuffer source, int offset, String keyword) {
+    var end = offset + keyword.length();
+    if (end >= source.limit()) {
+      return false;
+    }
+
+    for (var i = 0; i < keyword.length(); i++) {
+      if (source.get(offset + i) != keyword.charAt(i)) {
+        return false;
+      }
+    }
+
+    var c = (char)source.get(end);
+    return c == ' ' || c == '\t';
+  }
+}
@@ -8,11 +8,21 @@ class Parser {
     Expr match();
   }
 
-  private final List<Token> tokens;
+  // Tokens are pulled from the scanner as they're needed, if it has already
+  // scanned everything then the buffer is just read from.
+  private final Scanner scanner;
+  private final TokenBuffer tokens;
+  private final boolean lazy;
   private int current = 0;
+  private int depth = 0;
+  private int nextId = 0;
 
-  Parser(List<Token> tokens) {
-    this.tokens = tokens;
+  // When lazy the bodies of top level functions and methods are only
+  // pre-parsed, see FunctionBody. The tokens then have to be kept around.
+  Parser(Scanner scanner, boolean lazy) {
+    this.scanner = scanner;
+    this.tokens = scanner.tokens();
+    this.lazy = lazy;
   }
 
   List<Stmt> parse() {
@@ -25,6 +35,20 @@ class Parser {
     return stmts;
   }
 
+  // Parses one top level declaration at a time for streaming. Tokens before it
+  // are discarded, so only the tokens for a single declaration are ever kept
+  // which means it can't be used when lazy.
+  boolean hasNext() {
+    return !isAtEnd();
+  }
+
+  Stmt next() {
+    tokens.discard(current);
+    current = 0;
+
+    return declaration();
+  }
+
   private Stmt declaration() {
     try {
       if (match(TokenType.VAR)) {
@@ -47,7 +71,8 @@ class Parser {
   }
 
   private Stmt.Var variableDeclaration() {
-    var identifier = consume(TokenType.IDENTIFIER, "Expect identifier in variable declaration.");
+    consume(TokenType.IDENTIFIER, "Expect identifier in variable declaration.");
+    var identifier = previous();
 
     Expr value = null;
     if (match(TokenType.EQUAL)) {
@@ -61,7 +86,8 @@ class Parser {
   }
 
   private Stmt.Function functionDeclaration(String kind) {
-    var identifier = consume(TokenType.IDENTIFIER, String.format("Expect name for %s declaration.", kind));
+    consume(TokenType.IDENTIFIER, String.format("Expect name for %s declaration.", kind));
+    var identifier = previous();
 
     var expect = TokenType.LEFT_PAREN;
     consume(expect, String.format("Expect '%s' after %s name.", expect, kind));
@@ -73,8 +99,8 @@ class Parser {
           error(peek(), "Cannot have more than 255 parameters.");
         }
 
-        var parameter = consume(TokenType.IDENTIFIER, String.format("Expect parameter name or '%s'.", TokenType.RIGHT_PAREN));
-        parameters.add(parameter);
+        consume(TokenType.IDENTIFIER, String.format("Expect parameter name or '%s'.", TokenType.RIGHT_PAREN));
+        parameters.add(previous());
 
         if (!match(TokenType.COMMA)) {
           break;
@@ -88,16 +114,36 @@ class Parser {
     expect = TokenType.LEFT_BRACE;
     consume(expect, String.format("Expect '%s' before block.", expect));
 
-    return new Stmt.Function(identifier, parameters, block());
+    if (lazy && depth == 0) {
+      var start = current;
+      skipBlock();
+
+      return new Stmt.Function(identifier, parameters, new FunctionBody(this, start));
+    }
+
+    return new Stmt.Function(identifier, parameters, new FunctionBody(block()));
+  }
+
+  // Parses the body of a pre-parsed function, start is the first token after
+  // its opening brace. Returns null if it has errors.
+  List<Stmt> parseBody(int start) {
+    current = start;
+
+    try {
+      return block();
+    } catch (ParseError error) {
+      return null;
+    }
   }
 
   private Stmt.Class classDeclaration() {
-    var identifier = consume(TokenType.IDENTIFIER, "Expect name for class declaration.");
+    consume(TokenType.IDENTIFIER, "Expect name for class declaration.");
+    var identifier = previous();
 
     Expr.Var superclass = null;
     if (match(TokenType.LESS)) {
-      var superidentifier = consume(TokenType.IDENTIFIER, "Expect superclass name for class declaration.");
-      superclass = new Expr.Var(superidentifier);
+      consume(TokenType.IDENTIFIER, "Expect superclass name for class declaration.");
+      superclass = new Expr.Var(nextId++, previous());
     }
 
     var expect = TokenType.LEFT_BRACE;
@@ -227,7 +273,7 @@ class Parser {
       initializer = expressionStatement();
     }
 
-    Expr condition = new Expr.Literal(true);
+    Expr condition = new Expr.Literal(nextId++, true);
     if (!match(TokenType.SEMICOLON)) {
       condition = expression();
     }
@@ -264,18 +310,18 @@ class Parser {
     var expr = or();
 
     if (match(TokenType.EQUAL)) {
-      var equals = previous();
+      var equals = current - 1;
       var value = assignment();
 
       if (expr instanceof Expr.Var) {
         var identifier = ((Expr.Var)expr).identifier();
-        return new Expr.Assign(identifier, value);
+        return new Expr.Assign(nextId++, identifier, value);
       } else if (expr instanceof Expr.InstanceGet) {
         var get = (Expr.InstanceGet)expr;
-        return new Expr.InstanceSet(get.instance(), get.identifier(), value);
+        return new Expr.InstanceSet(nextId++, get.instance(), get.identifier(), value);
       }
 
-      error(equals, "Invalid assignment identifier");
+      error(tokens.token(equals), "Invalid assignment identifier");
     }
 
     return expr;
@@ -310,7 +356,7 @@ class Parser {
       var operator = previous();
       var expr = unary();
 
-      return new Expr.Unary(operator, expr);
+      return new Expr.Unary(nextId++, operator, expr);
     }
 
     return call();
@@ -324,9 +370,9 @@ class Parser {
         expr = finishCall(expr);
       } else if (match(TokenType.DOT)) {
         var expect = TokenType.IDENTIFIER;
-        var identifier = consume(expect, String.format("Expect property '%s' after '.'.", expect));
+        consume(expect, String.format("Expect property '%s' after '.'.", expect));
 
-        expr = new Expr.InstanceGet(expr, identifier);
+        expr = new Expr.InstanceGet(nextId++, expr, previous());
       } else {
         break;
       }
@@ -337,23 +383,23 @@ class Parser {
 
   private Expr primary() {
     if (match(TokenType.TRUE)) {
-      return new Expr.Literal(true);
+      return new Expr.Literal(nextId++, true);
     }
 
     if (match(TokenType.FALSE)) {
-      return new Expr.Literal(false);
+      return new Expr.Literal(nextId++, false);
     }
 
     if (match(TokenType.NIL)) {
-      return new Expr.Literal(null);
+      return new Expr.Literal(nextId++, null);
     }
 
     if (match(TokenType.STRING, TokenType.NUMBER)) {
-      return new Expr.Literal(previous().literal());
+      return new Expr.Literal(nextId++, tokens.literal(current - 1));
     }
 
     if (match(TokenType.THIS)) {
-      return new Expr.This(previous());
+      return new Expr.This(nextId++, previous());
     }
 
     if (match(TokenType.SUPER)) {
@@ -363,13 +409,13 @@ class Parser {
       consume(expect, String.format("Expect '%s' after super.", expect));
 
       expect = TokenType.IDENTIFIER;
-      var method = consume(expect, String.format("Expect identifier after super"));
+      consume(expect, String.format("Expect identifier after super"));
 
-      return new Expr.Super(keyword, method);
+      return new Expr.Super(nextId++, keyword, previous());
     }
 
     if (match(TokenType.IDENTIFIER)) {
-      return new Expr.Var(previous());
+      return new Expr.Var(nextId++, previous());
     }
 
     if (match(TokenType.LEFT_PAREN)) {
@@ -378,7 +424,7 @@ class Parser {
       var expect = TokenType.RIGHT_PAREN;
       consume(expect, String.format("Expect '%s' after expression.", expect));
 
-      return new Expr.Grouping(expr);
+      return new Expr.Grouping(nextId++, expr);
     }
 
     throw error(peek(), "Expect expression.");
@@ -402,9 +448,9 @@ class Parser {
     }
 
     var expect = TokenType.RIGHT_PAREN;
-    var paren = consume(expect, String.format("Expect '%s' after expression.", expect));
+    consume(expect, String.format("Expect '%s' after expression.", expect));
 
-    return new Expr.Call(callee, paren, args);
+    return new Expr.Call(nextId++, callee, previous(), args);
   }
 
   private Expr logicalExpr(ExprMatcher matcher, TokenType token) {
@@ -414,7 +460,7 @@ class Parser {
       var operator = previous();
       var right = matcher.match();
 
-      expr = new Expr.Logical(expr, operator, right);
+      expr = new Expr.Logical(nextId++, expr, operator, right);
     }
 
     return expr;
@@ -427,7 +473,7 @@ class Parser {
       var operator = previous();
       var right = matcher.match();
 
-      expr = new Expr.Binary(expr, operator, right);
+      expr = new Expr.Binary(nextId++, expr, operator, right);
     }
 
     return expr;
@@ -436,8 +482,13 @@ class Parser {
   private List<Stmt> block() {
     var stmts = new ArrayList<Stmt>();
 
-    while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-      stmts.add(declaration());
+    depth++;
+    try {
+      while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+        stmts.add(declaration());
+      }
+    } finally {
+      depth--;
     }
 
     var expect = TokenType.RIGHT_BRACE;
@@ -446,6 +497,27 @@ class Parser {
     return stmts;
   }
 
+  // Pre-parsing a body only checks that its braces are balanced
+  private void skipBlock() {
+    var depth = 1;
+
+    while (!isAtEnd()) {
+      if (match(TokenType.LEFT_BRACE)) {
+        depth++;
+      } else if (match(TokenType.RIGHT_BRACE)) {
+        depth--;
+        if (depth == 0) {
+          return;
+        }
+      } else {
+        advance();
+      }
+    }
+
+    var expect = TokenType.RIGHT_BRACE;
+    throw error(peek(), String.format("Expect '%s' after block.", expect));
+  }
+
   private boolean match(TokenType... types) {
     for (var type : types) {
       if (check(type)) {
@@ -457,36 +529,44 @@ class Parser {
     return false;
   }
 
-  private Token consume(TokenType type, String message) {
+  private void consume(TokenType type, String message) {
     if (check(type)) {
-      return advance();
+      advance();
+      return;
     }
 
     throw error(peek(), message);
   }
 
   private boolean check(TokenType type) {
-    return !isAtEnd() && peek().type() == type;
+    return !isAtEnd() && type(current) == type;
   }
 
   private boolean isAtEnd() {
-    return peek().type() == TokenType.EOF;
+    return type(current) == TokenType.EOF;
   }
 
+  private TokenType type(int index) {
+    while (index >= tokens.size() && scanner.scanNext()) {}
+
+    return tokens.type(index);
+  }
+
+  // Only call peek and previous when the token is actually needed, they create
+  // a Token from the buffer each time.
   private Token peek() {
-    return tokens.get(current);
+    type(current); // Makes sure it has been scanned
+    return tokens.token(current);
   }
 
-  private Token advance() {
+  private void advance() {
     if (!isAtEnd()) {
       current++;
     }
-
-    return previous();
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    return tokens.token(current - 1);
   }
 
   // Responsible for advancing past bad input to get to the next block of code,
@@ -497,11 +577,11 @@ class Parser {
     advance();
 
     while (!isAtEnd()) {
-      if (previous().type() == TokenType.SEMICOLON) {
+      if (tokens.type(current - 1) == TokenType.SEMICOLON) {
         return;
       }
 
-      switch (peek().type()) {
+      switch (type(current)) {
         case TokenType.IF:
         case TokenType.FOR:
         case TokenType.WHILE:
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// What a run learned about a script, recorded with --profile-out and read back
+// with --profile-in so the next run of it starts out warm. It's kept next to
+// the script as a .loxp file, everything in it keyed by the line and column of
+// a token:
+//
+//   functions  how many times each function was called or looped while
+//              interpreted, by its name. One that was hot is compiled by the
+//              Jit after its first call instead of once it's hot again.
+//   operators  what each arithmetic, comparison or negation node ended up
+//              specialized for with --nodes, by its operator. NodeCompiler
+//              builds them that way from the start.
+//   calls      calls to a global that went somewhere other than the Jit
+//              assumed, by their paren. They aren't assumed again.
+//
+// The file is a header followed by the entries:
+//
+//   magic    4 bytes, "LOXP"
+//   version  4 bytes, VERSION
+//   count    4 bytes, then for each entry
+//     kind     1 byte, FUNCTION, OPERATOR or CALL
+//     line     4 bytes
+//     column   4 bytes
+//     value    4 bytes, the count or the Specialization
+//
+// A profile that is missing or isn't one is ignored. Once the script changes
+// some of it may no longer line up, which only costs a wasted compile or a
+// node that has to generalize.
+class Profile {
+  enum Specialization { NUMBER, CONCATENATE, GENERIC }
+
+  private static final int MAGIC = 0x4C4F5850;
+  private static final int VERSION = 1;
+
+  private static final byte FUNCTION = 0;
+  private static final byte OPERATOR = 1;
+  private static final byte CALL = 2;
+
+  private static final Specialization[] specializations = Specialization.values();
+
+  private record Position(int line, int column) {
+    Position(Token token) {
+      this(token.line(), token.column());
+    }
+  }
+
+  private final Map<Position, Integer> functions = new HashMap<>();
+  private final Map<Position, Specialization> operators = new HashMap<>();
+  private final Set<Position> calls = new HashSet<>();
+
+  // Only a profile that's going to be written is added to
+  private final boolean recording;
+
+  Profile(boolean recording) {
+    this.recording = recording;
+  }
+
+  static Path pathFor(String path) {
+    if (path.endsWith(".lox")) {
+      return Path.of(path + "p");
+    }
+
+    return Path.of(path + ".loxp");
+  }
+
+  boolean isRecording() {
+    return recording;
+  }
+
+  void count(Stmt.Function declaration, int count) {
+    if (recording) {
+      functions.merge(new Position(declaration.identifier()), count, (a, b) -> (int)Math.min((long)a + b, Integer.MAX_VALUE));
+    }
+  }
+
+  void specialized(Token operator, Specialization specialization) {
+    if (recording) {
+      operators.put(new Position(operator), specialization);
+    }
+  }
+
+  void missed(Token paren) {
+    if (recording) {
+      calls.add(new Position(paren));
+    }
+  }
+
+  int count(Stmt.Function declaration) {
+    return functions.getOrDefault(new Position(declaration.identifier()), 0);
+  }
+
+  // Null if the operator never ran
+  Specialization specialization(Token operator) {
+    return operators.get(new Position(operator));
+  }
+
+  boolean wasMissed(Token paren) {
+    return calls.contains(new Position(paren));
+  }
+
+  // Adds what's in the file to the profile, ignoring it if it isn't one
+  void read(Path path) throws IOException {
+    if (!Files.isRegularFile(path)) {
+      return;
+    }
+
+    var in = ByteBuffer.wrap(Files.readAllBytes(path));
+    try {
+      if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+        return;
+      }
+
+      var functions = new HashMap<Position, Integer>();
+      var operators = new HashMap<Position, Specialization>();
+      var calls = new HashSet<Position>();
+
+      var count = in.getInt();
+      for (var i = 0; i < count; i++) {
+        var kind = in.get();
+        var position = new Position(in.getInt(), in.getInt());
+        var value = in.getInt();
+
+        switch (kind) {
+          case FUNCTION -> functions.put(position, value);
+          case OPERATOR -> {
+            if (value < 0 || value >= specializations.length) {
+              return;
+            }
+
+            operators.put(position, specializations[value]);
+          }
+          case CALL -> calls.add(position);
+          default -> {
+            return;
+          }
+        }
+      }
+
+      this.functions.putAll(functions);
+      this.operators.putAll(operators);
+      this.calls.addAll(calls);
+    } catch (BufferUnderflowException error) {
+      // Truncated, the same as one that isn't a profile
+    }
+  }
+
+  // Written to a temporary file first and moved into place, the same as a
+  // ProgramCache. A profile that can't be written is left out.
+  void write(Path path) {
+    var count = functions.size() + operators.size() + calls.size();
+    var out = ByteBuffer.allocate(Integer.BYTES * 3 + count * (1 + Integer.BYTES * 3));
+    out.putInt(MAGIC);
+    out.putInt(VERSION);
+    out.putInt(count);
+
+    for (var function : functions.entrySet()) {
+      write(out, FUNCTION, function.getKey(), function.getValue());
+    }
+
+    for (var operator : operators.entrySet()) {
+      write(out, OPERATOR, operator.getKey(), operator.getValue().ordinal());
+    }
+
+    for (var call : calls) {
+      write(out, CALL, call, 0);
+    }
+
+    var temporary = path.resolveSibling(String.format("%s.%d.tmp", path.getFileName(), ProcessHandle.current().pid()));
+    try {
+      Files.write(temporary, out.array());
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException error) {
+      try {
+        Files.deleteIfExists(temporary);
+      } catch (IOException ignored) {}
+    }
+  }
+
+  private static void write(ByteBuffer out, byte kind, Position position, int value) {
+    out.put(kind);
+    out.putInt(position.line());
+    out.putInt(position.column());
+    out.putInt(value);
+  }
+}
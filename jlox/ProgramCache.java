@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Compiled programs cached next to their source as a .loxc file, so running
+// an unchanged script again skips scanning, parsing and resolving it. The file
+// is a header followed by the resolved program as an Arena:
+//
+//   magic    4 bytes, "LOXC"
+//   version  4 bytes, VERSION
+//   source   32 bytes, SHA-256 of the source it was compiled from
+//   crc      8 bytes, CRC-32 of everything after it
+//   arena    see Arena.write
+//
+// A cache that is missing, for a different version or source, or corrupt is
+// ignored and the program is compiled from source as usual.
+class ProgramCache {
+  private static final int MAGIC = 0x4C4F5843;
+
+  // Bump whenever the arena layout, Arena.Kind, Local.Kind or TokenType changes
+  private static final int VERSION = 4;
+
+  private static final int HASH_SIZE = 32;
+  private static final int HEADER_SIZE = 4 + 4 + HASH_SIZE + 8;
+
+  static Path pathFor(String path) {
+    if (path.endsWith(".lox")) {
+      return Path.of(path + "c");
+    }
+
+    return Path.of(path + ".loxc");
+  }
+
+  // The cached program for the source, or null if there isn't a valid one
+  static Arena load(Path cache, ByteBuffer source) throws IOException {
+    if (!Files.isRegularFile(cache)) {
+      return null;
+    }
+
+    try (var channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+        return null;
+      }
+
+      var in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+        return null;
+      }
+
+      var hash = new byte[HASH_SIZE];
+      in.get(hash);
+      if (!Arrays.equals(hash, hash(source))) {
+        return null;
+      }
+
+      var crc = in.getLong();
+      var checksum = new CRC32();
+      checksum.update(in.slice());
+      if (checksum.getValue() != crc) {
+        return null;
+      }
+
+      return Arena.read(in);
+    } catch (IllegalArgumentException | IndexOutOfBoundsException error) {
+      return null;
+    }
+  }
+
+  // Written to a temporary file first and moved into place, so a run that
+  // reads it at the same time never sees half of it. A cache that can't be
+  // written is just left out.
+  static void store(Path cache, ByteBuffer source, Arena program) {
+    var arena = program.write();
+
+    var checksum = new CRC32();
+    checksum.update(arena.duplicate());
+
+    var header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.put(hash(source));
+    header.putLong(checksum.getValue());
+
+    var temporary = cache.resolveSibling(String.format("%s.%d.tmp", cache.getFileName(), ProcessHandle.current().pid()));
+    try {
+      try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        var buffers = new ByteBuffer[]{ header.flip(), arena };
+        while (arena.hasRemaining()) {
+          channel.write(buffers);
+        }
+      }
+
+      Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException error) {
+      try {
+        Files.deleteIfExists(temporary);
+      } catch (IOException ignored) {}
+    }
+  }
+
+  private static byte[] hash(ByteBuffer source) {
+    try {
+      var digest = MessageDigest.getInstance("SHA-256");
+      digest.update(source.duplicate().rewind());
+
+      return digest.digest();
+    } catch (NoSuchAlgorithmException error) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(error);
+    }
+  }
+}
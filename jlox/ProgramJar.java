@@ -0,0 +1,94 @@
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+// Programs compiled ahead of time with --compile, written next to their source
+// as a runnable jar. The program is classes of its own in the jar, see
+// JvmCompiler, along with the classes of the runtime it calls into, copied from
+// wherever this class was loaded from. Running the jar doesn't scan, parse or
+// resolve anything.
+class ProgramJar {
+  private static final String CLASS_NAME = "LoxProgram";
+
+  static Path pathFor(String path) {
+    if (path.endsWith(".lox")) {
+      return Path.of(path.substring(0, path.length() - ".lox".length()) + ".jar");
+    }
+
+    return Path.of(path + ".jar");
+  }
+
+  // Written to a temporary file first and moved into place, the same as a
+  // ProgramCache
+  static void store(Path jar, List<Stmt> stmts, boolean dualNumbers) throws IOException {
+    var classes = JvmCompiler.compileProgram(CLASS_NAME, stmts, dualNumbers);
+
+    var manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, CLASS_NAME);
+
+    var temporary = jar.resolveSibling(String.format("%s.%d.tmp", jar.getFileName(), ProcessHandle.current().pid()));
+    try {
+      try (var out = new JarOutputStream(Files.newOutputStream(temporary), manifest)) {
+        for (var entry : classes.entrySet()) {
+          out.putNextEntry(new JarEntry(entry.getKey() + ".class"));
+          out.write(entry.getValue());
+          out.closeEntry();
+        }
+
+        copyRuntime(out);
+      }
+
+      Files.move(temporary, jar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  // Every class next to this one, from either a directory or a jar
+  private static void copyRuntime(JarOutputStream out) throws IOException {
+    Path location;
+    try {
+      location = Path.of(ProgramJar.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    } catch (URISyntaxException error) {
+      throw new IOException(error);
+    }
+
+    if (Files.isDirectory(location)) {
+      try (var files = Files.list(location)) {
+        for (var file : (Iterable<Path>)files::iterator) {
+          var name = file.getFileName().toString();
+          if (name.endsWith(".class") && !name.startsWith(CLASS_NAME)) {
+            out.putNextEntry(new JarEntry(name));
+            Files.copy(file, out);
+            out.closeEntry();
+          }
+        }
+      }
+
+      return;
+    }
+
+    try (var jar = new JarFile(location.toFile())) {
+      for (var entry : (Iterable<JarEntry>)jar.stream()::iterator) {
+        var name = entry.getName();
+        if (name.endsWith(".class") && !name.contains("/") && !name.startsWith(CLASS_NAME)) {
+          out.putNextEntry(new JarEntry(name));
+          try (var in = jar.getInputStream(entry)) {
+            in.transferTo(out);
+          }
+
+          out.closeEntry();
+        }
+      }
+    }
+  }
+}
@@ -1,42 +1,64 @@
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Stack;
 import java.util.Map;
 import java.util.HashMap;
 
-enum LoopType {
-  NONE,
-  WHILE,
-  FOR,
-}
-
-enum FunctionType {
-  NONE,
-  FUNCTION,
-  INITIALIZER,
-  METHOD,
-}
-
-enum ClassType {
-  NONE,
-  CLASS,
-  SUBCLASS,
-}
-
 // This is used to restrict variable references to variables that where
 // previously declared in the current scope or parent scopes, previously
 // meaning a variable reference on line 50 should only be able to access
 // variables declared on lines 1-49 in blocks that are still in scope.
+//
+// It also lays out each function's frame. Every local is given the next free
+// slot in the frame of the function it's declared in, and the slot is free
+// again once its block ends. A local that a nested function refers to is
+// captured: it's kept in a Cell that the nested function's closure shares,
+// reached through one of the closure's upvalues, the same way as in clox.
 class Resolver {
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  private static class Variable {
+    final int slot;
+    boolean defined = false;
+    boolean captured = false;
+
+    // Every reference to it from the function it was declared in, which have
+    // to go through its cell if it ends up captured.
+    final List<Local> locals = new ArrayList<>();
+
+    Variable(int slot) {
+      this.slot = slot;
+    }
+  }
+
+  // A function being resolved, or the top level outside of any function
+  private static class FunctionScope {
+    final FunctionScope enclosing;
+    final Stack<Map<String, Variable>> scopes = new Stack<>();
+    final List<Integer> captures = new ArrayList<>();
+    int slots = 0;
+    int size = 0;
+
+    FunctionScope(FunctionScope enclosing) {
+      this.enclosing = enclosing;
+    }
+
+    Variable find(String identifier) {
+      // Inner most scope to outer most
+      for (var i = scopes.size() - 1; i >= 0; i--) {
+        var variable = scopes.get(i).get(identifier);
+        if (variable != null) {
+          return variable;
+        }
+      }
+
+      return null;
+    }
+  }
+
+  private FunctionScope function = new FunctionScope(null);
   private LoopType currentLoop = LoopType.NONE;
   private FunctionType currentFunction = FunctionType.NONE;
   private ClassType currentClass = ClassType.NONE;
 
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
-  }
-
   void resolve(List<Stmt> stmts) {
     for (var stmt : stmts) {
       resolve(stmt);
@@ -78,19 +100,21 @@ class Resolver {
   }
 
   private void resolveVar(Stmt.Var stmt) {
-    declare(stmt.identifier());
+    declare(stmt.identifier(), stmt.local());
 
     if (stmt.value() != null) {
       resolve(stmt.value());
     }
 
-    define(stmt.identifier());
+    define(stmt.identifier().lexeme());
   }
 
   private void resolveBlock(Stmt.Block stmt) {
     beginScope();
     resolve(stmt.stmts());
     endScope();
+
+    stmt.scope().size = function.size;
   }
 
   private void resolveIf(Stmt.If stmt) {
@@ -130,13 +154,14 @@ class Resolver {
     resolve(stmt.stmt());
 
     endScope();
+    stmt.scope().size = function.size;
     currentLoop = enclosingLoop;
   }
 
   private void resolveFunction(Stmt.Function stmt) {
     // Define immediately after declaring to allow recursive references to the function
-    declare(stmt.identifier());
-    define(stmt.identifier());
+    declare(stmt.identifier(), stmt.local());
+    define(stmt.identifier().lexeme());
 
     resolveFunctionLiteral(stmt, FunctionType.FUNCTION);
   }
@@ -169,8 +194,8 @@ class Resolver {
 
   private void resolveClass(Stmt.Class stmt) {
     // Define immediately after declaring to allow recursive references to the class
-    declare(stmt.identifier());
-    define(stmt.identifier());
+    declare(stmt.identifier(), stmt.local());
+    define(stmt.identifier().lexeme());
 
     var enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
@@ -183,14 +208,8 @@ class Resolver {
       currentClass = ClassType.SUBCLASS;
 
       resolve(stmt.superclass());
-
-      beginScope();
-      scopes.peek().put("super", true);
     }
 
-    beginScope();
-    scopes.peek().put("this", true);
-
     for (var method : stmt.methods()) {
       var type = FunctionType.METHOD;
       if (method.identifier().lexeme().equals("init")) {
@@ -200,12 +219,6 @@ class Resolver {
       resolveFunctionLiteral(method, type);
     }
 
-    endScope();
-
-    if (stmt.superclass() != null) {
-      endScope();
-    }
-
     currentClass = enclosingClass;
   }
 
@@ -220,16 +233,17 @@ class Resolver {
   }
 
   private void resolveVar(Expr.Var expr) {
-    if (!scopes.isEmpty() && scopes.peek().get(expr.identifier().lexeme()) == Boolean.FALSE) {
+    var variable = function.scopes.isEmpty() ? null : function.scopes.peek().get(expr.identifier().lexeme());
+    if (variable != null && !variable.defined) {
       Lox.error(expr.identifier(), "Cannot refer to variable in its own initializer.");
     }
 
-    resolveLocal(expr, expr.identifier());
+    resolveLocal(expr.local(), expr.identifier().lexeme());
   }
 
   private void resolveAssign(Expr.Assign expr) {
     resolve(expr.value());
-    resolveLocal(expr, expr.identifier());
+    resolveLocal(expr.local(), expr.identifier().lexeme());
   }
 
   private void resolveCall(Expr.Call expr) {
@@ -250,7 +264,7 @@ class Resolver {
       Lox.error(expr.keyword(), "Can't use 'this' outside of a class.");
     }
 
-    resolveLocal(expr, expr.keyword());
+    resolveLocal(expr.local(), "this");
   }
 
   private void resolveSuper(Expr.Super expr) {
@@ -260,63 +274,179 @@ class Resolver {
       Lox.error(expr.keyword(), "Can't use 'super' in a class with no super class.");
     }
 
-    resolveLocal(expr, expr.keyword());
+    resolveLocal(expr.local(), "super");
+    resolveLocal(expr.receiver(), "this");
+  }
+
+  // Resolves a pre-parsed body once it has been parsed. Only top level
+  // functions and methods are pre-parsed, so there's nothing around them for
+  // them to capture other than the superclass.
+  void resolveBody(Stmt.Function stmt, List<Stmt> stmts, FunctionType type, ClassType classType) {
+    currentClass = classType;
+    resolveFunctionLiteral(stmt, stmts, type);
   }
 
   private void resolveFunctionLiteral(Stmt.Function stmt, FunctionType type) {
+    if (!stmt.body().isParsed()) {
+      stmt.body().defer(type, currentClass);
+      return;
+    }
+
+    resolveFunctionLiteral(stmt, stmt.body().stmts(), type);
+  }
+
+  private void resolveFunctionLiteral(Stmt.Function stmt, List<Stmt> stmts, FunctionType type) {
     var enclosingFunction = currentFunction;
     currentFunction = type;
+    function = new FunctionScope(function);
     beginScope();
 
-    for (var param : stmt.params()) {
-      declare(param);
-      define(param);
+    // Methods have their receiver in the first slot
+    var params = new ArrayList<Variable>();
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+      if (currentClass == ClassType.SUBCLASS) {
+        function.captures.add(Frame.SUPER);
+      }
+
+      params.add(declare("this"));
+      define("this");
     }
 
-    resolve(stmt.stmts());
+    for (var param : stmt.params()) {
+      params.add(declare(param));
+      define(param.lexeme());
+    }
 
+    resolve(stmts);
     endScope();
+
+    var frame = stmt.frame();
+    frame.size = function.size;
+    frame.cells = new boolean[params.size()];
+    for (var i = 0; i < params.size(); i++) {
+      frame.cells[i] = params.get(i).captured;
+    }
+    frame.captures = function.captures.stream().mapToInt(Integer::intValue).toArray();
+
+    function = function.enclosing;
     currentFunction = enclosingFunction;
   }
 
-  private void resolveLocal(Expr expr, Token identifier) {
-    // Inner most scope to outer most
-    for (var i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(identifier.lexeme())) {
-        // How many scopes away from the expression we found the declaration
-        // e.g. in the same scope then 0, in the parent scope then 1
-        interpreter.resolve(expr, scopes.size() - 1 - i);
-        return;
-      }
+  private void resolveLocal(Local local, String identifier) {
+    var variable = function.find(identifier);
+    if (variable != null) {
+      local.kind = Local.Kind.FRAME;
+      local.index = variable.slot;
+      variable.locals.add(local);
+      return;
+    }
+
+    var upvalue = resolveUpvalue(function, identifier);
+    if (upvalue != -1) {
+      local.kind = Local.Kind.UPVALUE;
+      local.index = upvalue;
+      return;
+    }
+
+    local.kind = Local.Kind.GLOBAL;
+  }
+
+  // Index of the function's upvalue for a local of an enclosing function,
+  // adding it and the upvalues it's captured through along the way. Returns -1
+  // if there's no such local and so the variable is global.
+  private int resolveUpvalue(FunctionScope function, String identifier) {
+    if (identifier.equals("super") && function.captures.indexOf(Frame.SUPER) == 0) {
+      return 0;
+    }
+
+    if (function.enclosing == null) {
+      return -1;
     }
+
+    var variable = function.enclosing.find(identifier);
+    if (variable != null) {
+      variable.captured = true;
+      return capture(function, Frame.local(variable.slot));
+    }
+
+    var upvalue = resolveUpvalue(function.enclosing, identifier);
+    if (upvalue != -1) {
+      return capture(function, Frame.upvalue(upvalue));
+    }
+
+    return -1;
+  }
+
+  private int capture(FunctionScope function, int capture) {
+    var index = function.captures.indexOf(capture);
+    if (index == -1) {
+      index = function.captures.size();
+      function.captures.add(capture);
+    }
+
+    return index;
   }
 
   private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+    function.scopes.push(new HashMap<String, Variable>());
   }
 
+  // The scope's slots are free again, and references to its variables that
+  // were captured are now known to have to go through their cells.
   private void endScope() {
-    scopes.pop();
+    var scope = function.scopes.pop();
+    function.slots -= scope.size();
+
+    for (var variable : scope.values()) {
+      if (variable.captured) {
+        for (var local : variable.locals) {
+          local.kind = Local.Kind.CELL;
+        }
+      }
+    }
   }
 
-  private void declare(Token identifier) {
-    if (scopes.isEmpty()) {
+  // Variables declared outside of any scope are global and stay that way
+  private void declare(Token identifier, Local local) {
+    var variable = declare(identifier);
+    if (variable == null) {
       return;
     }
 
-    var scope = scopes.peek();
-    if (scope.containsKey(identifier.lexeme())) {
+    local.kind = Local.Kind.FRAME;
+    local.index = variable.slot;
+    variable.locals.add(local);
+  }
+
+  private Variable declare(Token identifier) {
+    if (!function.scopes.isEmpty() && function.scopes.peek().containsKey(identifier.lexeme())) {
       Lox.error(identifier, "A variable with this name already exists in this scope.");
     }
 
-    scope.put(identifier.lexeme(), false);
+    return declare(identifier.lexeme());
+  }
+
+  private Variable declare(String identifier) {
+    if (function.scopes.isEmpty()) {
+      return null;
+    }
+
+    var scope = function.scopes.peek();
+    var variable = scope.get(identifier);
+    if (variable == null) {
+      variable = new Variable(function.slots++);
+      function.size = Math.max(function.size, function.slots);
+      scope.put(identifier, variable);
+    }
+
+    return variable;
   }
 
-  private void define(Token identifier) {
-    if (scopes.isEmpty()) {
+  private void define(String identifier) {
+    if (function.scopes.isEmpty()) {
       return;
     }
 
-    scopes.peek().put(identifier.lexeme(), true);
+    function.scopes.peek().get(identifier).defined = true;
   }
 }
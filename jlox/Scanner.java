@@ -1,126 +1,177 @@
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Map;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 class Scanner {
-  private static final Map<String, TokenType> keywords = Map.ofEntries(
-    Map.entry("nil", TokenType.NIL),
-    Map.entry("true", TokenType.TRUE),
-    Map.entry("false", TokenType.FALSE),
-    Map.entry("if", TokenType.IF),
-    Map.entry("else", TokenType.ELSE),
-    Map.entry("and", TokenType.AND),
-    Map.entry("or", TokenType.OR),
-    Map.entry("for", TokenType.FOR),
-    Map.entry("while", TokenType.WHILE),
-    Map.entry("fun", TokenType.FUN),
-    Map.entry("return", TokenType.RETURN),
-    Map.entry("break", TokenType.BREAK),
-    Map.entry("continue", TokenType.CONTINUE),
-    Map.entry("var", TokenType.VAR),
-    Map.entry("class", TokenType.CLASS),
-    Map.entry("super", TokenType.SUPER),
-    Map.entry("this", TokenType.THIS)
-  );
-
-  private final String source;
+  // Used to test 8 bytes of the source at once, see matches
+  private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+  private static final long NEWLINES = broadcast('\n');
+  private static final long QUOTES = broadcast('"');
+  private static final long SPACES = broadcast(' ');
+  private static final long TABS = broadcast('\t');
+  private static final long CARRIAGE_RETURNS = broadcast('\r');
+
+  // Source is kept as UTF-8 bytes so large files can be scanned straight out of
+  // a memory mapped buffer, tokens only record where their lexeme is and it's
+  // decoded when the parser needs it.
+  private ByteBuffer source;
+  private int length;
+  private final boolean bigEndian;
+  private final boolean wordAtATime;
+  private final TokenBuffer tokens;
   private int start = 0;
   private int current = 0;
   private int line = 1;
 
+  // Where the current line starts in the source, and the column of the token
+  // being scanned. Chunks of a larger source start at the start of a line.
+  private int lineStart = 0;
+  private int column = 1;
+
+  private TokenType previous = null;
+  private boolean scannedEOF = false;
+
+  // Only set when streaming, source is then a window over the input that's
+  // refilled as the scanner reaches the end of it.
+  private InputStream input = null;
+
   Scanner(String source) {
+    this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  Scanner(ByteBuffer source) {
+    this(source, true);
+  }
+
+  // Comments, strings and indentation are skipped a word at a time unless
+  // wordAtATime is false, then every byte goes through the scalar loops.
+  Scanner(ByteBuffer source, boolean wordAtATime) {
     this.source = source;
+    this.length = source.limit();
+    this.bigEndian = source.order() == ByteOrder.BIG_ENDIAN;
+    this.wordAtATime = wordAtATime;
+    this.tokens = new TokenBuffer(source);
+  }
+
+  // Used for a chunk of a larger source, line is where the chunk starts
+  Scanner(ByteBuffer source, int line) {
+    this(source, true);
+    this.line = line;
+  }
+
+  Scanner(InputStream input) {
+    this(ByteBuffer.allocate(64 * 1024).limit(0));
+    this.input = input;
+  }
+
+  TokenBuffer tokens() {
+    return tokens;
   }
 
-  List<Token> scanTokens() {
-    var tokens = new ArrayList<Token>();
+  TokenBuffer scanTokens() {
+    while (scanNext()) {}
+
+    return tokens;
+  }
+
+  // Scans until at least one more token has been added to the buffer, this
+  // lets the parser pull tokens as it needs them. Returns false once EOF has
+  // been added.
+  boolean scanNext() {
+    if (scannedEOF) {
+      return false;
+    }
+
+    var size = tokens.size();
+    while (tokens.size() == size) {
+      if (isAtEnd()) {
+        if (previous != null && insertSemicolon(previous)) {
+          addToken(TokenType.SEMICOLON);
+        }
+
+        tokens.add(TokenType.EOF, current, 0, line, current - lineStart + 1);
+        scannedEOF = true;
+        break;
+      }
 
-    while(!isAtEnd()) {
       start = current;
+      column = start - lineStart + 1;
 
       var startLine = line;
-      var token = scanToken();
-      if (token == null) {
-        if (line != startLine && !tokens.isEmpty()) {
-          if (insertSemicolon(tokens.getLast().type())) {
-            tokens.add(createToken(TokenType.SEMICOLON));
+      var type = scanToken();
+      if (type == null) {
+        if (line != startLine && previous != null) {
+          if (insertSemicolon(previous)) {
+            addToken(TokenType.SEMICOLON);
           }
         }
 
         continue;
       }
 
-      tokens.add(token);
-    }
-
-    if (!tokens.isEmpty()) {
-      if (insertSemicolon(tokens.getLast().type())) {
-        tokens.add(createToken(TokenType.SEMICOLON));
-      }
+      addToken(type);
     }
 
-    tokens.add(new Token(TokenType.EOF, "", null, line));
-    return tokens;
+    return true;
   }
 
-  private Token scanToken() {
+  private TokenType scanToken() {
     var c = advance();
 
     return switch (c) {
-      case '(' -> createToken(TokenType.LEFT_PAREN);
-      case ')' -> createToken(TokenType.RIGHT_PAREN);
-      case '{' -> createToken(TokenType.LEFT_BRACE);
-      case '}' -> createToken(TokenType.RIGHT_BRACE);
-      case ',' -> createToken(TokenType.COMMA);
-      case '.' -> createToken(TokenType.DOT);
-      case ';' -> createToken(TokenType.SEMICOLON);
-      case '+' -> createToken(TokenType.PLUS);
-      case '-' -> createToken(TokenType.MINUS);
-      case '*' -> createToken(TokenType.STAR);
-      case '%' -> createToken(TokenType.PERCENT);
+      case '"' -> string();
       case '/' -> {
         if (match('/')) {
-          while (peek() != '\n' && !isAtEnd()) {
-            advance();
-          }
-
+          skipComment();
           yield null;
-        } else {
-          yield createToken(TokenType.SLASH);
         }
+
+        yield operator(c);
       }
-      case '!' -> createToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
-      case '=' -> createToken(match('=') ? TokenType.EQUAL_EQUAL: TokenType.EQUAL);
-      case '>' -> createToken(match('=') ? TokenType.GREATER_EQUAL: TokenType.GREATER);
-      case '<' -> createToken(match('=') ? TokenType.LESS_EQUAL: TokenType.LESS);
-      case '"' -> string();
       default -> {
         if (isDigit(c)) {
           yield number();
         } else if (isAlpha(c)) {
-          yield identifier();
-        } else {
+          yield identifier(c);
+        } else if (isWhitespace(c)) {
           if (c == '\n') {
             line++;
+            lineStart = current;
+          } else {
+            // Newlines are left to be scanned one at a time so semicolons are
+            // still inserted at the first one.
+            skipBlanks();
           }
 
-          if (!isWhitespace(c)) {
-            Lox.error(line, String.format("Unexpected character ''%c'.", c));
+          yield null;
+        } else {
+          var type = operator(c);
+          if (type == null) {
+            Lox.error(line, String.format("Unexpected character ''%s'.", unexpectedCharacter(c)));
           }
 
-          yield null;
+          yield type;
         }
       }
     };
   }
 
-  private Token string() {
+  private TokenType string() {
+    skipStringContents();
+
     while (peek() != '"' && !isAtEnd()) {
       if (peek() == '\n') {
         line++;
+        lineStart = current + 1;
       }
 
       advance();
+      skipStringContents();
     }
 
     if (isAtEnd()) {
@@ -129,12 +180,10 @@ class Scanner {
     }
 
     advance(); // Consume closing quote
-
-    var value = source.substring(start + 1, current - 1); // Omit surrounding quotes
-    return createToken(TokenType.STRING, value);
+    return TokenType.STRING;
   }
 
-  private Token number() {
+  private TokenType number() {
     while (isDigit(peek())) {
       advance();
     }
@@ -147,22 +196,128 @@ class Scanner {
       }
     }
 
-    var value = Double.parseDouble(source.substring(start, current));
-    return createToken(TokenType.NUMBER, value);
+    return TokenType.NUMBER;
   }
 
-  private Token identifier() {
+  // Walks the keyword states of the lexer table alongside the identifier, if
+  // the walk ends on an accepting state the identifier is that keyword.
+  private TokenType identifier(char c) {
+    var state = LexerTable.next(LexerTable.START, c);
+
     while (isAlphaNumeric(peek())) {
-      advance();
+      state = LexerTable.next(state, advance());
     }
 
-    var value = source.substring(start, current);
-    var type = keywords.get(value);
+    var type = LexerTable.accept(state);
     if (type == null) {
       type = TokenType.IDENTIFIER;
     }
 
-    return createToken(type);
+    return type;
+  }
+
+  // Longest operator starting with c, backing up to the last accepting state
+  // if the walk goes further than a complete operator.
+  private TokenType operator(char c) {
+    var state = LexerTable.next(LexerTable.START, c);
+    var type = LexerTable.accept(state);
+    var unmatched = 0; // Not an offset since streaming can move the source
+
+    while (state != LexerTable.DEAD && !isAtEnd()) {
+      state = LexerTable.next(state, peek());
+      if (state == LexerTable.DEAD) {
+        break;
+      }
+
+      advance();
+      unmatched++;
+
+      if (LexerTable.accept(state) != null) {
+        type = LexerTable.accept(state);
+        unmatched = 0;
+      }
+    }
+
+    current -= unmatched;
+    return type;
+  }
+
+  private void skipComment() {
+    if (wordAtATime) {
+      while (current + Long.BYTES <= length) {
+        var found = matches(source.getLong(current), NEWLINES);
+        if (found != 0) {
+          current += firstMatch(found);
+          return;
+        }
+
+        current += Long.BYTES;
+      }
+    }
+
+    while (peek() != '\n' && !isAtEnd()) {
+      advance();
+    }
+  }
+
+  // Skips to the next quote or newline, the string loop handles both along with
+  // whatever is left at the end of the source.
+  private void skipStringContents() {
+    if (!wordAtATime) {
+      return;
+    }
+
+    while (current + Long.BYTES <= length) {
+      var word = source.getLong(current);
+      var found = matches(word, QUOTES) | matches(word, NEWLINES);
+      if (found != 0) {
+        current += firstMatch(found);
+        return;
+      }
+
+      current += Long.BYTES;
+    }
+  }
+
+  private void skipBlanks() {
+    if (wordAtATime) {
+      while (current + Long.BYTES <= length) {
+        var word = source.getLong(current);
+        var blanks = matches(word, SPACES) | matches(word, TABS) | matches(word, CARRIAGE_RETURNS);
+        var found = ~blanks & HIGH_BITS;
+        if (found != 0) {
+          current += firstMatch(found);
+          return;
+        }
+
+        current += Long.BYTES;
+      }
+    }
+
+    while (peek() == ' ' || peek() == '\t' || peek() == '\r') {
+      advance();
+    }
+  }
+
+  // Sets the high bit of each byte in word that's equal to the same byte in
+  // pattern. Every byte is worked out on its own so unlike the usual
+  // (x - 0x01..) & ~x trick there are no false positives from borrows.
+  private static long matches(long word, long pattern) {
+    var x = word ^ pattern;
+    return ~(((x & LOW_BITS) + LOW_BITS) | x) & HIGH_BITS;
+  }
+
+  private static long broadcast(char c) {
+    return (c & 0xFFL) * 0x0101010101010101L;
+  }
+
+  // Offset of the first byte in source order flagged by matches
+  private int firstMatch(long found) {
+    if (bigEndian) {
+      return Long.numberOfLeadingZeros(found) >>> 3;
+    }
+
+    return Long.numberOfTrailingZeros(found) >>> 3;
   }
 
   private boolean isWhitespace(char c) {
@@ -183,8 +338,32 @@ class Scanner {
     return isDigit(c) || isAlpha(c);
   }
 
+  // Non ASCII characters are only valid inside of strings and comments, so
+  // outside of them consume the rest of the UTF-8 sequence and report it as a
+  // single character.
+  private String unexpectedCharacter(char c) {
+    if (c < 0x80) {
+      return String.valueOf(c);
+    }
+
+    var continuation = 0;
+    if ((c & 0xE0) == 0xC0) {
+      continuation = 1;
+    } else if ((c & 0xF0) == 0xE0) {
+      continuation = 2;
+    } else if ((c & 0xF8) == 0xF0) {
+      continuation = 3;
+    }
+
+    for (var i = 0; i < continuation && (peek() & 0xC0) == 0x80; i++) {
+      advance();
+    }
+
+    return decode(start, current);
+  }
+
   private char advance() {
-    return source.charAt(current++);
+    return (char)(source.get(current++) & 0xFF);
   }
 
   private boolean match(char expected) {
@@ -201,28 +380,71 @@ class Scanner {
       return '\0';
     }
 
-    return source.charAt(current);
+    return (char)(source.get(current) & 0xFF);
   }
 
   private char peekNext() {
-    if (current + 1 >= source.length()) {
+    if (current + 1 >= length && !(fill() && current + 1 < length)) {
       return '\0';
     }
 
-    return source.charAt(current + 1);
+    return (char)(source.get(current + 1) & 0xFF);
   }
 
   private boolean isAtEnd() {
-    return current >= source.length();
+    return current >= length && !fill();
   }
 
-  private Token createToken(TokenType type) {
-    return createToken(type, null);
+  // Reads more of the input into the source window when streaming. Bytes
+  // before the oldest token still in the buffer are no longer needed, so
+  // they're dropped to make room before the window is grown.
+  private boolean fill() {
+    if (input == null) {
+      return false;
+    }
+
+    var keep = tokens.isEmpty() ? start : Math.min(start, tokens.start(0));
+    var bytes = source.array();
+    if (keep > 0) {
+      System.arraycopy(bytes, keep, bytes, 0, length - keep);
+      length -= keep;
+      start -= keep;
+      current -= keep;
+      lineStart -= keep;
+      tokens.rebase(source, keep);
+    }
+
+    if (length == bytes.length) {
+      source = ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length * 2));
+      bytes = source.array();
+      tokens.rebase(source, 0);
+    }
+
+    try {
+      var read = input.read(bytes, length, bytes.length - length);
+      if (read < 0) {
+        input = null;
+        return false;
+      }
+
+      length += read;
+      source.limit(length);
+      return true;
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
   }
 
-  private Token createToken(TokenType type, Object literal) {
-    var text = source.substring(start, current);
-    return new Token(type, text, literal, line);
+  private void addToken(TokenType type) {
+    tokens.add(type, start, current - start, line, column);
+    previous = type;
+  }
+
+  private String decode(int from, int to) {
+    var bytes = new byte[to - from];
+    source.get(from, bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
   }
 
   private boolean insertSemicolon(TokenType type) {
@@ -0,0 +1,6 @@
+// How many frame slots are in use by the end of a block or for loop, set by
+// the resolver. Inside a function the frame is already that big, outside of
+// one the interpreter grows the top level frame to fit.
+class Scope {
+  int size = 0;
+}
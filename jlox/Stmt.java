@@ -2,14 +2,42 @@ import java.util.List;
 
 interface Stmt {
   record ExprStmt(Expr expr) implements Stmt {}
-  record Var(Token identifier, Expr value) implements Stmt {}
-  record Block(List<Stmt> stmts) implements Stmt {}
   record If(Expr condition, Stmt ifStmt, Stmt elseStmt) implements Stmt {}
   record While(Expr condition, Stmt stmt) implements Stmt {}
-  record For(Stmt initializer, Expr condition, Expr increment, Stmt stmt) implements Stmt {}
-  record Function(Token identifier, List<Token> params, List<Stmt> stmts) implements Stmt {}
   record Return(Token keyword, Expr expr) implements Stmt {}
   record Break(Token keyword) implements Stmt {}
   record Continue(Token keyword) implements Stmt {}
-  record Class(Token identifier, Expr.Var superclass, List<Stmt.Function> methods) implements Stmt {}
+
+  // Statements with a scope of their own carry how big the frame has to be
+  record Block(List<Stmt> stmts, Scope scope) implements Stmt {
+    Block(List<Stmt> stmts) {
+      this(stmts, new Scope());
+    }
+  }
+
+  // The initializer's variable is in a scope around the whole loop
+  record For(Stmt initializer, Expr condition, Expr increment, Stmt stmt, Scope scope) implements Stmt {
+    For(Stmt initializer, Expr condition, Expr increment, Stmt stmt) {
+      this(initializer, condition, increment, stmt, new Scope());
+    }
+  }
+
+  // Declarations carry where the resolver put the variable they declare
+  record Var(Token identifier, Expr value, Local local) implements Stmt {
+    Var(Token identifier, Expr value) {
+      this(identifier, value, new Local());
+    }
+  }
+
+  record Function(Token identifier, List<Token> params, FunctionBody body, Local local, Frame frame) implements Stmt {
+    Function(Token identifier, List<Token> params, FunctionBody body) {
+      this(identifier, params, body, new Local(), new Frame());
+    }
+  }
+
+  record Class(Token identifier, Expr.Var superclass, List<Stmt.Function> methods, Local local) implements Stmt {
+    Class(Token identifier, Expr.Var superclass, List<Stmt.Function> methods) {
+      this(identifier, superclass, methods, new Local());
+    }
+  }
 }
@@ -1 +1,2 @@
-record Token(TokenType type, String lexeme, Object literal, int line) {}
+// The column is the byte offset of the token in its line, counting from 1
+record Token(TokenType type, String lexeme, Object literal, int line, int column) {}
@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Tokens are stored as parallel arrays of primitives rather than a list of
+// Token records, most tokens are punctuation or keywords that the parser only
+// ever checks the type of. A Token along with its lexeme and literal is only
+// created when the parser keeps it in the AST or reports an error at it.
+class TokenBuffer {
+  private static final TokenType[] types = TokenType.values();
+
+  private ByteBuffer source;
+  private byte[] type;
+  private int[] start;
+  private int[] length;
+  private int[] line;
+  private int[] column;
+  private int size = 0;
+
+  TokenBuffer(ByteBuffer source) {
+    this.source = source;
+
+    var capacity = 256;
+    this.type = new byte[capacity];
+    this.start = new int[capacity];
+    this.length = new int[capacity];
+    this.line = new int[capacity];
+    this.column = new int[capacity];
+  }
+
+  void add(TokenType type, int start, int length, int line, int column) {
+    if (size == this.type.length) {
+      grow();
+    }
+
+    this.type[size] = (byte)type.ordinal();
+    this.start[size] = start;
+    this.length[size] = length;
+    this.line[size] = line;
+    this.column[size] = column;
+    size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  TokenType type(int index) {
+    return types[type[index]];
+  }
+
+  int start(int index) {
+    return start[index];
+  }
+
+  int line(int index) {
+    return line[index];
+  }
+
+  Token token(int index) {
+    return new Token(type(index), lexeme(index), literal(index), line[index], column[index]);
+  }
+
+  String lexeme(int index) {
+    return switch (type(index)) {
+      // Semicolons can be inserted at newlines, their lexeme is whatever was
+      // skipped to get there so it has to come from the source.
+      case TokenType.IDENTIFIER,
+            TokenType.STRING,
+            TokenType.NUMBER,
+            TokenType.SEMICOLON
+            -> decode(start[index], start[index] + length[index]);
+      case TokenType.EOF -> "";
+      default -> type(index).toString();
+    };
+  }
+
+  Object literal(int index) {
+    return switch (type(index)) {
+      case TokenType.STRING -> decode(start[index] + 1, start[index] + length[index] - 1); // Omit surrounding quotes
+      case TokenType.NUMBER -> Double.parseDouble(decode(start[index], start[index] + length[index]));
+      default -> null;
+    };
+  }
+
+  String decode(int from, int to) {
+    var bytes = new byte[to - from];
+    source.get(from, bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Drops the first count tokens, used when streaming once the parser is done
+  // with them.
+  void discard(int count) {
+    System.arraycopy(type, count, type, 0, size - count);
+    System.arraycopy(start, count, start, 0, size - count);
+    System.arraycopy(length, count, length, 0, size - count);
+    System.arraycopy(line, count, line, 0, size - count);
+    System.arraycopy(column, count, column, 0, size - count);
+    size -= count;
+  }
+
+  // Called by the scanner when it moves the source window, shift is how many
+  // bytes were dropped from the front of it.
+  void rebase(ByteBuffer source, int shift) {
+    this.source = source;
+
+    for (var i = 0; i < size; i++) {
+      start[i] -= shift;
+    }
+  }
+
+  private void grow() {
+    var capacity = type.length * 2;
+
+    type = Arrays.copyOf(type, capacity);
+    start = Arrays.copyOf(start, capacity);
+    length = Arrays.copyOf(length, capacity);
+    line = Arrays.copyOf(line, capacity);
+    column = Arrays.copyOf(column, capacity);
+  }
+}
@@ -0,0 +1,413 @@
+import java.util.Arrays;
+
+// Runs a Chunk for the bytecode backend, on the interpreter's current frame and
+// upvalues. Each call of a Lox function runs its own chunk through here, so
+// calls still go through LoxCallable and LoxFunction sets up the frame the
+// same way as for the other backends. The stacks are shared by every call,
+// each one runs on top of the values of the one that called it.
+//
+// Numeric expressions are computed on unboxed doubles, see Chunk. Anything
+// else that can fail, and every error, goes through the interpreter so it
+// behaves the same.
+class VM {
+  private Object[] stack = new Object[0];
+  private double[] numbers = new double[0];
+  private int top = 0;
+
+  Completion run(Interpreter interpreter, Chunk chunk) {
+    var base = top;
+    if (base + chunk.maxStack() > stack.length) {
+      var size = Math.max(stack.length * 2, base + chunk.maxStack());
+      stack = Arrays.copyOf(stack, size);
+      numbers = Arrays.copyOf(numbers, size);
+    }
+
+    try {
+      return run(interpreter, chunk, base);
+    } finally {
+      top = base;
+
+      // Values left above the top are overwritten by the next call, once the
+      // program is done nothing is kept alive by the stack
+      if (base == 0) {
+        Arrays.fill(stack, null);
+      }
+    }
+  }
+
+  // Calls set the top to their arguments and can grow the stacks
+  private Completion run(Interpreter interpreter, Chunk chunk, int base) {
+    var code = chunk.code();
+    var constants = chunk.constants();
+    var stack = this.stack;
+    var numbers = this.numbers;
+    var sp = base;
+    var pc = 0;
+
+    // Only reserving a scope at the top level can replace the frame
+    var frame = interpreter.frame;
+    var upvalues = interpreter.upvalues;
+
+    for (;;) {
+      switch (code[pc++]) {
+        case Chunk.NIL -> stack[sp++] = null;
+        case Chunk.TRUE -> stack[sp++] = true;
+        case Chunk.FALSE -> stack[sp++] = false;
+        case Chunk.CONSTANT -> stack[sp++] = constants[code[pc++]];
+        case Chunk.NUMBER -> stack[sp++] = interpreter.literal(constants[code[pc++]]);
+        case Chunk.POP -> sp--;
+
+        case Chunk.GET_FRAME -> stack[sp++] = frame[code[pc++]];
+        case Chunk.SET_FRAME -> frame[code[pc++]] = stack[sp - 1];
+        case Chunk.DEFINE_FRAME -> frame[code[pc++]] = stack[--sp];
+        case Chunk.GET_CELL -> stack[sp++] = ((Cell)frame[code[pc++]]).value;
+        case Chunk.SET_CELL -> ((Cell)frame[code[pc++]]).value = stack[sp - 1];
+        case Chunk.DEFINE_CELL -> frame[code[pc++]] = new Cell(stack[--sp]);
+        case Chunk.GET_UPVALUE -> stack[sp++] = upvalues[code[pc++]].value;
+        case Chunk.SET_UPVALUE -> upvalues[code[pc++]].value = stack[sp - 1];
+        case Chunk.GET_GLOBAL -> stack[sp++] = interpreter.global.get((Token)constants[code[pc++]]);
+        case Chunk.SET_GLOBAL -> interpreter.global.assign((Token)constants[code[pc++]], stack[sp - 1]);
+        case Chunk.DEFINE_GLOBAL -> interpreter.global.define((String)constants[code[pc++]], stack[--sp]);
+
+        case Chunk.ADD -> {
+          var operator = code[pc++];
+          var right = stack[--sp];
+          var left = stack[sp - 1];
+          if (left instanceof Double a && right instanceof Double b) {
+            stack[sp - 1] = interpreter.box(a + b);
+          } else {
+            stack[sp - 1] = interpreter.binary((Token)constants[operator], left, right);
+          }
+        }
+
+        case Chunk.UNBOXED -> numbers[sp++] = (double)constants[code[pc++]];
+        case Chunk.BOX -> stack[sp - 1] = interpreter.box(numbers[sp - 1]);
+        case Chunk.PLUS -> {
+          var operator = code[pc++];
+          var mask = code[pc++];
+          sp--;
+          if (mask != 0) {
+            unbox(interpreter, (Token)constants[operator], mask, stack, numbers, sp - 1);
+          }
+          numbers[sp - 1] += numbers[sp];
+        }
+        case Chunk.SUBTRACT -> {
+          var operator = code[pc++];
+          var mask = code[pc++];
+          sp--;
+          if (mask != 0) {
+            unbox(interpreter, (Token)constants[operator], mask, stack, numbers, sp - 1);
+          }
+          numbers[sp - 1] -= numbers[sp];
+        }
+        case Chunk.MULTIPLY -> {
+          var operator = code[pc++];
+          var mask = code[pc++];
+          sp--;
+          if (mask != 0) {
+            unbox(interpreter, (Token)constants[operator], mask, stack, numbers, sp - 1);
+          }
+          numbers[sp - 1] *= numbers[sp];
+        }
+        case Chunk.DIVIDE -> {
+          var operator = (Token)constants[code[pc++]];
+          var mask = code[pc++];
+          sp--;
+          if (mask != 0) {
+            unbox(interpreter, operator, mask, stack, numbers, sp - 1);
+          }
+          interpreter.checkNotDivideByZero(operator, numbers[sp]);
+          numbers[sp - 1] /= numbers[sp];
+        }
+        case Chunk.REMAINDER -> {
+          var operator = (Token)constants[code[pc++]];
+          var mask = code[pc++];
+          sp--;
+          if (mask != 0) {
+            unbox(interpreter, operator, mask, stack, numbers, sp - 1);
+          }
+          interpreter.checkNotDivideByZero(operator, numbers[sp]);
+          numbers[sp - 1] = interpreter.remainder(numbers[sp - 1], numbers[sp]);
+        }
+        case Chunk.NEGATE -> {
+          var operator = code[pc++];
+          if (code[pc++] != 0) {
+            var value = stack[sp - 1];
+            interpreter.checkNumberOperand((Token)constants[operator], value);
+            numbers[sp - 1] = interpreter.toDouble(value);
+          }
+
+          numbers[sp - 1] = -numbers[sp - 1];
+        }
+
+        case Chunk.GREATER -> {
+          var operator = code[pc++];
+          var mask = code[pc++];
+          sp--;
+          if (mask != 0) {
+            unbox(interpreter, (Token)constants[operator], mask, stack, numbers, sp - 1);
+          }
+          stack[sp - 1] = numbers[sp - 1] > numbers[sp];
+        }
+        case Chunk.GREATER_EQUAL -> {
+          var operator = code[pc++];
+          var mask = code[pc++];
+          sp--;
+          if (mask != 0) {
+            unbox(interpreter, (Token)constants[operator], mask, stack, numbers, sp - 1);
+          }
+          stack[sp - 1] = numbers[sp - 1] >= numbers[sp];
+        }
+        case Chunk.LESS -> {
+          var operator = code[pc++];
+          var mask = code[pc++];
+          sp--;
+          if (mask != 0) {
+            unbox(interpreter, (Token)constants[operator], mask, stack, numbers, sp - 1);
+          }
+          stack[sp - 1] = numbers[sp - 1] < numbers[sp];
+        }
+        case Chunk.LESS_EQUAL -> {
+          var operator = code[pc++];
+          var mask = code[pc++];
+          sp--;
+          if (mask != 0) {
+            unbox(interpreter, (Token)constants[operator], mask, stack, numbers, sp - 1);
+          }
+          stack[sp - 1] = numbers[sp - 1] <= numbers[sp];
+        }
+
+        case Chunk.EQUAL -> {
+          var right = stack[--sp];
+          stack[sp - 1] = interpreter.isEqual(stack[sp - 1], right);
+        }
+        case Chunk.NOT_EQUAL -> {
+          var right = stack[--sp];
+          stack[sp - 1] = !interpreter.isEqual(stack[sp - 1], right);
+        }
+        case Chunk.NOT -> stack[sp - 1] = !interpreter.isTruthy(stack[sp - 1]);
+
+        case Chunk.JUMP -> {
+          // Jumping back is the next iteration of a loop
+          if (code[pc] < pc) {
+            interpreter.backEdges++;
+          }
+
+          pc = code[pc];
+        }
+        case Chunk.JUMP_IF_FALSE -> pc = interpreter.isTruthy(stack[--sp]) ? pc + 1 : code[pc];
+        case Chunk.JUMP_IF_FALSE_OR_POP -> {
+          if (interpreter.isTruthy(stack[sp - 1])) {
+            sp--;
+            pc++;
+          } else {
+            pc = code[pc];
+          }
+        }
+        case Chunk.JUMP_IF_TRUE_OR_POP -> {
+          if (interpreter.isTruthy(stack[sp - 1])) {
+            pc = code[pc];
+          } else {
+            sp--;
+            pc++;
+          }
+        }
+        case Chunk.JUMP_IF_NOT_GREATER -> {
+          var operator = code[pc++];
+          var mask = code[pc++];
+          sp -= 2;
+          if (mask != 0) {
+            unbox(interpreter, (Token)constants[operator], mask, stack, numbers, sp);
+          }
+          pc = numbers[sp] > numbers[sp + 1] ? pc + 1 : code[pc];
+        }
+        case Chunk.JUMP_IF_NOT_GREATER_EQUAL -> {
+          var operator = code[pc++];
+          var mask = code[pc++];
+          sp -= 2;
+          if (mask != 0) {
+            unbox(interpreter, (Token)constants[operator], mask, stack, numbers, sp);
+          }
+          pc = numbers[sp] >= numbers[sp + 1] ? pc + 1 : code[pc];
+        }
+        case Chunk.JUMP_IF_NOT_LESS -> {
+          var operator = code[pc++];
+          var mask = code[pc++];
+          sp -= 2;
+          if (mask != 0) {
+            unbox(interpreter, (Token)constants[operator], mask, stack, numbers, sp);
+          }
+          pc = numbers[sp] < numbers[sp + 1] ? pc + 1 : code[pc];
+        }
+        case Chunk.JUMP_IF_NOT_LESS_EQUAL -> {
+          var operator = code[pc++];
+          var mask = code[pc++];
+          sp -= 2;
+          if (mask != 0) {
+            unbox(interpreter, (Token)constants[operator], mask, stack, numbers, sp);
+          }
+          pc = numbers[sp] <= numbers[sp + 1] ? pc + 1 : code[pc];
+        }
+
+        case Chunk.CALLABLE -> {
+          var paren = (Token)constants[code[pc++]];
+          var count = code[pc++];
+          checkCallable(paren, stack[sp - 1], count);
+        }
+        case Chunk.CALL -> {
+          var count = code[pc++];
+          var callee = sp - count - 1;
+          top = sp;
+          var value = call(interpreter, (LoxCallable)stack[callee], stack, callee + 1, count);
+          stack = this.stack;
+          numbers = this.numbers;
+          stack[callee] = value;
+          sp = callee + 1;
+        }
+        case Chunk.METHOD -> {
+          var identifier = (Token)constants[code[pc++]];
+          var paren = (Token)constants[code[pc++]];
+          var count = code[pc++];
+
+          var instance = stack[sp - 1];
+          if (!(instance instanceof LoxInstance)) {
+            throw new RuntimeError(identifier, "Only instances of classes have properties.");
+          }
+
+          var receiver = (LoxInstance)instance;
+          var method = receiver.method(identifier.lexeme());
+          if (method != null) {
+            checkArity(paren, method.arity(), count);
+            stack[sp - 1] = method;
+            stack[sp++] = receiver;
+          } else {
+            var value = receiver.get(identifier);
+            checkCallable(paren, value, count);
+            stack[sp - 1] = value;
+            stack[sp++] = null;
+          }
+        }
+        case Chunk.INVOKE -> {
+          var count = code[pc++];
+          var callee = sp - count - 2;
+          var receiver = (LoxInstance)stack[callee + 1];
+          top = sp;
+          Object value;
+          if (receiver != null) {
+            value = invoke(interpreter, (LoxFunction)stack[callee], receiver, stack, callee + 2, count);
+          } else {
+            value = call(interpreter, (LoxCallable)stack[callee], stack, callee + 2, count);
+          }
+
+          stack = this.stack;
+          numbers = this.numbers;
+          stack[callee] = value;
+          sp = callee + 1;
+        }
+
+        case Chunk.GET_PROPERTY -> {
+          var identifier = (Token)constants[code[pc++]];
+          stack[sp - 1] = checkInstance(identifier, stack[sp - 1]).get(identifier);
+        }
+        case Chunk.INSTANCE -> checkInstance((Token)constants[code[pc++]], stack[sp - 1]);
+        case Chunk.SET_PROPERTY -> {
+          var identifier = (Token)constants[code[pc++]];
+          var value = stack[--sp];
+          ((LoxInstance)stack[sp - 1]).set(identifier, value);
+          stack[sp - 1] = value;
+        }
+        case Chunk.SUPER -> stack[sp++] = interpreter.evalSuper((Expr.Super)constants[code[pc++]]);
+
+        case Chunk.FUNCTION -> interpreter.execFunction((Stmt.Function)constants[code[pc++]]);
+        case Chunk.CLASS -> interpreter.execClass((Stmt.Class)constants[code[pc++]]);
+        case Chunk.RESERVE -> {
+          interpreter.reserve((Scope)constants[code[pc++]]);
+          frame = interpreter.frame;
+        }
+
+        case Chunk.RETURN -> {
+          interpreter.returned = stack[--sp];
+          return Completion.RETURN;
+        }
+        case Chunk.END -> {
+          return Completion.NORMAL;
+        }
+        default -> throw new IllegalStateException(String.format("Unknown opcode %d.", code[pc - 1]));
+      }
+    }
+  }
+
+  // Unboxes the operands in the mask, at left and the slot after it. If either
+  // isn't a number the interpreter has the operator fail on their values.
+  private static void unbox(Interpreter interpreter, Token operator, int mask, Object[] stack, double[] numbers, int left) {
+    var leftValue = (mask & 1) != 0 ? stack[left] : null;
+    var rightValue = (mask & 2) != 0 ? stack[left + 1] : null;
+    if (((mask & 1) == 0 || interpreter.isNumber(leftValue)) && ((mask & 2) == 0 || interpreter.isNumber(rightValue))) {
+      if ((mask & 1) != 0) {
+        numbers[left] = interpreter.toDouble(leftValue);
+      }
+
+      if ((mask & 2) != 0) {
+        numbers[left + 1] = interpreter.toDouble(rightValue);
+      }
+
+      return;
+    }
+
+    if ((mask & 1) == 0) {
+      leftValue = interpreter.box(numbers[left]);
+    }
+
+    if ((mask & 2) == 0) {
+      rightValue = interpreter.box(numbers[left + 1]);
+    }
+
+    interpreter.binary(operator, leftValue, rightValue);
+    throw new IllegalStateException(String.format("'%s' didn't fail on a value that isn't a number.", operator.lexeme()));
+  }
+
+  private static void checkCallable(Token paren, Object callee, int count) {
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren, "Calls can only be made on functions and classes.");
+    }
+
+    checkArity(paren, ((LoxCallable)callee).arity(), count);
+  }
+
+  private static void checkArity(Token paren, int arity, int count) {
+    if (count != arity) {
+      throw new RuntimeError(paren, String.format("Expected %d arguments but got %d", arity, count));
+    }
+  }
+
+  private static LoxInstance checkInstance(Token identifier, Object instance) {
+    if (!(instance instanceof LoxInstance)) {
+      throw new RuntimeError(identifier, "Only instances of classes have properties.");
+    }
+
+    return (LoxInstance)instance;
+  }
+
+  // The arguments are the count values on the stack from start
+  private static Object call(Interpreter interpreter, LoxCallable func, Object[] stack, int start, int count) {
+    return switch (count) {
+      case 0 -> func.call0(interpreter);
+      case 1 -> func.call1(interpreter, stack[start]);
+      case 2 -> func.call2(interpreter, stack[start], stack[start + 1]);
+      case 3 -> func.call3(interpreter, stack[start], stack[start + 1], stack[start + 2]);
+      case 4 -> func.call4(interpreter, stack[start], stack[start + 1], stack[start + 2], stack[start + 3]);
+      default -> func.call(interpreter, Arrays.copyOfRange(stack, start, start + count));
+    };
+  }
+
+  private static Object invoke(Interpreter interpreter, LoxFunction method, LoxInstance receiver, Object[] stack, int start, int count) {
+    return switch (count) {
+      case 0 -> method.invoke0(interpreter, receiver);
+      case 1 -> method.invoke1(interpreter, receiver, stack[start]);
+      case 2 -> method.invoke2(interpreter, receiver, stack[start], stack[start + 1]);
+      case 3 -> method.invoke3(interpreter, receiver, stack[start], stack[start + 1], stack[start + 2]);
+      case 4 -> method.invoke4(interpreter, receiver, stack[start], stack[start + 1], stack[start + 2], stack[start + 3]);
+      default -> method.invoke(interpreter, receiver, Arrays.copyOfRange(stack, start, start + count));
+    };
+  }
+}
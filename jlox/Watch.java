@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Runs a file again every time it's saved, without paying for JVM startup
+// each time. The source is split into top level declarations the same way the
+// parallel front end splits it, and only declarations whose text changed
+// since the last run are scanned, parsed and resolved again. Every run gets a
+// fresh interpreter so nothing carries over from the one before.
+//
+// A declaration that only moved is kept as well. Each one is scanned from a
+// range of lines of its own that no other declaration has been given, and the
+// lines errors are reported on are moved from there to wherever it is in the
+// file on this run, see Lox.lines.
+//
+// Bodies are always parsed in full. A kept declaration is never compiled
+// again, so errors in a pre-parsed body would only be reported the first time
+// it's called after the save that made them.
+class Watch {
+  private static final long POLL_MILLIS = 100;
+
+  // Line is the first of the range the declaration was scanned from
+  private record Compiled(int line, List<Stmt> stmts) {}
+
+  private final boolean dualNumbers;
+  private final Interpreter.Backend backend;
+
+  // By their text. The same declaration can be in the file more than once,
+  // each one is compiled on its own.
+  private Map<String, ArrayDeque<Compiled>> compiled = new HashMap<>();
+
+  // Where the next range of lines starts, and how far the lines of each range
+  // in use by the current run are from where its declaration is now
+  private int nextLine = 1;
+  private TreeMap<Integer, Integer> offsets = new TreeMap<>();
+
+  // Nanoseconds spent in each phase of the current run
+  private long scan;
+  private long parse;
+  private long resolve;
+
+  private Watch(boolean dualNumbers, Interpreter.Backend backend) {
+    this.dualNumbers = dualNumbers;
+    this.backend = backend;
+  }
+
+  // Never returns, watching ends when the process is stopped
+  static void run(Path path, boolean dualNumbers, Interpreter.Backend backend) throws IOException, InterruptedException {
+    var watch = new Watch(dualNumbers, backend);
+    Lox.lines = watch::line;
+
+    FileTime modified = null;
+    var size = -1L;
+    while (true) {
+      try {
+        var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attributes.lastModifiedTime().equals(modified) || attributes.size() != size) {
+          modified = attributes.lastModifiedTime();
+          size = attributes.size();
+
+          watch.run(Files.readAllBytes(path));
+        }
+      } catch (NoSuchFileException error) {
+        // Editors can replace the file when saving, wait for it to come back
+      }
+
+      Thread.sleep(POLL_MILLIS);
+    }
+  }
+
+  private void run(byte[] source) {
+    Lox.clearErrors();
+    scan = 0;
+    parse = 0;
+    resolve = 0;
+
+    var chunks = ParallelFrontEnd.split(ByteBuffer.wrap(source), 0);
+    var next = new HashMap<String, ArrayDeque<Compiled>>();
+    var stmts = new ArrayList<Stmt>();
+    var changed = 0;
+    offsets = new TreeMap<>();
+
+    for (var chunk : chunks) {
+      var bytes = Arrays.copyOfRange(source, chunk.offset(), chunk.offset() + chunk.length());
+      var text = new String(bytes, StandardCharsets.UTF_8);
+
+      var kept = compiled.get(text);
+      var chunkCompiled = kept == null ? null : kept.poll();
+      if (chunkCompiled == null) {
+        var line = nextLine;
+        nextLine += lineCount(bytes);
+
+        // Errors are reported while it's compiled
+        offsets.put(line, chunk.line() - line);
+        chunkCompiled = new Compiled(line, compile(bytes, line));
+        changed++;
+
+        // Once there's been an error it isn't known which of the declarations
+        // after it had one too, so they aren't kept.
+        if (Lox.hadError()) {
+          continue;
+        }
+      }
+
+      offsets.put(chunkCompiled.line(), chunk.line() - chunkCompiled.line());
+      next.computeIfAbsent(text, key -> new ArrayDeque<>()).add(chunkCompiled);
+      stmts.addAll(chunkCompiled.stmts());
+    }
+
+    compiled = next;
+
+    var run = 0L;
+    if (!Lox.hadError()) {
+      var start = System.nanoTime();
+      new Interpreter(dualNumbers, backend).interpret(stmts);
+      run = System.nanoTime() - start;
+    }
+
+    System.err.println(String.format(
+      "[watch] compiled %d of %d declarations: scan %.1f ms, parse %.1f ms, resolve %.1f ms, run %.1f ms",
+      changed,
+      chunks.size(),
+      scan / 1e6,
+      parse / 1e6,
+      resolve / 1e6,
+      run / 1e6
+    ));
+  }
+
+  // Where a line a token was scanned on is in the file on the current run
+  private int line(int line) {
+    var offset = offsets.floorEntry(line);
+    return offset == null ? line : line + offset.getValue();
+  }
+
+  // The lines of a declaration, along with the one after its last newline
+  private static int lineCount(byte[] bytes) {
+    var count = 1;
+    for (var b : bytes) {
+      if (b == '\n') {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  private List<Stmt> compile(byte[] bytes, int line) {
+    var start = System.nanoTime();
+    var scanner = new Scanner(ByteBuffer.wrap(bytes), line);
+    scanner.scanTokens();
+    scan += System.nanoTime() - start;
+    if (Lox.hadError()) {
+      return null;
+    }
+
+    start = System.nanoTime();
+    var stmts = new Parser(scanner, false).parse();
+    parse += System.nanoTime() - start;
+    if (Lox.hadError()) {
+      return null;
+    }
+
+    start = System.nanoTime();
+    new Resolver().resolve(stmts);
+    resolve += System.nanoTime() - start;
+
+    return Optimizer.optimize(stmts);
+  }
+}
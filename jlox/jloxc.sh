@@ -0,0 +1,6 @@
+#!/usr/bin/env bash
+
+javac *.java && java Lox --compile $@
+status=$?
+rm -f *.class
+exit ${status}